@@ -0,0 +1,133 @@
+package client_test;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Patient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The update Patient, update Encounter, create Condition flow of HapiClientStarterClientRest
+ * against a stub server with a fixed delay per request: blocking one flow after the other, and
+ * async with all flows in flight and the two updates of a flow running concurrently. Scores are per
+ * flow.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+// without TCP_NODELAY every small response waits for the delayed ACK of the client
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+@State(Scope.Benchmark)
+public class AsyncClientBenchmark {
+
+  private static final int FLOWS = 200;
+  private static final long SERVER_DELAY_MILLIS = 10;
+
+  private ExecutorService serverThreads;
+  private HttpServer server;
+  private IGenericClient blocking;
+  private AsyncFhirClient async;
+  private Patient pat;
+  private Encounter enc;
+  private Condition cond;
+
+  @Setup
+  public void setUp() throws IOException {
+    serverThreads = Executors.newCachedThreadPool();
+    server = startServer(serverThreads);
+    String serverBase = "http://localhost:" + server.getAddress().getPort();
+    blocking = FhirClientFactory.getClient(serverBase);
+    async = new AsyncFhirClient(serverBase);
+    IsikResourceFactory resources = IsikResourceFactory.getDefault();
+    pat = resources.createPatient();
+    pat.setId("1");
+    enc = resources.createEncounter(pat);
+    enc.setId("1");
+    cond = resources.createCondition(pat, enc);
+  }
+
+  @TearDown
+  public void tearDown() {
+    server.stop(0);
+    serverThreads.shutdown();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(FLOWS)
+  public void blocking() {
+    for (int i = 0; i < FLOWS; i++) {
+      blocking.update().resource(pat).execute();
+      blocking.update().resource(enc).execute();
+      blocking.create().resource(cond).execute();
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(FLOWS)
+  public void async() {
+    List<CompletableFuture<?>> flows = new ArrayList<>();
+    for (int i = 0; i < FLOWS; i++) {
+      flows.add(
+          async
+              .update(pat)
+              .thenCombine(async.update(enc), (p, e) -> cond)
+              .thenCompose(async::create));
+    }
+    CompletableFuture.allOf(flows.toArray(new CompletableFuture<?>[0])).join();
+  }
+
+  // answers every request after the delay, like a server doing some work per request
+  private static HttpServer startServer(ExecutorService threads) throws IOException {
+    Patient patient = IsikResourceFactory.getDefault().createPatient();
+    patient.setId("1");
+    byte[] json =
+        FhirClientFactory.getCompactJsonParser()
+            .encodeResourceToString(patient)
+            .getBytes(StandardCharsets.UTF_8);
+
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 1_000);
+    server.setExecutor(threads);
+    server.createContext(
+        "/",
+        exchange -> {
+          exchange.getRequestBody().readAllBytes();
+          try {
+            Thread.sleep(SERVER_DELAY_MILLIS);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          boolean create = "POST".equals(exchange.getRequestMethod());
+          exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+          exchange.getResponseHeaders().add("Location", "Patient/1/_history/1");
+          exchange.sendResponseHeaders(create ? 201 : 200, json.length);
+          try (OutputStream out = exchange.getResponseBody()) {
+            out.write(json);
+          }
+        });
+    server.start();
+    return server;
+  }
+}
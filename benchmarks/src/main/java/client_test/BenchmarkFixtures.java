@@ -0,0 +1,48 @@
+package client_test;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Bundle.SearchEntryMode;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+
+/** Resources shared by several benchmarks. */
+final class BenchmarkFixtures {
+
+  static final String SERVER_BASE = "http://example.org/fhir/";
+
+  private BenchmarkFixtures() {}
+
+  /** A searchset shaped like Condition?_include=Condition:patient&_include=Condition:encounter. */
+  static Bundle createSearchBundle(int conditionCount) {
+    Bundle bundle = new Bundle();
+    bundle.setType(BundleType.SEARCHSET);
+    for (int i = 0; i < conditionCount; i++) {
+      Patient patient = IsikResourceFactory.getDefault().createPatient();
+      patient.setId("Patient/p" + i);
+      Encounter encounter = new Encounter();
+      encounter.setId("Encounter/e" + i);
+      encounter.setSubject(new Reference("Patient/p" + i));
+      Condition condition = new Condition();
+      condition.setId("Condition/c" + i);
+      condition.setSubject(new Reference("Patient/p" + i));
+      condition.setEncounter(new Reference("Encounter/e" + i));
+      addEntry(bundle, condition, SearchEntryMode.MATCH);
+      addEntry(bundle, patient, SearchEntryMode.INCLUDE);
+      addEntry(bundle, encounter, SearchEntryMode.INCLUDE);
+    }
+    return bundle;
+  }
+
+  private static void addEntry(Bundle bundle, Resource resource, SearchEntryMode mode) {
+    bundle
+        .addEntry()
+        .setFullUrl(SERVER_BASE + resource.getId())
+        .setResource(resource)
+        .getSearch()
+        .setMode(mode);
+  }
+}
@@ -0,0 +1,77 @@
+package client_test;
+
+import ca.uhn.fhir.parser.IParser;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encode and decode time of the Patient, Encounter and Condition samples with {@link
+ * FhirBinaryParser} and the compact JSON and the XML parser. BinaryEncodingCheck checks that the
+ * binary encoding round-trips and prints the encoded sizes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BinaryEncodingBenchmark {
+
+  public enum Format {
+    JSON,
+    XML,
+    BINARY
+  }
+
+  @Param({"Patient", "Encounter", "Condition"})
+  public String resourceType;
+
+  @Param({"JSON", "XML", "BINARY"})
+  public Format format;
+
+  private IBaseResource resource;
+  private IParser parser;
+  private byte[] encoded;
+
+  @Setup
+  public void setUp() {
+    resource =
+        BinaryEncodingCheck.createSamples().stream()
+            .filter(r -> r.fhirType().equals(resourceType))
+            .findFirst()
+            .orElseThrow();
+    parser =
+        format == Format.XML
+            ? FhirClientFactory.getContext().newXmlParser()
+            : FhirClientFactory.getCompactJsonParser();
+    encoded = encode();
+  }
+
+  @Benchmark
+  public byte[] encode() {
+    if (format == Format.BINARY) {
+      return FhirBinaryParser.getDefault().encodeResourceToBytes(resource);
+    }
+    return parser.encodeResourceToString(resource).getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Benchmark
+  public IBaseResource decode() {
+    if (format == Format.BINARY) {
+      return FhirBinaryParser.getDefault().parseResource(encoded);
+    }
+    return parser.parseResource(new String(encoded, StandardCharsets.UTF_8));
+  }
+}
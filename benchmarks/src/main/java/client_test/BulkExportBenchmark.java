@@ -0,0 +1,170 @@
+package client_test;
+
+import ca.uhn.fhir.parser.IParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A Bulk Data export against a stub server: the kick-off answers 202, the status endpoint answers
+ * 202 twice and then the manifest, and every output file is canned NDJSON of the sample Patient,
+ * Encounter or Condition, written in chunks. The small heap shows that no file is held in memory.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(
+    value = 1,
+    jvmArgsAppend = {"-Xmx256m", "-Dsun.net.httpserver.nodelay=true"})
+@State(Scope.Benchmark)
+public class BulkExportBenchmark {
+
+  private static final int FILES_PER_TYPE = 4;
+  private static final int CHUNK_LINES = 500;
+
+  @Param({"2500", "25000"})
+  public int resourcesPerFile;
+
+  private ExecutorService serverThreads;
+  private HttpServer server;
+  private BulkExportClient client;
+
+  @Setup
+  public void setUp() throws IOException {
+    serverThreads = Executors.newCachedThreadPool();
+    server = startServer(serverThreads);
+    client = new BulkExportClient("http://localhost:" + server.getAddress().getPort());
+  }
+
+  @TearDown
+  public void tearDown() {
+    server.stop(0);
+    serverThreads.shutdown();
+  }
+
+  @Benchmark
+  public BulkExportClient.ExportStats export() throws InterruptedException {
+    BulkExportClient.ExportStats stats =
+        client.export("$export", Set.of("Patient", "Encounter", "Condition"), type -> r -> {});
+    long expected = 3L * FILES_PER_TYPE * resourcesPerFile;
+    if (stats.getResourceCount() != expected) {
+      throw new IllegalStateException(
+          "expected " + expected + " resources, received " + stats.getResourceCount());
+    }
+    return stats;
+  }
+
+  private HttpServer startServer(ExecutorService threads) throws IOException {
+    IsikResourceFactory resources = IsikResourceFactory.getDefault();
+    Patient patient = resources.createPatient();
+    patient.setId("p1");
+    Encounter encounter = resources.createEncounter(patient);
+    encounter.setId("e1");
+    Condition condition = resources.createCondition(patient, encounter);
+    condition.setId("c1");
+    Map<String, byte[]> chunks =
+        Map.of(
+            "Patient", chunk(patient),
+            "Encounter", chunk(encounter),
+            "Condition", chunk(condition));
+    AtomicInteger polls = new AtomicInteger();
+
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    String base = "http://localhost:" + server.getAddress().getPort();
+    server.setExecutor(threads);
+    server.createContext(
+        "/$export",
+        exchange -> {
+          polls.set(0);
+          exchange.getResponseHeaders().add("Content-Location", base + "/status/1");
+          respond(exchange, 202, new byte[0]);
+        });
+    server.createContext(
+        "/status/",
+        exchange -> {
+          if (polls.incrementAndGet() <= 2) {
+            exchange.getResponseHeaders().add("X-Progress", "exporting");
+            exchange.getResponseHeaders().add("Retry-After", "0");
+            respond(exchange, 202, new byte[0]);
+            return;
+          }
+          StringBuilder output = new StringBuilder();
+          for (String type : chunks.keySet()) {
+            for (int i = 0; i < FILES_PER_TYPE; i++) {
+              output.append(output.length() == 0 ? "" : ",");
+              output.append(
+                  String.format(
+                      "{\"type\":\"%s\",\"url\":\"%s/files/%s-%d.ndjson\",\"count\":%d}",
+                      type, base, type, i, resourcesPerFile));
+            }
+          }
+          String manifest =
+              "{\"transactionTime\":\"2022-03-01T00:00:00Z\",\"request\":\""
+                  + base
+                  + "/$export\",\"requiresAccessToken\":false,\"output\":["
+                  + output
+                  + "],\"error\":[]}";
+          exchange.getResponseHeaders().add("Content-Type", "application/json");
+          respond(exchange, 200, manifest.getBytes(StandardCharsets.UTF_8));
+        });
+    server.createContext(
+        "/files/",
+        exchange -> {
+          String name = exchange.getRequestURI().getPath().substring("/files/".length());
+          byte[] chunk = chunks.get(name.substring(0, name.indexOf('-')));
+          exchange.getResponseHeaders().add("Content-Type", "application/fhir+ndjson");
+          exchange.sendResponseHeaders(200, 0);
+          try (OutputStream out = exchange.getResponseBody()) {
+            for (int i = 0; i < resourcesPerFile / CHUNK_LINES; i++) {
+              out.write(chunk);
+            }
+          }
+        });
+    server.start();
+    return server;
+  }
+
+  private static byte[] chunk(Resource resource) {
+    IParser parser = FhirClientFactory.getCompactJsonParser();
+    byte[] line = (parser.encodeResourceToString(resource) + "\n").getBytes(StandardCharsets.UTF_8);
+    ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+    for (int i = 0; i < CHUNK_LINES; i++) {
+      chunk.writeBytes(line);
+    }
+    return chunk.toByteArray();
+  }
+
+  private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+    exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+}
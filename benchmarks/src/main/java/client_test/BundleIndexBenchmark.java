@@ -0,0 +1,77 @@
+package client_test;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Condition.subject and Condition.encounter of a search Bundle resolved by a stream scan per
+ * reference, the way selectItemsFromBundle did it, and through a freshly built BundleIndex.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BundleIndexBenchmark {
+
+  @Param({"100", "3333"})
+  public int conditions;
+
+  private Bundle bundle;
+
+  @Setup
+  public void setUp() {
+    bundle = BenchmarkFixtures.createSearchBundle(conditions);
+  }
+
+  @Benchmark
+  public int streamScan() {
+    int resolved = 0;
+    for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+      if (entry.getResource().getResourceType() == ResourceType.Condition) {
+        Condition condition = (Condition) entry.getResource();
+        resolved += findLinear(condition.getSubject()).isPresent() ? 1 : 0;
+        resolved += findLinear(condition.getEncounter()).isPresent() ? 1 : 0;
+      }
+    }
+    return resolved;
+  }
+
+  @Benchmark
+  public int bundleIndex() {
+    BundleIndex index = new BundleIndex(bundle);
+    int resolved = 0;
+    for (Condition condition : index.getAll(ResourceType.Condition, Condition.class)) {
+      resolved += index.resolve(condition.getSubject()).isPresent() ? 1 : 0;
+      resolved += index.resolve(condition.getEncounter()).isPresent() ? 1 : 0;
+    }
+    return resolved;
+  }
+
+  private Optional<Resource> findLinear(Reference reference) {
+    String target = new IdType(reference.getReference()).toUnqualifiedVersionless().getValue();
+    return bundle.getEntry().stream()
+        .filter(
+            e -> new IdType(e.getFullUrl()).toUnqualifiedVersionless().getValue().equals(target))
+        .map(e -> e.getResource())
+        .findAny();
+  }
+}
@@ -0,0 +1,139 @@
+package client_test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * De-identifies Patient, Encounter and Condition graphs with {@link Deidentifier#forIsikExport}, on
+ * one thread and as a parallel stream; the score is per resource. After every iteration the last
+ * graphs are checked: they still reference each other and no patient number, name or original date
+ * is left.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DeidentifierBenchmark {
+
+  private static final int PATIENTS = 20_000;
+  private static final long FIRST_DATE = 1_600_000_000_000L;
+  private static final byte[] KEY =
+      "not-a-production-key-0123456789".getBytes(StandardCharsets.UTF_8);
+
+  private final Deidentifier deidentifier = Deidentifier.forIsikExport(KEY);
+  private List<Resource> resources;
+
+  // a Group subject is not Patient/0, so the Condition must not get the shift of that patient
+  @Setup
+  public void checkGroupSubject() {
+    Condition condition = new Condition();
+    condition.setId("Condition/group");
+    condition.setSubject(new Reference("Group/0"));
+    condition.setRecordedDate(date(0));
+    deidentifier.apply(condition);
+    long days =
+        Math.round(
+            (condition.getRecordedDate().getTime() - date(0).getTime())
+                / (double) TimeUnit.DAYS.toMillis(1));
+    if (days == 0 || days == deidentifier.shiftDays("Patient/0")) {
+      throw new IllegalStateException("Group/0 shifted like Patient/0 by " + days + " days");
+    }
+  }
+
+  // the graphs are de-identified in place, so every invocation gets new ones
+  @Setup(Level.Invocation)
+  public void createResources() {
+    IsikResourceFactory factory = IsikResourceFactory.getDefault();
+    resources = new ArrayList<>(3 * PATIENTS);
+    for (int i = 0; i < PATIENTS; i++) {
+      Date date = date(i);
+      Patient patient =
+          factory.createPatient("P" + i, "Nachname" + i, "Vorname", "Geburtsname" + i, date);
+      patient.setId("Patient/" + i);
+      Encounter encounter = factory.createEncounter(patient, "F" + i, date);
+      encounter.setId("Encounter/" + i);
+      encounter.setSubject(new Reference("Patient/" + i).setDisplay("Nachname" + i));
+      encounter.addLocation().setPeriod(new Period().setStart(date));
+      Condition condition = factory.createCondition(patient, encounter, date);
+      condition.setId("Condition/" + i);
+      condition.setSubject(new Reference("Patient/" + i));
+      condition.setEncounter(new Reference("Encounter/" + i));
+      condition.setAbatement(new DateTimeType(date));
+      resources.add(patient);
+      resources.add(encounter);
+      resources.add(condition);
+    }
+  }
+
+  @TearDown(Level.Iteration)
+  public void check() {
+    for (int i = 0; i < resources.size(); i += 3) {
+      Patient patient = (Patient) resources.get(i);
+      Encounter encounter = (Encounter) resources.get(i + 1);
+      Condition condition = (Condition) resources.get(i + 2);
+      String patientId = patient.getIdElement().toUnqualifiedVersionless().getValue();
+      String encounterId = encounter.getIdElement().toUnqualifiedVersionless().getValue();
+      String json = FhirClientFactory.getCompactJsonParser().encodeResourceToString(patient);
+      Date start = encounter.getPeriod().getStart();
+      long shift = patient.getBirthDate().getTime() - start.getTime();
+      boolean ok =
+          patientId.length() == "Patient/".length() + 32
+              && patientId.equals(encounter.getSubject().getReference())
+              && patientId.equals(condition.getSubject().getReference())
+              && encounterId.equals(condition.getEncounter().getReference())
+              && !encounter.getSubject().hasDisplay()
+              && !json.contains("Nachname")
+              && !json.contains("Maidenextension")
+              && !json.contains("\"P" + (i / 3) + "\"")
+              && Math.abs(shift) <= TimeUnit.DAYS.toMillis(1)
+              && !start.equals(date(i / 3))
+              && start.equals(encounter.getLocationFirstRep().getPeriod().getStart())
+              && start.equals(condition.getAbatementDateTimeType().getValue());
+      if (!ok) {
+        throw new IllegalStateException("not de-identified as expected: " + json);
+      }
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(3 * PATIENTS)
+  public void oneThread() {
+    resources.forEach(deidentifier::apply);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(3 * PATIENTS)
+  public long parallelStream() {
+    // count() alone would skip the mapping, the stream size is known
+    return deidentifier.apply(resources.stream()).mapToLong(r -> 1).sum();
+  }
+
+  private static Date date(int patient) {
+    return new Date(FIRST_DATE + patient * 3_600_000L);
+  }
+}
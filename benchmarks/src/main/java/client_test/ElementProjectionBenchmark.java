@@ -0,0 +1,152 @@
+package client_test;
+
+import ca.uhn.fhir.parser.IParser;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.HumanName.NameUse;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.StringType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reading the names of 100k Patients from search result pages: the full HAPI model against {@link
+ * PatientNames#projection()}, each for complete Patients and for the {@code _elements=name} subset
+ * a server sends for the projection.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ElementProjectionBenchmark {
+
+  private static final int PATIENTS = 100_000;
+  private static final int PAGE_SIZE = 1_000;
+  private static final String OWN_NAME =
+      "http://hl7.org/fhir/StructureDefinition/humanname-own-name";
+
+  @Param({"false", "true"})
+  public boolean elements;
+
+  private List<byte[]> pages;
+  private IParser parser;
+  private ElementProjection<PatientNames> projection;
+
+  @Setup
+  public void setUp() throws IOException {
+    pages = pages(elements ? Set.of("Patient.name") : null);
+    parser = FhirClientFactory.getContext().newJsonParser();
+    projection = PatientNames.projection();
+
+    // both readers have to see the same names, or the comparison is meaningless
+    PatientNames fromModel = fullModel(parser, pages.get(0)).get(7);
+    List<PatientNames> projected = new ArrayList<>();
+    projection.read(new ByteArrayInputStream(pages.get(0)), projected::add);
+    PatientNames fromProjection = projected.get(7);
+    if (!fromModel.getFamily().equals(fromProjection.getFamily())
+        || !fromModel.getGiven().equals(fromProjection.getGiven())
+        || !fromModel.getMaidenFamily().equals(fromProjection.getMaidenFamily())
+        || !fromModel.getOwnName().equals(fromProjection.getOwnName())) {
+      throw new IllegalStateException("projection and full model disagree");
+    }
+  }
+
+  @Benchmark
+  public void fullModel(Blackhole blackhole) {
+    for (byte[] page : pages) {
+      blackhole.consume(fullModel(parser, page));
+    }
+  }
+
+  @Benchmark
+  public void projection(Blackhole blackhole) {
+    for (byte[] page : pages) {
+      blackhole.consume(project(projection, page));
+    }
+  }
+
+  // the select-elements sample before the projection
+  private static List<PatientNames> fullModel(IParser parser, byte[] page) {
+    Bundle bundle = parser.parseResource(Bundle.class, new String(page, StandardCharsets.UTF_8));
+    List<PatientNames> names = new ArrayList<>(bundle.getEntry().size());
+    for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+      Patient patient = (Patient) entry.getResource();
+      HumanName official =
+          patient.getName().stream().filter(n -> n.getUse() == NameUse.OFFICIAL).findAny().get();
+      HumanName maiden =
+          patient.getName().stream().filter(n -> n.getUse() == NameUse.MAIDEN).findAny().get();
+      Extension ownName = maiden.getExtensionByUrl(OWN_NAME);
+      names.add(
+          new PatientNames(
+              patient.getIdElement().getIdPart(),
+              official.getFamily(),
+              official.getGivenAsSingleString(),
+              maiden.getFamily(),
+              maiden.getGivenAsSingleString(),
+              ((StringType) ownName.getValue()).getValue()));
+    }
+    return names;
+  }
+
+  private static List<PatientNames> project(
+      ElementProjection<PatientNames> projection, byte[] page) {
+    List<PatientNames> names = new ArrayList<>(PAGE_SIZE);
+    try {
+      projection.read(new ByteArrayInputStream(page), names::add);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return names;
+  }
+
+  // search result pages as a server sends them, optionally restricted like _elements does
+  private static List<byte[]> pages(Set<String> elements) {
+    IParser parser = FhirClientFactory.getContext().newJsonParser();
+    if (elements != null) {
+      parser.setEncodeElements(elements);
+    }
+    IsikResourceFactory factory = IsikResourceFactory.getDefault();
+    Date birthDate = new Date();
+    List<byte[]> pages = new ArrayList<>();
+    for (int start = 0; start < PATIENTS; start += PAGE_SIZE) {
+      Bundle page = new Bundle().setType(BundleType.SEARCHSET);
+      page.setTotal(PATIENTS);
+      page.addLink().setRelation(Bundle.LINK_NEXT).setUrl("http://localhost/next?page=" + start);
+      for (int i = start; i < start + PAGE_SIZE; i++) {
+        Patient patient =
+            factory.createPatient(
+                Integer.toString(i), "Nachname" + i, "Vorname" + i, "Geburtsname" + i, birthDate);
+        patient.setId("Patient/" + i);
+        page.addEntry()
+            .setFullUrl("http://localhost/Patient/" + i)
+            .setResource(patient)
+            .getSearch()
+            .setMode(Bundle.SearchEntryMode.MATCH);
+      }
+      pages.add(parser.encodeResourceToString(page).getBytes(StandardCharsets.UTF_8));
+    }
+    return pages;
+  }
+}
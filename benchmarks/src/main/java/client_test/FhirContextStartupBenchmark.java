@@ -0,0 +1,49 @@
+package client_test;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.Patient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Context, client, parser and first encode as every sample main did it, against the shared
+ * FhirClientFactory. Run with {@code -bm ss -wi 0 -i 1 -f 10} to see the first run including class
+ * loading.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FhirContextStartupBenchmark {
+
+  private Patient patient;
+
+  @Setup
+  public void setUp() {
+    patient = IsikResourceFactory.getDefault().createPatient();
+  }
+
+  @Benchmark
+  public String newContext() {
+    FhirContext ctx = FhirContext.forR4();
+    ctx.newRestfulGenericClient(FhirClientFactory.DEFAULT_SERVER_BASE);
+    return ctx.newJsonParser().setPrettyPrint(true).encodeResourceToString(patient);
+  }
+
+  @Benchmark
+  public String sharedContext() {
+    FhirClientFactory.getClient();
+    return FhirClientFactory.getJsonParser().encodeResourceToString(patient);
+  }
+}
@@ -0,0 +1,80 @@
+package client_test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.hl7.fhir.r4.hapi.fluentpath.FhirPathR4;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.ExpressionNode;
+import org.hl7.fhir.r4.model.Patient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The maiden name extension lookup of FhirPathTester, ad hoc, through FhirPathService and over a
+ * parallel stream of 10k patients.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FhirPathEvaluateBenchmark {
+
+  private static final String EXPRESSION =
+      "Patient.name.where(use ="
+          + " 'maiden').extension('http://hl7.org/fhir/StructureDefinition/humanname-own-name').value";
+
+  private static final int PARALLEL_RESOURCES = 10_000;
+
+  private Patient patient;
+  private List<Patient> patients;
+  private FhirPathR4 fhirPath;
+  private FhirPathService service;
+  private ExpressionNode compiled;
+
+  @Setup
+  public void setUp() {
+    patient = IsikResourceFactory.getDefault().createPatient();
+    fhirPath = new FhirPathR4(FhirClientFactory.getContext());
+    service = FhirPathService.getInstance();
+    compiled = service.compile(EXPRESSION);
+    patients =
+        IntStream.range(0, PARALLEL_RESOURCES)
+            .mapToObj(i -> IsikResourceFactory.getDefault().createPatient())
+            .collect(Collectors.toList());
+  }
+
+  @Benchmark
+  public List<Base> fhirPathR4() {
+    return fhirPath.evaluate(patient, EXPRESSION, Base.class);
+  }
+
+  @Benchmark
+  public List<Base> cached() {
+    return service.evaluate(patient, EXPRESSION);
+  }
+
+  @Benchmark
+  public List<Base> compiled() {
+    return service.evaluate(patient, compiled);
+  }
+
+  // summing the results makes sure every evaluation runs, count() alone could skip the mapping
+  @Benchmark
+  public int parallelStream() {
+    return service
+        .evaluate(patients.stream(), EXPRESSION, (p, result) -> result.size())
+        .reduce(0, Integer::sum);
+  }
+}
@@ -0,0 +1,172 @@
+package client_test;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Patient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Patient, Encounter and Condition transactions through a {@link ClientOutbox}: what an append
+ * costs the producer while the server is down, with and without forcing every append to disk,
+ * against sending the transaction to an {@link EmbeddedFhirServer} directly, and how fast a backlog
+ * drains into the server. The scores are per transaction. OutboxCheck covers that draining and
+ * replaying create every case exactly once.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+// without TCP_NODELAY every small response waits for the delayed ACK of the client
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+public class OutboxBenchmark {
+
+  private static final int APPENDS = 1_000;
+  private static final int BACKLOG = 5_000;
+
+  /** A fresh outbox for every batch of appends, so the log does not grow over the run. */
+  @State(Scope.Benchmark)
+  public static class Appends {
+    @Param({"false", "true"})
+    public boolean syncEveryAppend;
+
+    List<Bundle> transactions = createTransactions(APPENDS);
+    Path directory;
+    ClientOutbox outbox;
+
+    @Setup(Level.Invocation)
+    public void open() throws IOException {
+      directory = Files.createTempDirectory("outbox");
+      outbox =
+          ClientOutbox.open(
+              directory,
+              ResourceCodec.binary(),
+              ClientOutbox.DEFAULT_SEGMENT_SIZE,
+              syncEveryAppend);
+    }
+
+    @TearDown(Level.Invocation)
+    public void close() throws IOException {
+      outbox.close();
+      delete(directory);
+    }
+  }
+
+  /** An embedded server for the direct sends. */
+  @State(Scope.Benchmark)
+  public static class Server {
+    List<Bundle> transactions = createTransactions(APPENDS);
+    EmbeddedFhirServer server;
+    IGenericClient client;
+    int next;
+
+    @Setup
+    public void start() throws IOException {
+      server = EmbeddedFhirServer.start();
+      client = FhirClientFactory.getClient(server.getServerBase(), WireProfile.COMPACT);
+    }
+
+    @TearDown
+    public void stop() {
+      server.close();
+    }
+  }
+
+  /** A backlog written while the server was down and a fresh server to drain it into. */
+  @State(Scope.Benchmark)
+  public static class Backlog {
+    List<Bundle> transactions = createTransactions(BACKLOG);
+    Path directory;
+    ClientOutbox outbox;
+    EmbeddedFhirServer server;
+    IGenericClient client;
+
+    @Setup(Level.Iteration)
+    public void fill() throws IOException {
+      directory = Files.createTempDirectory("outbox");
+      outbox = ClientOutbox.open(directory);
+      transactions.forEach(outbox::transaction);
+      outbox.flush();
+      server = EmbeddedFhirServer.start();
+      client = FhirClientFactory.getClient(server.getServerBase(), WireProfile.COMPACT);
+    }
+
+    @TearDown(Level.Iteration)
+    public void close() throws IOException {
+      server.close();
+      outbox.close();
+      delete(directory);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(APPENDS)
+  public void append(Appends appends) {
+    for (Bundle transaction : appends.transactions) {
+      appends.outbox.transaction(transaction);
+    }
+  }
+
+  @Benchmark
+  public Bundle sendDirect(Server server) {
+    Bundle transaction = server.transactions.get(server.next++ % APPENDS);
+    return server.client.transaction().withBundle(transaction).execute();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OperationsPerInvocation(BACKLOG)
+  public long drain(Backlog backlog) throws InterruptedException {
+    try (OutboxDrainer drainer = new OutboxDrainer(backlog.outbox, backlog.client).start()) {
+      if (!drainer.awaitDrained(10, TimeUnit.MINUTES)) {
+        throw new IllegalStateException("backlog not drained: " + backlog.outbox.getBacklog());
+      }
+      return drainer.getSentCount();
+    }
+  }
+
+  private static List<Bundle> createTransactions(int count) {
+    IsikResourceFactory factory = IsikResourceFactory.getDefault();
+    List<Bundle> transactions = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      Date date = new Date(1_600_000_000_000L + i * 3_600_000L);
+      Patient patient =
+          factory.createPatient("P" + i, "Nachname" + i, "Vorname", "Geburtsname", date);
+      Encounter encounter = factory.createEncounter(patient, "F" + i, date);
+      Condition condition = factory.createCondition(patient, encounter, date);
+      transactions.add(
+          HapiClientStarterTransactionBundle.createTransactionBundle(
+              List.of(patient, encounter, condition)));
+    }
+    return transactions;
+  }
+
+  private static void delete(Path directory) throws IOException {
+    try (Stream<Path> files = Files.walk(directory)) {
+      files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+    }
+  }
+}
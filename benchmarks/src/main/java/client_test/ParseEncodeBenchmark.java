@@ -0,0 +1,84 @@
+package client_test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * encodeResourceToString and parseResource of the sample Patient, Encounter and Condition, and the
+ * same with {@link FhirBinaryParser}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ParseEncodeBenchmark {
+
+  @Param({"JSON", "XML", "BINARY"})
+  public String encoding;
+
+  @Param({"Patient", "Encounter", "Condition"})
+  public String resourceType;
+
+  private IParser parser;
+  private FhirBinaryParser binary;
+  private Resource resource;
+  private String encoded;
+  private byte[] bytes;
+
+  @Setup
+  public void setUp() {
+    FhirContext ctx = FhirClientFactory.getContext();
+    parser = "JSON".equals(encoding) ? ctx.newJsonParser() : ctx.newXmlParser();
+    IsikResourceFactory resources = IsikResourceFactory.getDefault();
+    Patient patient = resources.createPatient();
+    patient.setId("Patient/1");
+    Encounter encounter = resources.createEncounter(patient);
+    encounter.setId("Encounter/1");
+    switch (resourceType) {
+      case "Patient":
+        resource = patient;
+        break;
+      case "Encounter":
+        resource = encounter;
+        break;
+      default:
+        resource = resources.createCondition(patient, encounter);
+    }
+    encoded = parser.encodeResourceToString(resource);
+    if ("BINARY".equals(encoding)) {
+      binary = FhirBinaryParser.getDefault();
+      bytes = binary.encodeResourceToBytes(resource);
+    }
+  }
+
+  @Benchmark
+  public Object encode() {
+    return binary != null
+        ? binary.encodeResourceToBytes(resource)
+        : parser.encodeResourceToString(resource);
+  }
+
+  @Benchmark
+  public Resource parse() {
+    return binary != null
+        ? binary.parseResource(resource.getClass(), bytes)
+        : parser.parseResource(resource.getClass(), encoded);
+  }
+}
@@ -0,0 +1,226 @@
+package client_test;
+
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Encounter.EncounterStatus;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encounter updates as a case system sends them, status and period changes plus a location, once as
+ * full updates and once through {@link PatchUpdater}, against an {@link EmbeddedFhirServer}. Every
+ * update switches the next Encounter between in progress and finished. The Diff benchmarks are what
+ * the diff itself costs, next to encoding the Encounter into a tree.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+// without TCP_NODELAY every small response waits for the delayed ACK of the client
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+public class PatchUpdaterBenchmark {
+
+  private static final int ENCOUNTERS = 500;
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  /**
+   * Request bytes. JMH sums event counters over the measurement iterations, so these are totals;
+   * divide by updates for the bytes per update.
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Traffic {
+    public long updates;
+    public long requestBytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      updates = 0;
+      requestBytes = 0;
+    }
+  }
+
+  /** An Encounter and the same Encounter with one or with three changes, as JSON trees. */
+  @State(Scope.Benchmark)
+  public static class Diff {
+    @Param({"1", "3"})
+    public int changes;
+
+    Encounter target;
+    JsonNode baseJson;
+    JsonNode targetJson;
+
+    @Setup
+    public void setUp() throws IOException {
+      Encounter base = IsikResourceFactory.getDefault().createEncounter(new Patient());
+      base.setId("Encounter/1");
+      base.setSubject(new Reference("Patient/1"));
+      target = base.copy().setStatus(EncounterStatus.FINISHED);
+      if (changes == 3) {
+        target.getPeriod().setEnd(new Date());
+        target.addLocation().getLocation().setReference("Location/ward-1");
+      }
+      baseJson = tree(base);
+      targetJson = tree(target);
+      JsonNode patch = JsonPatch.diff(baseJson, targetJson);
+      if (patch.size() != changes || !JsonPatch.apply(baseJson, patch).equals(targetJson)) {
+        throw new IllegalStateException("patch does not reproduce the target: " + patch);
+      }
+    }
+  }
+
+  /** Two sets of Encounters on an embedded server, one for full updates and one for patches. */
+  @State(Scope.Benchmark)
+  public static class Encounters {
+    EmbeddedFhirServer server;
+    IGenericClient client;
+    List<Encounter> updated;
+    List<Encounter> patched;
+    PatchUpdater updater;
+    int nextUpdated;
+    int nextPatched;
+
+    @Setup
+    public void setUp() throws IOException {
+      server = EmbeddedFhirServer.start();
+      client = FhirClientFactory.getClient(server.getServerBase(), WireProfile.COMPACT);
+      Patient patient = IsikResourceFactory.getDefault().createPatient();
+      patient.setId(client.create().resource(patient).execute().getId().toUnqualifiedVersionless());
+      updated = createEncounters(patient);
+      patched = createEncounters(patient);
+      updater = new PatchUpdater(client);
+      patched.forEach(updater::track);
+
+      // the server ends up with the same Encounters either way
+      for (int i = 0; i < 3 * ENCOUNTERS; i++) {
+        fullUpdate(new Traffic());
+        patchUpdate(new Traffic());
+      }
+      for (int i = 0; i < ENCOUNTERS; i += 50) {
+        Encounter expected = read(updated.get(i));
+        Encounter actual = read(patched.get(i));
+        expected.setMeta(null).setId((String) null);
+        actual.setMeta(null).setId((String) null);
+        if (!expected.equalsDeep(actual)) {
+          throw new IllegalStateException("patched Encounter differs from the updated one");
+        }
+      }
+    }
+
+    @TearDown
+    public void tearDown() {
+      server.close();
+    }
+
+    MethodOutcome fullUpdate(Traffic traffic) {
+      Encounter encounter = updated.get(nextUpdated++ % ENCOUNTERS);
+      toggle(encounter);
+      String body = FhirClientFactory.getCompactJsonParser().encodeResourceToString(encounter);
+      MethodOutcome outcome =
+          client
+              .update()
+              .resource(body)
+              .withId(encounter.getIdElement().toUnqualifiedVersionless())
+              .execute();
+      encounter.setId(outcome.getId());
+      traffic.updates++;
+      traffic.requestBytes += body.getBytes(StandardCharsets.UTF_8).length;
+      return outcome;
+    }
+
+    MethodOutcome patchUpdate(Traffic traffic) {
+      Encounter encounter = patched.get(nextPatched++ % ENCOUNTERS);
+      toggle(encounter);
+      long before = updater.getRequestBytes();
+      MethodOutcome outcome = updater.update(encounter);
+      traffic.updates++;
+      traffic.requestBytes += updater.getRequestBytes() - before;
+      return outcome;
+    }
+
+    private List<Encounter> createEncounters(Patient patient) {
+      List<Encounter> encounters = new ArrayList<>(ENCOUNTERS);
+      for (int i = 0; i < ENCOUNTERS; i++) {
+        Encounter encounter =
+            IsikResourceFactory.getDefault()
+                .createEncounter(patient, "case-" + i, new Date(1_600_000_000_000L));
+        encounter.setSubject(new Reference(patient.getIdElement()));
+        encounter.setStatus(EncounterStatus.INPROGRESS);
+        encounter.setId(client.create().resource(encounter).execute().getId());
+        encounters.add(encounter);
+      }
+      return encounters;
+    }
+
+    private Encounter read(Encounter encounter) {
+      return client
+          .read()
+          .resource(Encounter.class)
+          .withId(encounter.getIdElement().toUnqualifiedVersionless())
+          .execute();
+    }
+  }
+
+  @Benchmark
+  public MethodOutcome fullUpdate(Encounters encounters, Traffic traffic) {
+    return encounters.fullUpdate(traffic);
+  }
+
+  @Benchmark
+  public MethodOutcome patchUpdate(Encounters encounters, Traffic traffic) {
+    return encounters.patchUpdate(traffic);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public JsonNode diff(Diff diff) {
+    return JsonPatch.diff(diff.baseJson, diff.targetJson);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public JsonNode encodeToTree(Diff diff) throws IOException {
+    return tree(diff.target);
+  }
+
+  // in progress to finished with the end of the period and a ward, and back
+  private static void toggle(Encounter encounter) {
+    if (encounter.getStatus() == EncounterStatus.FINISHED) {
+      encounter.setStatus(EncounterStatus.INPROGRESS);
+      encounter.getPeriod().setEndElement(null);
+      encounter.setLocation(null);
+    } else {
+      encounter.setStatus(EncounterStatus.FINISHED);
+      encounter.getPeriod().setEnd(new Date(1_600_086_400_000L));
+      encounter.addLocation().getLocation().setReference("Location/ward-1");
+    }
+  }
+
+  private static JsonNode tree(Encounter encounter) throws IOException {
+    return MAPPER.readTree(
+        FhirClientFactory.getCompactJsonParser().encodeResourceToString(encounter));
+  }
+}
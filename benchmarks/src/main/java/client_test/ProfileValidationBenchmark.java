@@ -0,0 +1,76 @@
+package client_test;
+
+import ca.uhn.fhir.validation.ValidationResult;
+import java.nio.file.Paths;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.hl7.fhir.r4.model.Patient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ProfileValidator against the packages in {@code packageDirectory}: building the support chain
+ * with the first validation, one warm validation, and a parallel stream of 10k patients.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProfileValidationBenchmark {
+
+  private static final int PARALLEL_RESOURCES = 10_000;
+
+  @Param({"packages"})
+  public String packageDirectory;
+
+  private ProfileValidator validator;
+  private Patient patient;
+  private List<Patient> patients;
+
+  @Setup
+  public void setUp() {
+    validator = new ProfileValidator(FhirClientFactory.getContext(), Paths.get(packageDirectory));
+    IsikResourceFactory resources = IsikResourceFactory.getDefault();
+    patient = resources.createPatient();
+    patients =
+        IntStream.range(0, PARALLEL_RESOURCES)
+            .mapToObj(
+                i ->
+                    resources.createPatient(
+                        Integer.toString(i), "Nachname", "Vorname", "Geburtsname", new Date()))
+            .collect(Collectors.toList());
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  public ValidationResult buildChainAndValidate() {
+    return new ProfileValidator(FhirClientFactory.getContext(), Paths.get(packageDirectory))
+        .validate(patient);
+  }
+
+  @Benchmark
+  public ValidationResult validate() {
+    return validator.validate(patient);
+  }
+
+  @Benchmark
+  public int validateParallel() {
+    return validator
+        .validate(patients.stream(), (p, result) -> result.isSuccessful() ? 0 : 1)
+        .reduce(0, Integer::sum);
+  }
+}
@@ -0,0 +1,141 @@
+package client_test;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.hl7.fhir.r4.model.Patient;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One Patient read with client.read(), through a ResourceCache that revalidates every read (the
+ * stub server answers 304 for the current version) and through one within its TTL. The counters are
+ * the requests and response bytes to the reads.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+// without TCP_NODELAY every small response waits for the delayed ACK of the client
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+@State(Scope.Benchmark)
+public class ResourceCacheBenchmark {
+
+  private static final AtomicLong requests = new AtomicLong();
+  private static final AtomicLong responseBytes = new AtomicLong();
+
+  private HttpServer server;
+  private IGenericClient client;
+  private ResourceCache revalidating;
+  private ResourceCache fresh;
+
+  /**
+   * Server traffic. JMH sums event counters over the measurement iterations, so these are totals;
+   * divide by reads for the traffic per read.
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Traffic {
+    public long reads;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      reads = 0;
+      requests.set(0);
+      responseBytes.set(0);
+    }
+
+    public long requests() {
+      return requests.get();
+    }
+
+    public long responseBytes() {
+      return responseBytes.get();
+    }
+  }
+
+  @Setup
+  public void setUp() throws IOException {
+    server = startServer();
+    client = FhirClientFactory.getClient("http://localhost:" + server.getAddress().getPort());
+    revalidating = new ResourceCache(client, 100, Duration.ZERO);
+    fresh = new ResourceCache(client);
+  }
+
+  @TearDown
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  @Benchmark
+  public Patient clientRead(Traffic traffic) {
+    traffic.reads++;
+    return client.read().resource(Patient.class).withId("1").execute();
+  }
+
+  @Benchmark
+  public Patient revalidated(Traffic traffic) {
+    traffic.reads++;
+    return revalidating.read(Patient.class, "1");
+  }
+
+  @Benchmark
+  public Patient withinTimeToLive(Traffic traffic) {
+    traffic.reads++;
+    return fresh.read(Patient.class, "1");
+  }
+
+  // serves one Patient with version 1 and answers If-None-Match: "1" (HAPI sends the version
+  // without W/) with 304
+  private static HttpServer startServer() throws IOException {
+    Patient patient = IsikResourceFactory.getDefault().createPatient();
+    patient.setId("1");
+    patient.getMeta().setVersionId("1");
+    byte[] json =
+        FhirClientFactory.getJsonParser()
+            .encodeResourceToString(patient)
+            .getBytes(StandardCharsets.UTF_8);
+
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext(
+        "/",
+        exchange -> {
+          requests.incrementAndGet();
+          exchange.getResponseHeaders().add("ETag", "W/\"1\"");
+          String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+          if (ifNoneMatch != null && ifNoneMatch.contains("\"1\"")) {
+            // without the request body consumed the JDK server closes the connection after a
+            // response without a body, and the client retries on a stale pooled connection
+            exchange.getRequestBody().close();
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+          }
+          exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+          exchange.sendResponseHeaders(200, json.length);
+          try (OutputStream out = exchange.getResponseBody()) {
+            out.write(json);
+          }
+          responseBytes.addAndGet(json.length);
+        });
+    server.start();
+    return server;
+  }
+}
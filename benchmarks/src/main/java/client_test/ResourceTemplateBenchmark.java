@@ -0,0 +1,162 @@
+package client_test;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.HumanName.NameUse;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.StringType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A Patient/Encounter/Condition graph built with setters and from the IsikResourceFactory
+ * templates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ResourceTemplateBenchmark {
+
+  private final IsikResourceFactory factory = IsikResourceFactory.getDefault();
+  private final Date date = new Date();
+  private int counter;
+
+  @Benchmark
+  public Condition handBuilt() {
+    String id = Integer.toString(counter++);
+    Patient patient = buildPatient(id, date);
+    Encounter encounter = buildEncounter(patient, id, date);
+    return buildCondition(patient, encounter, date);
+  }
+
+  @Benchmark
+  public Condition template() {
+    String id = Integer.toString(counter++);
+    Patient patient = factory.createPatient(id, "Nachname", "Vorname", "Geburtsname", date);
+    Encounter encounter = factory.createEncounter(patient, id, date);
+    return factory.createCondition(patient, encounter, date);
+  }
+
+  // the builders the samples used before the templates, kept as the baseline
+  private static Patient buildPatient(String patientId, Date birthDate) {
+    Patient patient = new Patient();
+    patient.getMeta().addProfile("https://gematik.de/fhir/ISiK/StructureDefinition/ISiKPatient");
+    CodeableConcept cc = new CodeableConcept();
+    cc.addCoding().setSystem("http://terminology.hl7.org/CodeSystem/v2-0203").setCode("MR");
+    patient
+        .addIdentifier()
+        .setSystem("http://meinkrankhaus.de/fhir/sid/patientId")
+        .setValue(patientId)
+        .setType(cc);
+    patient.setActive(true);
+    patient.addName().setUse(NameUse.OFFICIAL).setFamily("Nachname").addGiven("Vorname");
+    patient
+        .addName()
+        .setUse(NameUse.MAIDEN)
+        .setFamily("Geburtsname")
+        .addGiven("Vorname")
+        .addExtension()
+        .setUrl("http://hl7.org/fhir/StructureDefinition/humanname-own-name")
+        .setValue(new StringType("Maidenextension"));
+    patient.setGender(AdministrativeGender.OTHER);
+    patient.setBirthDate(birthDate);
+    return patient;
+  }
+
+  private static Condition buildCondition(Patient patient, Encounter encounter, Date recorded) {
+    Condition condition = new Condition();
+    condition.setRecordedDate(recorded);
+    condition
+        .getClinicalStatus()
+        .addCoding()
+        .setSystem("http://terminology.hl7.org/CodeSystem/condition-clinical")
+        .setCode("active");
+    condition.setSubject(new Reference(patient));
+    condition.setEncounter(new Reference(encounter));
+    condition
+        .getCode()
+        .addCoding()
+        .setSystem("http://snomed.info/sct")
+        .setCode("389145006")
+        .setDisplay("allergisches Asthma");
+    condition
+        .getCode()
+        .addCoding()
+        .setSystem("http://fhir.de/CodeSystem/bfarm/icd-10-gm")
+        .setCode("J45.0")
+        .setDisplay("Vorwiegend allergisches Asthma bronchiale");
+    return condition;
+  }
+
+  private static Encounter buildEncounter(Patient patient, String caseNumber, Date start) {
+    Encounter enc = new Encounter();
+    Identifier identifier = enc.addIdentifier();
+    identifier
+        .getType()
+        .addCoding()
+        .setSystem("http://terminology.hl7.org/CodeSystem/v2-0203")
+        .setCode("VN");
+    identifier.setSystem("http://meinkrankenhaus.de/sid/Fallnummer").setValue(caseNumber);
+    enc.getServiceType()
+        .addCoding()
+        .setSystem("http://fhir.de/CodeSystem/dkgev/Fachabteilungsschluessel")
+        .setCode("0300")
+        .setDisplay("Kardiologie");
+    enc.getPeriod().setStart(start);
+    enc.setSubject(new Reference(patient));
+    enc.getClass_()
+        .setSystem("http://terminology.hl7.org/CodeSystem/v3-ActCode")
+        .setCode("IMP")
+        .setDisplay("inpatient encounter");
+    enc.getHospitalization()
+        .getAdmitSource()
+        .addCoding()
+        .setSystem("http://fhir.de/CodeSystem/dgkev/Aufnahmeanlass")
+        .setCode("N")
+        .setDisplay("Notfall");
+    Extension extension = enc.addExtension();
+    extension.setUrl("http://fhir.de/StructureDefinition/Aufnahmegrund");
+    extension
+        .addExtension()
+        .setUrl("ErsteUndZweiteStelle")
+        .setValue(
+            new Coding()
+                .setSystem("http://fhir.de/CodeSystem/dkgev/AufnahmegrundErsteUndZweiteStelle")
+                .setCode("01")
+                .setDisplay("Krankenhausbehandlung, vollstationär"));
+    extension
+        .addExtension()
+        .setUrl("DritteStelle")
+        .setValue(
+            new Coding()
+                .setSystem("http://fhir.de/CodeSystem/dkgev/AufnahmegrundDritteStelle")
+                .setCode("0"));
+    extension
+        .addExtension()
+        .setUrl("VierteStelle")
+        .setValue(
+            new Coding()
+                .setSystem("http://fhir.de/CodeSystem/dkgev/AufnahmegrundVierteStelle")
+                .setCode("1")
+                .setDisplay("Normalfall"));
+    return enc;
+  }
+}
@@ -0,0 +1,71 @@
+package client_test;
+
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.HumanName.NameUse;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.ResourceType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The lookups of HapiClientStarterTransactionBundle.selectItemsFromBundle (first Patient, official
+ * and maiden name, own-name extension) on a search Bundle, without the printing.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SelectItemsBenchmark {
+
+  @Param({"10", "1000"})
+  public int conditions;
+
+  private Bundle bundle;
+  private BundleIndex index;
+
+  @Setup
+  public void setUp() {
+    bundle = BenchmarkFixtures.createSearchBundle(conditions);
+    index = new BundleIndex(bundle);
+  }
+
+  @Benchmark
+  public void indexAndSelect(Blackhole blackhole) {
+    select(new BundleIndex(bundle), blackhole);
+  }
+
+  @Benchmark
+  public void selectFromIndex(Blackhole blackhole) {
+    select(index, blackhole);
+  }
+
+  private static void select(BundleIndex index, Blackhole blackhole) {
+    Patient patient = index.getFirst(ResourceType.Patient, Patient.class).get();
+    for (HumanName name : patient.getName()) {
+      if (name.getUse() == NameUse.OFFICIAL) {
+        blackhole.consume(name.getFamily());
+        blackhole.consume(name.getGivenAsSingleString());
+      } else if (name.getUse() == NameUse.MAIDEN) {
+        blackhole.consume(name.getFamily());
+        Extension extension =
+            name.getExtensionByUrl("http://hl7.org/fhir/StructureDefinition/humanname-own-name");
+        blackhole.consume(extension.getValue().primitiveValue());
+      }
+    }
+  }
+}
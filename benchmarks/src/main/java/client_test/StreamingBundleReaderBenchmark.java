@@ -0,0 +1,100 @@
+package client_test;
+
+import ca.uhn.fhir.parser.IParser;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * A large searchset read as one Bundle and through StreamingBundleReader. The allocation is in
+ * gc.alloc.rate.norm; for the heap ceiling add a small heap and more entries, e.g. {@code
+ * -jvmArgsAppend -Xmx128m -p entries=100000}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StreamingBundleReaderBenchmark {
+
+  @Param({"1000", "20000"})
+  public int entries;
+
+  private HttpServer server;
+  private String url;
+
+  @Setup
+  public void setUp() throws IOException {
+    server = startServer(entries);
+    url = "http://localhost:" + server.getAddress().getPort() + "/Patient";
+  }
+
+  @TearDown
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  @Benchmark
+  public Bundle materialised() {
+    return FhirClientFactory.getClient(url.substring(0, url.lastIndexOf('/')))
+        .search()
+        .byUrl(url)
+        .returnBundle(Bundle.class)
+        .execute();
+  }
+
+  @Benchmark
+  public void streamed(Blackhole blackhole) throws IOException {
+    new StreamingBundleReader().search(url, blackhole::consume);
+  }
+
+  // writes the searchset entry by entry, so the server side does not hold the bundle either
+  private static HttpServer startServer(int entryCount) throws IOException {
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext(
+        "/Patient",
+        exchange -> {
+          IParser parser = FhirClientFactory.getContext().newJsonParser();
+          Patient patient = IsikResourceFactory.getDefault().createPatient();
+          exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+          exchange.sendResponseHeaders(200, 0);
+          try (OutputStream out = exchange.getResponseBody()) {
+            write(out, "{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"total\":");
+            write(out, entryCount + ",\"entry\":[");
+            for (int i = 0; i < entryCount; i++) {
+              patient.setId("Patient/" + i);
+              write(out, i == 0 ? "{" : ",{");
+              write(out, "\"fullUrl\":\"http://localhost/Patient/" + i + "\",\"resource\":");
+              write(out, parser.encodeResourceToString(patient));
+              write(out, ",\"search\":{\"mode\":\"match\"}}");
+            }
+            write(out, "]}");
+          }
+        });
+    server.start();
+    return server;
+  }
+
+  private static void write(OutputStream out, String s) throws IOException {
+    out.write(s.getBytes(StandardCharsets.UTF_8));
+  }
+}
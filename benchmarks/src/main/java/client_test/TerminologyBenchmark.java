@@ -0,0 +1,292 @@
+package client_test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.ConceptValidationOptions;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.hl7.fhir.common.hapi.validation.support.InMemoryTerminologyServerValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.PrePopulatedValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.Condition;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Code lookups in a SNOMED-sized CodeSystem: TerminologyIndex on and off heap, a HashMap of the
+ * same codes, and the in-memory terminology service of HAPI. The setup of every index prints the
+ * heap and direct memory the loaded index keeps.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TerminologyBenchmark {
+
+  // about the number of active SNOMED CT concepts
+  private static final int CONCEPTS = 350_000;
+  private static final int VALUE_SET_CONCEPTS = 10_000;
+  private static final int LOOKUPS = 1024;
+  private static final String SYSTEM = "http://snomed.info/sct";
+  private static final String VALUE_SET = "http://example.org/fhir/ValueSet/findings";
+
+  /** The CodeSystem and a ValueSet of every 35th concept, written to a temporary directory. */
+  @State(Scope.Benchmark)
+  public static class Terminology {
+    Path directory;
+    Path codeSystem;
+    String[] codes;
+    String[] picks = new String[LOOKUPS];
+    String[] unknown = new String[LOOKUPS];
+
+    @Setup
+    public void setUp() throws IOException {
+      directory = Files.createTempDirectory("terminology");
+      codeSystem = directory.resolve("snomed.json");
+      codes = writeCodeSystem(codeSystem);
+      Files.writeString(directory.resolve("findings.json"), valueSet(codes));
+      Random random = new Random(1);
+      for (int i = 0; i < LOOKUPS; i++) {
+        picks[i] = codes[random.nextInt(codes.length)];
+        unknown[i] = Long.toString(900_000_000_000L + i);
+      }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+      try (Stream<Path> files = Files.walk(directory)) {
+        files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+      }
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class Index {
+    @Param({"false", "true"})
+    public boolean offHeap;
+
+    TerminologyIndex index;
+
+    @Setup
+    public void setUp(Terminology terminology) {
+      long heapBefore = usedHeap();
+      long directBefore = directMemory();
+      index = TerminologyIndex.load(terminology.directory, offHeap);
+      System.out.printf(
+          "%nindex with offHeap=%b keeps %d MB heap, %d MB direct%n",
+          offHeap, (usedHeap() - heapBefore) >> 20, (directMemory() - directBefore) >> 20);
+
+      Condition condition = IsikResourceFactory.getDefault().createCondition(null, null);
+      condition.getCode().getCodingFirstRep().setDisplay(null).setSystem(SYSTEM);
+      condition.getCode().getCodingFirstRep().setCode(terminology.codes[42]);
+      if (index.fillDisplays(condition) != 1) {
+        throw new IllegalStateException("no display filled in for " + terminology.codes[42]);
+      }
+    }
+  }
+
+  /** The same codes as keys of a HashMap, the usual hand-rolled cache. */
+  @State(Scope.Benchmark)
+  public static class HashMapCache {
+    Map<String, String> displays = new HashMap<>();
+
+    @Setup
+    public void setUp(Terminology terminology) {
+      Random random = new Random(42);
+      for (String code : terminology.codes) {
+        displays.put(SYSTEM + "|" + code, "display " + random.nextInt());
+      }
+    }
+  }
+
+  /** The in-memory terminology service of HAPI over the CodeSystem as a PrePopulated resource. */
+  @State(Scope.Benchmark)
+  public static class HapiTerminology {
+    IValidationSupport chain;
+    ValidationSupportContext context;
+
+    @Setup
+    public void setUp(Terminology terminology) throws IOException {
+      FhirContext ctx = FhirClientFactory.getContext();
+      PrePopulatedValidationSupport prePopulated = new PrePopulatedValidationSupport(ctx);
+      try (InputStream in = Files.newInputStream(terminology.codeSystem)) {
+        prePopulated.addCodeSystem(
+            FhirClientFactory.getJsonParser().parseResource(CodeSystem.class, in));
+      }
+      chain =
+          new ValidationSupportChain(
+              prePopulated, new InMemoryTerminologyServerValidationSupport(ctx));
+      context = new ValidationSupportContext(chain);
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public TerminologyIndex load(Terminology terminology, Index index) {
+    return TerminologyIndex.load(terminology.directory, index.offHeap);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(LOOKUPS)
+  public int contains(Terminology terminology, Index index) {
+    int found = 0;
+    for (String code : terminology.picks) {
+      found += index.index.contains(SYSTEM, code) ? 1 : 0;
+    }
+    return found;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(LOOKUPS)
+  public int containsUnknown(Terminology terminology, Index index) {
+    int found = 0;
+    for (String code : terminology.unknown) {
+      found += index.index.contains(SYSTEM, code) ? 1 : 0;
+    }
+    return found;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(LOOKUPS)
+  public int display(Terminology terminology, Index index) {
+    int length = 0;
+    for (String code : terminology.picks) {
+      length += index.index.getDisplay(SYSTEM, code).length();
+    }
+    return length;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(LOOKUPS)
+  public int inValueSet(Terminology terminology, Index index) {
+    int found = 0;
+    for (String code : terminology.picks) {
+      found += index.index.validateCode(VALUE_SET, SYSTEM, code) ? 1 : 0;
+    }
+    return found;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(LOOKUPS)
+  public int hashMapDisplay(Terminology terminology, HashMapCache cache) {
+    int length = 0;
+    for (String code : terminology.picks) {
+      length += cache.displays.get(SYSTEM + "|" + code).length();
+    }
+    return length;
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public IValidationSupport.CodeValidationResult hapiValidateCode(
+      Terminology terminology, HapiTerminology hapi) {
+    String code = terminology.picks[ThreadLocalRandom.current().nextInt(LOOKUPS)];
+    return hapi.chain.validateCode(
+        hapi.context, new ConceptValidationOptions(), SYSTEM, code, null, null);
+  }
+
+  // SNOMED-like: numeric codes of 8 to 12 digits, displays of a few words, one level of children
+  private static String[] writeCodeSystem(Path file) throws IOException {
+    Random random = new Random(42);
+    String[] words =
+        ("acute chronic disorder of left right upper lower limb fracture finding procedure"
+                + " structure lesion infection syndrome renal cardiac")
+            .split(" ");
+    String[] codes = new String[CONCEPTS];
+    try (OutputStream out = Files.newOutputStream(file);
+        JsonGenerator json = new JsonFactory().createGenerator(out)) {
+      json.writeStartObject();
+      json.writeStringField("resourceType", "CodeSystem");
+      json.writeStringField("url", SYSTEM);
+      json.writeStringField("status", "active");
+      json.writeStringField("content", "complete");
+      json.writeArrayFieldStart("concept");
+      for (int i = 0; i < CONCEPTS; i++) {
+        codes[i] = Long.toString(10_000_000L + i * 1_000_003L + random.nextInt(1000));
+        boolean parent = i % 10 == 0 && i + 1 < CONCEPTS;
+        StringBuilder display = new StringBuilder();
+        for (int w = 3 + random.nextInt(4); w > 0; w--) {
+          display.append(words[random.nextInt(words.length)]).append(w > 1 ? " " : "");
+        }
+        json.writeStartObject();
+        json.writeStringField("code", codes[i]);
+        json.writeStringField("display", display.toString());
+        if (parent) {
+          json.writeArrayFieldStart("concept");
+          i++;
+          codes[i] = Long.toString(10_000_000L + i * 1_000_003L + random.nextInt(1000));
+          json.writeStartObject();
+          json.writeStringField("code", codes[i]);
+          json.writeStringField("display", display + " (child)");
+          json.writeEndObject();
+          json.writeEndArray();
+        }
+        json.writeEndObject();
+      }
+      json.writeEndArray();
+      json.writeEndObject();
+    }
+    return codes;
+  }
+
+  // a compose listing every 35th concept
+  private static String valueSet(String[] codes) {
+    StringBuilder concepts = new StringBuilder();
+    for (int i = 0; i < VALUE_SET_CONCEPTS; i++) {
+      concepts.append(i == 0 ? "" : ",").append("{\"code\":\"").append(codes[i * 35]).append("\"}");
+    }
+    return "{\"resourceType\":\"ValueSet\",\"url\":\""
+        + VALUE_SET
+        + "\",\"status\":\"active\",\"compose\":{\"include\":[{\"system\":\""
+        + SYSTEM
+        + "\",\"concept\":["
+        + concepts
+        + "]}]}}";
+  }
+
+  private static long usedHeap() {
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  private static long directMemory() {
+    for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+      if ("direct".equals(pool.getName())) {
+        return pool.getMemoryUsed();
+      }
+    }
+    return 0;
+  }
+}
@@ -0,0 +1,56 @@
+package client_test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** HapiClientStarterTransactionBundle.createTransactionBundle for growing patient graphs. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class TransactionBundleBenchmark {
+
+  @Param({"10", "1000", "10000", "100000"})
+  public int entries;
+
+  @Param({"CREATE", "CONDITIONAL_CREATE"})
+  public TransactionEntryMode mode;
+
+  private List<Resource> resources;
+
+  @Setup
+  public void setUp() {
+    resources = new ArrayList<>(entries);
+    while (resources.size() < entries) {
+      Patient patient = HapiClientStarterTransactionBundle.createPatient();
+      Encounter encounter = HapiClientStarterTransactionBundle.createEncounter(patient);
+      resources.add(patient);
+      resources.add(encounter);
+      resources.add(HapiClientStarterTransactionBundle.createCondition(patient, encounter));
+    }
+    resources = resources.subList(0, entries);
+  }
+
+  @Benchmark
+  public Bundle createTransactionBundle() {
+    return HapiClientStarterTransactionBundle.createTransactionBundle(resources, mode);
+  }
+}
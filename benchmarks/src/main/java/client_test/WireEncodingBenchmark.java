@@ -0,0 +1,143 @@
+package client_test;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Patient;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The Patient/Encounter/Condition transaction per WireProfile against a local server that answers
+ * with a canned response. The byte counters are the raw request and response bodies.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+// without TCP_NODELAY every small response waits for the delayed ACK of the client
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+@State(Scope.Benchmark)
+public class WireEncodingBenchmark {
+
+  private static final AtomicLong requestBytes = new AtomicLong();
+  private static final AtomicLong responseBytes = new AtomicLong();
+
+  @Param({"DEFAULT", "COMPACT"})
+  public WireProfile profile;
+
+  private HttpServer server;
+  private IGenericClient client;
+
+  /**
+   * Bytes on the wire. JMH sums event counters over the measurement iterations, so these are
+   * totals; divide by transactions for the bytes per transaction.
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Bytes {
+    public long transactions;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      transactions = 0;
+      requestBytes.set(0);
+      responseBytes.set(0);
+    }
+
+    public long requestBytes() {
+      return requestBytes.get();
+    }
+
+    public long responseBytes() {
+      return responseBytes.get();
+    }
+  }
+
+  @Setup
+  public void setUp() throws IOException {
+    server = startServer();
+    client =
+        FhirClientFactory.getClient("http://localhost:" + server.getAddress().getPort(), profile);
+  }
+
+  @TearDown
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  @Benchmark
+  public Bundle transaction(Bytes bytes) {
+    Bundle response = client.transaction().withBundle(createTransaction()).execute();
+    bytes.transactions++;
+    return response;
+  }
+
+  // the Patient/Encounter/Condition transaction of HapiClientStarterTransactionBundle
+  private static Bundle createTransaction() {
+    Patient pat = HapiClientStarterTransactionBundle.createPatient();
+    Encounter enc = HapiClientStarterTransactionBundle.createEncounter(pat);
+    Condition cond = HapiClientStarterTransactionBundle.createCondition(pat, enc);
+    return HapiClientStarterTransactionBundle.createTransactionBundle(List.of(pat, enc, cond));
+  }
+
+  // answers every transaction with a representation-style response and counts the raw bytes
+  private static HttpServer startServer() throws IOException {
+    Bundle response = createTransaction();
+    response.setType(BundleType.TRANSACTIONRESPONSE);
+    response.getEntry().forEach(e -> e.getResponse().setStatus("201 Created"));
+    byte[] json =
+        FhirClientFactory.getJsonParser()
+            .encodeResourceToString(response)
+            .getBytes(StandardCharsets.UTF_8);
+    ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+    try (GZIPOutputStream out = new GZIPOutputStream(gzipped)) {
+      out.write(json);
+    }
+
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext(
+        "/",
+        exchange -> {
+          requestBytes.addAndGet(exchange.getRequestBody().readAllBytes().length);
+          String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+          boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+          byte[] body = gzip ? gzipped.toByteArray() : json;
+          exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+          if (gzip) {
+            exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+          }
+          exchange.sendResponseHeaders(200, body.length);
+          try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+          }
+          responseBytes.addAndGet(body.length);
+        });
+    server.start();
+    return server;
+  }
+}
@@ -0,0 +1,159 @@
+package client_test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import org.hl7.fhir.instance.model.api.IBaseOperationOutcome;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Non-blocking counterpart of the {@code client.create()/update()/transaction()/search()} calls of
+ * the samples, on top of {@link java.net.http.HttpClient}. No thread waits for a response: every
+ * method returns at once and the future completes on the HTTP client's executor, so independent
+ * requests run concurrently and dependent ones are chained with {@code thenCompose}.
+ *
+ * <p>Responses with status 400 or above complete the future exceptionally with the {@link
+ * BaseServerResponseException} the blocking client would throw, carrying the raw body also when it
+ * is not a FHIR resource. Requests go out as compact JSON; the interceptors of the blocking
+ * clients, e.g. the metrics, are not involved.
+ */
+public class AsyncFhirClient {
+
+  private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(5);
+  private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(60);
+
+  private final String serverBase;
+  private final HttpClient httpClient;
+  private final ThreadLocal<IParser> parser;
+
+  public AsyncFhirClient(String serverBase) {
+    this(
+        FhirClientFactory.getContext(),
+        serverBase,
+        HttpClient.newBuilder().connectTimeout(CONNECT_TIMEOUT).build());
+  }
+
+  public AsyncFhirClient(FhirContext ctx, String serverBase, HttpClient httpClient) {
+    this.serverBase = serverBase.endsWith("/") ? serverBase : serverBase + "/";
+    this.httpClient = httpClient;
+    this.parser = ThreadLocal.withInitial(ctx::newJsonParser);
+  }
+
+  /** POSTs the resource to its type, the server assigns the id. */
+  public CompletableFuture<MethodOutcome> create(Resource resource) {
+    return send(request(resource.fhirType()).POST(body(resource))).thenApply(this::toOutcome);
+  }
+
+  /** PUTs the resource to Type/id, so it needs an id. */
+  public CompletableFuture<MethodOutcome> update(Resource resource) {
+    if (!resource.getIdElement().hasIdPart()) {
+      throw new IllegalArgumentException("an update needs a resource with an id");
+    }
+    String url = resource.fhirType() + "/" + resource.getIdElement().getIdPart();
+    return send(request(url).PUT(body(resource))).thenApply(this::toOutcome);
+  }
+
+  public CompletableFuture<Bundle> transaction(Bundle bundle) {
+    return send(request("").POST(body(bundle))).thenApply(r -> parse(r.body(), Bundle.class));
+  }
+
+  /**
+   * GETs a search relative to the server base, e.g. {@code Condition?_id=1&_include=...}, or an
+   * absolute URL like a next link.
+   */
+  public CompletableFuture<Bundle> search(String search) {
+    return send(request(search).GET()).thenApply(r -> parse(r.body(), Bundle.class));
+  }
+
+  public CompletableFuture<Bundle> nextPage(Bundle page) {
+    Bundle.BundleLinkComponent next = page.getLink(Bundle.LINK_NEXT);
+    if (next == null) {
+      return CompletableFuture.failedFuture(new IllegalArgumentException("no next link"));
+    }
+    return search(next.getUrl());
+  }
+
+  private HttpRequest.Builder request(String url) {
+    URI uri = URI.create(url.startsWith("http") ? url : serverBase + url);
+    return HttpRequest.newBuilder(uri)
+        .timeout(REQUEST_TIMEOUT)
+        .header(Constants.HEADER_ACCEPT, Constants.CT_FHIR_JSON_NEW)
+        .header(Constants.HEADER_CONTENT_TYPE, Constants.CT_FHIR_JSON_NEW);
+  }
+
+  private BodyPublisher body(IBaseResource resource) {
+    return BodyPublishers.ofString(parser.get().encodeResourceToString(resource));
+  }
+
+  private CompletableFuture<HttpResponse<String>> send(HttpRequest.Builder request) {
+    return httpClient
+        .sendAsync(request.build(), BodyHandlers.ofString())
+        .thenApply(this::checkStatus);
+  }
+
+  private HttpResponse<String> checkStatus(HttpResponse<String> response) {
+    if (response.statusCode() < 400) {
+      return response;
+    }
+    BaseServerResponseException error =
+        BaseServerResponseException.newInstance(
+            response.statusCode(), "HTTP " + response.statusCode() + " " + response.uri());
+    if (isResource(response.body())) {
+      try {
+        IBaseResource body = parser.get().parseResource(response.body());
+        if (body instanceof IBaseOperationOutcome) {
+          error.setOperationOutcome((IBaseOperationOutcome) body);
+        }
+      } catch (DataFormatException e) {
+        // JSON from a proxy or gateway, not a resource; the raw body below is all there is
+      }
+    }
+    error.setResponseBody(response.body());
+    throw error;
+  }
+
+  private MethodOutcome toOutcome(HttpResponse<String> response) {
+    MethodOutcome outcome = new MethodOutcome();
+    response
+        .headers()
+        .firstValue(Constants.HEADER_LOCATION)
+        .or(() -> response.headers().firstValue(Constants.HEADER_CONTENT_LOCATION))
+        .ifPresent(location -> outcome.setId(new IdType(location)));
+    outcome.setCreated(response.statusCode() == Constants.STATUS_HTTP_201_CREATED);
+    if (isResource(response.body())) {
+      IBaseResource resource = parser.get().parseResource(response.body());
+      if (resource instanceof IBaseOperationOutcome) {
+        outcome.setOperationOutcome((IBaseOperationOutcome) resource);
+      } else {
+        outcome.setResource(resource);
+        if (outcome.getId() == null) {
+          outcome.setId(resource.getIdElement());
+        }
+      }
+    }
+    return outcome;
+  }
+
+  private <T extends IBaseResource> T parse(String body, Class<T> type) {
+    return parser.get().parseResource(type, body);
+  }
+
+  private static boolean isResource(String body) {
+    return body != null && !body.isBlank() && body.trim().startsWith("{");
+  }
+}
@@ -0,0 +1,91 @@
+package client_test;
+
+import ca.uhn.fhir.parser.IParser;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.List;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+
+/**
+ * Checks that {@link FhirBinaryParser} round-trips with JSON for the Patient, Encounter and
+ * Condition samples and for the resource and type definitions of the R4 spec, which use nearly
+ * every datatype and extension form. Prints the encoded size of the samples per format.
+ */
+public class BinaryEncodingCheck {
+
+  private static final String SPEC_BUNDLES = "org/hl7/fhir/r4/model/profile/";
+
+  private static int failures;
+
+  public static void main(String[] args) throws IOException {
+    FhirBinaryParser binary = FhirBinaryParser.getDefault();
+    IParser json = FhirClientFactory.getCompactJsonParser();
+    IParser xml = FhirClientFactory.getContext().newXmlParser();
+
+    for (String name : List.of("profiles-resources.xml", "profiles-types.xml")) {
+      try (InputStream in =
+          BinaryEncodingCheck.class.getClassLoader().getResourceAsStream(SPEC_BUNDLES + name)) {
+        Bundle bundle =
+            xml.parseResource(Bundle.class, new InputStreamReader(in, StandardCharsets.UTF_8));
+        int differing = 0;
+        for (BundleEntryComponent entry : bundle.getEntry()) {
+          differing += roundTrips(binary, json, entry.getResource()) ? 0 : 1;
+        }
+        check(bundle.getEntry().size() + " definitions of " + name, differing == 0);
+        check("the whole " + name + " bundle", roundTrips(binary, json, bundle));
+      }
+    }
+    for (IBaseResource sample : createSamples()) {
+      check("sample " + sample.fhirType(), roundTrips(binary, json, sample));
+      System.out.printf(
+          "        %d bytes JSON, %d XML, %d binary%n",
+          json.encodeResourceToString(sample).getBytes(StandardCharsets.UTF_8).length,
+          xml.encodeResourceToString(sample).getBytes(StandardCharsets.UTF_8).length,
+          binary.encodeResourceToBytes(sample).length);
+    }
+    System.out.println(failures == 0 ? "all checks passed" : failures + " checks FAILED");
+    System.exit(failures == 0 ? 0 : 1);
+  }
+
+  /** The Patient, Encounter and Condition of the samples, referencing each other. */
+  static List<IBaseResource> createSamples() {
+    IsikResourceFactory factory = IsikResourceFactory.getDefault();
+    Patient patient = factory.createPatient();
+    patient.setId("Patient/1");
+    Encounter encounter = factory.createEncounter(patient, "F-1", new Date(1_600_000_000_000L));
+    encounter.setId("Encounter/1");
+    encounter.setSubject(new Reference("Patient/1"));
+    Condition condition = factory.createCondition(patient, encounter);
+    condition.setId("Condition/1");
+    condition.setSubject(new Reference("Patient/1"));
+    condition.setEncounter(new Reference("Encounter/1"));
+    return List.of(patient, encounter, condition);
+  }
+
+  private static boolean roundTrips(FhirBinaryParser binary, IParser json, IBaseResource resource) {
+    String expected = json.encodeResourceToString(resource);
+    String actual =
+        json.encodeResourceToString(binary.parseResource(binary.encodeResourceToBytes(resource)));
+    if (!expected.equals(actual)) {
+      System.out.println(resource.getIdElement() + ":\n" + expected + "\n" + actual);
+      return false;
+    }
+    return true;
+  }
+
+  private static void check(String name, boolean ok) {
+    System.out.println((ok ? "ok      " : "FAILED  ") + name);
+    if (!ok) {
+      failures++;
+    }
+  }
+}
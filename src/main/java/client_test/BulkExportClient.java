@@ -0,0 +1,363 @@
+package client_test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Client side of the FHIR Bulk Data export: kicks off {@code $export}, polls the status endpoint
+ * until the manifest is ready and downloads the NDJSON output files in parallel.
+ *
+ * <p>Every file is read line by line from the response stream and each line is parsed on its own,
+ * so no file is held in memory. Parsed resources go to the sink of their resource type; files of
+ * the same type may be downloaded at the same time, so sinks must be thread-safe.
+ */
+public class BulkExportClient {
+
+  public static final int DEFAULT_PARALLELISM = 4;
+  private static final long INITIAL_POLL_MILLIS = 500;
+  private static final long MAX_POLL_MILLIS = 60_000;
+  private static final String CT_NDJSON = "application/fhir+ndjson";
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private final String serverBase;
+  private final HttpClient httpClient;
+  private final int parallelism;
+  private final ThreadLocal<IParser> parser;
+
+  public BulkExportClient(String serverBase) {
+    this(
+        FhirClientFactory.getContext(),
+        serverBase,
+        HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(5))
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .build(),
+        DEFAULT_PARALLELISM);
+  }
+
+  public BulkExportClient(
+      FhirContext ctx, String serverBase, HttpClient httpClient, int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism must be positive");
+    }
+    this.serverBase = serverBase.endsWith("/") ? serverBase : serverBase + "/";
+    this.httpClient = httpClient;
+    this.parallelism = parallelism;
+    this.parser = ThreadLocal.withInitial(ctx::newJsonParser);
+  }
+
+  /**
+   * Runs a whole export: kick-off, polling and download.
+   *
+   * @param exportPath {@code $export}, {@code Patient/$export} or {@code Group/<id>/$export}
+   * @param types the resource types to export, all if empty
+   * @param sinks returns the sink for a resource type, called once per type
+   */
+  public ExportStats export(
+      String exportPath, Set<String> types, Function<String, Consumer<Resource>> sinks)
+      throws InterruptedException {
+    return download(awaitManifest(kickOff(exportPath, types)), sinks);
+  }
+
+  /** Starts the export and returns the URL of its status endpoint. */
+  public String kickOff(String exportPath, Set<String> types) throws InterruptedException {
+    String url = serverBase + exportPath;
+    if (!types.isEmpty()) {
+      url += "?_type=" + String.join(",", types);
+    }
+    HttpRequest request =
+        HttpRequest.newBuilder(URI.create(url))
+            .header(Constants.HEADER_ACCEPT, Constants.CT_FHIR_JSON_NEW)
+            .header(Constants.HEADER_PREFER, "respond-async")
+            .GET()
+            .build();
+    HttpResponse<String> response = send(request, BodyHandlers.ofString());
+    if (response.statusCode() != 202) {
+      throw error(response.statusCode(), "export kick-off " + url + ": " + response.body());
+    }
+    return response
+        .headers()
+        .firstValue(Constants.HEADER_CONTENT_LOCATION)
+        .orElseThrow(() -> new IllegalStateException("kick-off response without Content-Location"));
+  }
+
+  /**
+   * Polls the status endpoint until the export is complete. The server's Retry-After is honoured up
+   * to one minute, otherwise the interval doubles from 0.5 s up to one minute.
+   */
+  public Manifest awaitManifest(String statusUrl) throws InterruptedException {
+    HttpRequest request =
+        HttpRequest.newBuilder(URI.create(statusUrl))
+            .header(Constants.HEADER_ACCEPT, Constants.CT_JSON)
+            .GET()
+            .build();
+    long backoff = INITIAL_POLL_MILLIS;
+    while (true) {
+      HttpResponse<String> response = send(request, BodyHandlers.ofString());
+      if (response.statusCode() == 200) {
+        return Manifest.parse(response.body());
+      }
+      if (response.statusCode() != 202) {
+        throw error(response.statusCode(), "export status " + statusUrl + ": " + response.body());
+      }
+      long wait =
+          response
+              .headers()
+              .firstValue(Constants.HEADER_RETRY_AFTER)
+              .flatMap(BulkExportClient::deltaSeconds)
+              .orElse(backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+      Thread.sleep(wait);
+      backoff = Math.min(MAX_POLL_MILLIS, backoff * 2);
+    }
+  }
+
+  /** Asks the server to cancel a running export or to delete the files of a finished one. */
+  public void delete(String statusUrl) throws InterruptedException {
+    send(HttpRequest.newBuilder(URI.create(statusUrl)).DELETE().build(), BodyHandlers.discarding());
+  }
+
+  /** Downloads the output files of the manifest, {@code parallelism} at a time. */
+  public ExportStats download(Manifest manifest, Function<String, Consumer<Resource>> sinks) {
+    Map<String, Consumer<Resource>> sinksByType = new ConcurrentHashMap<>();
+    ExportStats stats = new ExportStats();
+    AtomicInteger threadNumber = new AtomicInteger();
+    ExecutorService executor =
+        Executors.newFixedThreadPool(
+            parallelism,
+            r -> {
+              Thread thread = new Thread(r, "bulk-export-" + threadNumber.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+    try {
+      List<CompletableFuture<Void>> downloads = new ArrayList<>();
+      for (OutputFile file : manifest.getOutput()) {
+        downloads.add(
+            CompletableFuture.runAsync(
+                () -> downloadFile(file, type -> sinksByType.computeIfAbsent(type, sinks), stats),
+                executor));
+      }
+      CompletableFuture.allOf(downloads.toArray(new CompletableFuture<?>[0])).join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    } finally {
+      executor.shutdown();
+    }
+    stats.finish();
+    return stats;
+  }
+
+  private void downloadFile(
+      OutputFile file, Function<String, Consumer<Resource>> sinks, ExportStats stats) {
+    HttpRequest request =
+        HttpRequest.newBuilder(URI.create(file.getUrl()))
+            .header(Constants.HEADER_ACCEPT, CT_NDJSON)
+            .GET()
+            .build();
+    HttpResponse<InputStream> response;
+    try {
+      response = send(request, BodyHandlers.ofInputStream());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("interrupted while downloading " + file.getUrl(), e);
+    }
+    try (BufferedReader lines =
+        new BufferedReader(new InputStreamReader(response.body(), StandardCharsets.UTF_8))) {
+      if (response.statusCode() != 200) {
+        throw error(response.statusCode(), "export file " + file.getUrl());
+      }
+      IParser jsonParser = parser.get();
+      String line;
+      while ((line = lines.readLine()) != null) {
+        if (line.isBlank()) {
+          continue;
+        }
+        Resource resource = (Resource) jsonParser.parseResource(line);
+        sinks.apply(resource.fhirType()).accept(resource);
+        stats.add(resource.fhirType(), line.length() + 1);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("cannot read " + file.getUrl(), e);
+    }
+  }
+
+  private <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler)
+      throws InterruptedException {
+    try {
+      return httpClient.send(request, handler);
+    } catch (IOException e) {
+      throw new UncheckedIOException("request to " + request.uri() + " failed", e);
+    }
+  }
+
+  private static BaseServerResponseException error(int status, String message) {
+    return BaseServerResponseException.newInstance(status, message);
+  }
+
+  private static Optional<Long> deltaSeconds(String retryAfter) {
+    try {
+      long millis = TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+      return Optional.of(Math.max(0, Math.min(MAX_POLL_MILLIS, millis)));
+    } catch (NumberFormatException e) {
+      // an HTTP date instead of delta seconds, fall back to our own backoff
+      return Optional.empty();
+    }
+  }
+
+  /** The completed export: transaction time and the output and error files. */
+  public static class Manifest {
+
+    private final String transactionTime;
+    private final List<OutputFile> output;
+    private final List<OutputFile> error;
+
+    Manifest(String transactionTime, List<OutputFile> output, List<OutputFile> error) {
+      this.transactionTime = transactionTime;
+      this.output = output;
+      this.error = error;
+    }
+
+    static Manifest parse(String json) {
+      try {
+        JsonNode manifest = MAPPER.readTree(json);
+        return new Manifest(
+            manifest.path("transactionTime").asText(null),
+            files(manifest.path("output")),
+            files(manifest.path("error")));
+      } catch (IOException e) {
+        throw new UncheckedIOException("invalid export manifest", e);
+      }
+    }
+
+    private static List<OutputFile> files(JsonNode array) {
+      List<OutputFile> files = new ArrayList<>();
+      for (JsonNode file : array) {
+        files.add(
+            new OutputFile(
+                file.path("type").asText(),
+                file.path("url").asText(),
+                file.path("count").asLong(-1)));
+      }
+      return Collections.unmodifiableList(files);
+    }
+
+    public String getTransactionTime() {
+      return transactionTime;
+    }
+
+    public List<OutputFile> getOutput() {
+      return output;
+    }
+
+    /** NDJSON files of OperationOutcomes for resources the server could not export. */
+    public List<OutputFile> getError() {
+      return error;
+    }
+  }
+
+  public static class OutputFile {
+
+    private final String type;
+    private final String url;
+    private final long count;
+
+    OutputFile(String type, String url, long count) {
+      this.type = type;
+      this.url = url;
+      this.count = count;
+    }
+
+    public String getType() {
+      return type;
+    }
+
+    public String getUrl() {
+      return url;
+    }
+
+    /** The number of resources the server announced, -1 if it did not. */
+    public long getCount() {
+      return count;
+    }
+  }
+
+  public static class ExportStats {
+
+    private final long start = System.nanoTime();
+    private final Map<String, LongAdder> resourcesByType = new ConcurrentHashMap<>();
+    private final LongAdder characters = new LongAdder();
+    private long elapsedNanos;
+
+    void add(String type, long lineLength) {
+      resourcesByType.computeIfAbsent(type, t -> new LongAdder()).increment();
+      characters.add(lineLength);
+    }
+
+    void finish() {
+      elapsedNanos = System.nanoTime() - start;
+    }
+
+    public Map<String, Long> getResourcesByType() {
+      Map<String, Long> counts = new TreeMap<>();
+      resourcesByType.forEach((type, count) -> counts.put(type, count.sum()));
+      return counts;
+    }
+
+    public long getResourceCount() {
+      return resourcesByType.values().stream().mapToLong(LongAdder::sum).sum();
+    }
+
+    public long getElapsedNanos() {
+      return elapsedNanos;
+    }
+
+    public void print() {
+      System.out.printf(
+          "%d resources %s, %.1f MB NDJSON in %.0f ms, %.0f resources/s%n",
+          getResourceCount(),
+          getResourcesByType(),
+          characters.sum() / 1e6,
+          elapsedNanos / 1e6,
+          getResourceCount() / (elapsedNanos / 1e9));
+    }
+  }
+}
@@ -0,0 +1,123 @@
+package client_test;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ResourceType;
+
+/**
+ * Read-only view of a Bundle, indexed in a single pass by resource type, by fullUrl and versionless
+ * id, and by Identifier system|value. Resolving a Reference against the view is a hash lookup
+ * instead of a scan over all entries, which matters for search results with _include.
+ */
+public class BundleIndex {
+
+  private final Map<ResourceType, List<Resource>> byType = new EnumMap<>(ResourceType.class);
+  private final Map<String, Resource> byUrl = new HashMap<>();
+  private final Map<String, Resource> byIdentifier = new HashMap<>();
+
+  public BundleIndex(Bundle bundle) {
+    for (BundleEntryComponent entry : bundle.getEntry()) {
+      Resource resource = entry.getResource();
+      if (resource == null) {
+        continue;
+      }
+      byType.computeIfAbsent(resource.getResourceType(), t -> new ArrayList<>()).add(resource);
+      if (entry.hasFullUrl()) {
+        addUrl(entry.getFullUrl(), resource);
+      }
+      if (resource.hasIdElement()) {
+        addUrl(resource.getIdElement().getValue(), resource);
+      }
+      for (Identifier identifier : identifiers(resource)) {
+        if (identifier.hasSystem() && identifier.hasValue()) {
+          byIdentifier.putIfAbsent(identifierKey(resource.fhirType(), identifier), resource);
+        }
+      }
+    }
+  }
+
+  private void addUrl(String url, Resource resource) {
+    byUrl.putIfAbsent(url, resource);
+    String versionless = new IdType(url).toUnqualifiedVersionless().getValue();
+    if (versionless != null) {
+      byUrl.putIfAbsent(versionless, resource);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<Identifier> identifiers(Resource resource) {
+    BaseRuntimeChildDefinition identifierChild =
+        FhirClientFactory.getContext().getResourceDefinition(resource).getChildByName("identifier");
+    if (identifierChild == null) {
+      return Collections.emptyList();
+    }
+    return (List<Identifier>) (List<?>) identifierChild.getAccessor().getValues(resource);
+  }
+
+  private static String identifierKey(String type, Identifier identifier) {
+    return type + "?" + identifier.getSystem() + "|" + identifier.getValue();
+  }
+
+  public <T extends Resource> List<T> getAll(ResourceType type, Class<T> resourceClass) {
+    List<T> resources = new ArrayList<>();
+    byType
+        .getOrDefault(type, Collections.emptyList())
+        .forEach(r -> resources.add(resourceClass.cast(r)));
+    return resources;
+  }
+
+  public <T extends Resource> Optional<T> getFirst(ResourceType type, Class<T> resourceClass) {
+    List<Resource> resources = byType.get(type);
+    return resources == null || resources.isEmpty()
+        ? Optional.empty()
+        : Optional.of(resourceClass.cast(resources.get(0)));
+  }
+
+  public Optional<Resource> getByUrl(String url) {
+    Resource resource = byUrl.get(url);
+    if (resource == null) {
+      String versionless = new IdType(url).toUnqualifiedVersionless().getValue();
+      resource = versionless == null ? null : byUrl.get(versionless);
+    }
+    return Optional.ofNullable(resource);
+  }
+
+  public Optional<Resource> getByIdentifier(ResourceType type, String system, String value) {
+    return Optional.ofNullable(byIdentifier.get(type.name() + "?" + system + "|" + value));
+  }
+
+  /** Resolves a literal, contained-object or logical (identifier) reference. */
+  public Optional<Resource> resolve(Reference reference) {
+    if (reference.hasReference()) {
+      return getByUrl(reference.getReference());
+    }
+    if (reference.getResource() instanceof Resource) {
+      return Optional.of((Resource) reference.getResource());
+    }
+    if (reference.hasIdentifier() && reference.hasType()) {
+      Identifier identifier = reference.getIdentifier();
+      return Optional.ofNullable(byIdentifier.get(identifierKey(reference.getType(), identifier)));
+    }
+    return Optional.empty();
+  }
+
+  public <T extends Resource> Optional<T> resolve(Reference reference, Class<T> resourceClass) {
+    return resolve(reference).filter(resourceClass::isInstance).map(resourceClass::cast);
+  }
+
+  public int size() {
+    return byType.values().stream().mapToInt(List::size).sum();
+  }
+}
@@ -0,0 +1,207 @@
+package client_test;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Runs create, read, search, update, transaction and a failing read against a local stub server,
+ * and a read against a closed port, and compares the client meters with what the server saw:
+ * request counts per operation and status, body bytes in both directions, and the artificial search
+ * delay in the latency.
+ */
+public class ClientMetricsCheck {
+
+  private static final int ROUNDS = 50;
+  private static final long SEARCH_DELAY_MILLIS = 20;
+
+  private static final AtomicLong requestBytes = new AtomicLong();
+  private static final AtomicLong responseBytes = new AtomicLong();
+
+  private static int failures;
+
+  public static void main(String[] args) throws IOException {
+    HttpServer server = startServer();
+    String serverBase = "http://localhost:" + server.getAddress().getPort();
+    IGenericClient unreachable = FhirClientFactory.getClient("http://localhost:" + closedPort());
+    try {
+      IGenericClient client = FhirClientFactory.getClient(serverBase);
+      Patient patient = IsikResourceFactory.getDefault().createPatient();
+      for (int i = 0; i < ROUNDS; i++) {
+        client.create().resource(patient).execute();
+        client.read().resource(Patient.class).withId("1").execute();
+        client.search().forResource(Patient.class).returnBundle(Bundle.class).execute();
+        patient.setId("1");
+        client.update().resource(patient).execute();
+        patient.setId((String) null);
+        client
+            .transaction()
+            .withBundle(
+                HapiClientStarterTransactionBundle.createTransactionBundle(List.of(patient)))
+            .execute();
+        try {
+          client.read().resource(Patient.class).withId("404").execute();
+        } catch (ResourceNotFoundException expected) {
+          // counted with status 404
+        }
+        try {
+          unreachable.read().resource(Patient.class).withId("1").execute();
+        } catch (FhirClientConnectionException expected) {
+          // counted with status IO_ERROR, the next request must not see its state
+        }
+      }
+    } finally {
+      server.stop(0);
+    }
+
+    MeterRegistry registry = FhirClientFactory.getMeterRegistry();
+    check(registry, "create", "Patient", "201", ROUNDS);
+    check(registry, "read", "Patient", "200", ROUNDS);
+    check(registry, "read", "Patient", "404", ROUNDS);
+    check(registry, "search", "Patient", "200", ROUNDS);
+    check(registry, "update", "Patient", "200", ROUNDS);
+    check(registry, "transaction", "none", "200", ROUNDS);
+    check(registry, "read", "Patient", "IO_ERROR", ROUNDS);
+
+    double searchMillis =
+        registry
+            .get("fhir.client.requests")
+            .tags("operation", "search")
+            .timer()
+            .mean(TimeUnit.MILLISECONDS);
+    expect(
+        "search latency includes the " + SEARCH_DELAY_MILLIS + " ms server delay",
+        searchMillis >= SEARCH_DELAY_MILLIS);
+    expectEquals(
+        "request body bytes", requestBytes.get(), sum(registry, "fhir.client.request.size"));
+    expectEquals(
+        "response body bytes", responseBytes.get(), sum(registry, "fhir.client.response.size"));
+    expectEquals(
+        "processed responses",
+        6L * ROUNDS,
+        registry.get("fhir.client.response.processing").timers().stream()
+            .mapToLong(Timer::count)
+            .sum());
+    System.out.printf(
+        "pool: leased %.0f, available %.0f, pending %.0f, max %.0f%n",
+        registry.get("fhir.client.pool.leased").gauge().value(),
+        registry.get("fhir.client.pool.available").gauge().value(),
+        registry.get("fhir.client.pool.pending").gauge().value(),
+        registry.get("fhir.client.pool.max").gauge().value());
+
+    System.out.println(failures == 0 ? "all metrics match" : failures + " mismatches");
+    System.exit(failures == 0 ? 0 : 1);
+  }
+
+  private static void check(
+      MeterRegistry registry, String operation, String resourceType, String status, long count) {
+    Timer timer =
+        registry
+            .find("fhir.client.requests")
+            .tags("operation", operation, "resourceType", resourceType, "status", status)
+            .timer();
+    expectEquals(
+        operation + " " + resourceType + " " + status, count, timer == null ? 0 : timer.count());
+  }
+
+  private static int closedPort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  private static long sum(MeterRegistry registry, String name) {
+    return (long)
+        registry.get(name).summaries().stream().mapToDouble(DistributionSummary::totalAmount).sum();
+  }
+
+  private static void expectEquals(String name, long expected, long actual) {
+    expect(name + ": expected " + expected + ", recorded " + actual, expected == actual);
+  }
+
+  private static void expect(String description, boolean ok) {
+    System.out.println((ok ? "ok       " : "MISMATCH ") + description);
+    if (!ok) {
+      failures++;
+    }
+  }
+
+  private static HttpServer startServer() throws IOException {
+    Patient stored = IsikResourceFactory.getDefault().createPatient();
+    stored.setId("1");
+    Bundle searchset = new Bundle().setType(BundleType.SEARCHSET);
+    searchset.addEntry().setResource(stored).setFullUrl("Patient/1");
+    Bundle transactionResponse = new Bundle().setType(BundleType.TRANSACTIONRESPONSE);
+    transactionResponse.addEntry().getResponse().setStatus("201 Created");
+    OperationOutcome notFound = new OperationOutcome();
+    notFound.addIssue().setSeverity(IssueSeverity.ERROR).setCode(IssueType.NOTFOUND);
+
+    // without TCP_NODELAY every small response waits for the delayed ACK of the client
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext(
+        "/",
+        exchange -> {
+          requestBytes.addAndGet(exchange.getRequestBody().readAllBytes().length);
+          String method = exchange.getRequestMethod();
+          String path = exchange.getRequestURI().getPath();
+          if ("POST".equals(method) && "/".equals(path)) {
+            respond(exchange, 200, transactionResponse);
+          } else if ("POST".equals(method)) {
+            exchange.getResponseHeaders().add("Location", "Patient/1/_history/1");
+            respond(exchange, 201, stored);
+          } else if (path.endsWith("/404")) {
+            respond(exchange, 404, notFound);
+          } else if ("/Patient".equals(path)) {
+            sleep();
+            respond(exchange, 200, searchset);
+          } else {
+            respond(exchange, 200, stored);
+          }
+        });
+    server.start();
+    return server;
+  }
+
+  private static void respond(HttpExchange exchange, int status, Resource resource)
+      throws IOException {
+    byte[] body =
+        FhirClientFactory.getJsonParser()
+            .encodeResourceToString(resource)
+            .getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+    exchange.sendResponseHeaders(status, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+    responseBytes.addAndGet(body.length);
+  }
+
+  private static void sleep() {
+    try {
+      Thread.sleep(SEARCH_DELAY_MILLIS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
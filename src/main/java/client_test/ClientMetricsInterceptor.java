@@ -0,0 +1,359 @@
+package client_test;
+
+import ca.uhn.fhir.rest.client.apache.ApacheHttpRequest;
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Records every request of a client as meters and as a {@link FhirRequestEvent}. All meters are
+ * tagged with the operation (read, search, create, update, transaction, ...) and the resource type
+ * derived from method and URL:
+ *
+ * <ul>
+ *   <li>{@code fhir.client.requests}: timer from sending the request until the response headers
+ *       arrived, additionally tagged with method, HTTP status and exception. A request that fails
+ *       on the transport (connect timeout, connection reset, ...) is recorded with status {@code
+ *       IO_ERROR} and the exception class.
+ *   <li>{@code fhir.client.response.processing}: timer for reading and parsing the response body
+ *   <li>{@code fhir.client.request.size}: request body as sent, i.e. after gzip compression
+ *   <li>{@code fhir.client.response.size}: response body after Content-Encoding decoding
+ * </ul>
+ *
+ * <p>The request body is already encoded when the first interceptor runs, so encoding time is not
+ * part of either timer. HAPI calls both hooks on the calling thread, which keeps the request state
+ * in a thread local between them. HAPI does not call the interceptor when the transport fails, and
+ * a response body that is never opened is never closed either; both are seen by the HttpClient from
+ * {@link #instrument}, which the factory installs.
+ */
+public class ClientMetricsInterceptor implements IClientInterceptor {
+
+  private final MeterRegistry registry;
+  private final String serverBase;
+
+  // static, because the instrumented HttpClient is shared by all clients of the context
+  private static final ThreadLocal<RequestState> CURRENT = new ThreadLocal<>();
+
+  public ClientMetricsInterceptor(MeterRegistry registry, String serverBase) {
+    this.registry = registry;
+    this.serverBase =
+        serverBase.endsWith("/") ? serverBase.substring(0, serverBase.length() - 1) : serverBase;
+  }
+
+  @Override
+  public void interceptRequest(IHttpRequest request) {
+    RequestState state = new RequestState(request.getHttpVerbName(), request.getUri());
+    classify(state);
+    state.requestBytes = requestBodySize(request);
+    state.event.begin();
+    state.start = System.nanoTime();
+    CURRENT.set(state);
+  }
+
+  @Override
+  public void interceptResponse(IHttpResponse response) throws IOException {
+    RequestState state = CURRENT.get();
+    CURRENT.remove();
+    if (state == null) {
+      return;
+    }
+    state.responseHeaders = System.nanoTime();
+    state.status = response.getStatus();
+    recordRequest(state, Integer.toString(state.status), "none");
+
+    HttpEntity entity =
+        response.getResponse() instanceof HttpResponse
+            ? ((HttpResponse) response.getResponse()).getEntity()
+            : null;
+    if (entity == null || entity.getContentLength() == 0) {
+      state.finish();
+    } else {
+      ((HttpResponse) response.getResponse()).setEntity(new CountingEntity(entity, state));
+    }
+  }
+
+  /**
+   * Wraps the HttpClient of a context so that transport failures and unread response bodies still
+   * complete the request started by {@link #interceptRequest}.
+   */
+  static CloseableHttpClient instrument(CloseableHttpClient client) {
+    return new InstrumentedHttpClient(client);
+  }
+
+  private void recordRequest(RequestState state, String status, String exception) {
+    Timer.builder("fhir.client.requests")
+        .description("FHIR client requests, until the response headers arrived")
+        .tags("operation", state.operation, "resourceType", state.resourceType)
+        .tags("method", state.method, "status", status, "exception", exception)
+        .publishPercentileHistogram()
+        .register(registry)
+        .record(state.responseHeaders - state.start, TimeUnit.NANOSECONDS);
+    DistributionSummary.builder("fhir.client.request.size")
+        .baseUnit("bytes")
+        .tags("operation", state.operation, "resourceType", state.resourceType)
+        .register(registry)
+        .record(state.requestBytes);
+  }
+
+  private void fail(RequestState state, Exception exception) {
+    state.responseHeaders = System.nanoTime();
+    state.finished = true;
+    recordRequest(state, "IO_ERROR", exception.getClass().getSimpleName());
+
+    FhirRequestEvent event = state.event;
+    event.end();
+    if (event.shouldCommit()) {
+      state.fill(event);
+      event.exception = exception.getClass().getName();
+      event.commit();
+    }
+  }
+
+  private void finish(RequestState state) {
+    long end = System.nanoTime();
+    Timer.builder("fhir.client.response.processing")
+        .description("Reading and parsing FHIR client responses")
+        .tags("operation", state.operation, "resourceType", state.resourceType)
+        .publishPercentileHistogram()
+        .register(registry)
+        .record(end - state.responseHeaders, TimeUnit.NANOSECONDS);
+    DistributionSummary.builder("fhir.client.response.size")
+        .baseUnit("bytes")
+        .tags("operation", state.operation, "resourceType", state.resourceType)
+        .register(registry)
+        .record(state.responseBytes);
+
+    FhirRequestEvent event = state.event;
+    event.end();
+    if (event.shouldCommit()) {
+      state.fill(event);
+      event.responseBytes = state.responseBytes;
+      event.processingNanos = end - state.responseHeaders;
+      event.commit();
+    }
+  }
+
+  private static long requestBodySize(IHttpRequest request) {
+    if (request instanceof ApacheHttpRequest) {
+      HttpRequestBase apacheRequest = ((ApacheHttpRequest) request).getApacheRequest();
+      if (apacheRequest instanceof HttpEntityEnclosingRequest) {
+        HttpEntity entity = ((HttpEntityEnclosingRequest) apacheRequest).getEntity();
+        return entity == null ? 0 : Math.max(entity.getContentLength(), 0);
+      }
+    }
+    return 0;
+  }
+
+  // operation and resource type from the REST interaction, e.g. PUT Patient/1 is an update
+  private void classify(RequestState state) {
+    String url = state.url;
+    String path = url.startsWith(serverBase) ? url.substring(serverBase.length()) : url;
+    path = path.startsWith("/") ? path.substring(1) : path;
+    int query = path.indexOf('?');
+    String parameters = query < 0 ? "" : path.substring(query + 1);
+    path = query < 0 ? path : path.substring(0, query);
+    String[] segments = path.isEmpty() ? new String[0] : path.split("/");
+
+    state.resourceType =
+        segments.length > 0 && Character.isUpperCase(segments[0].charAt(0)) ? segments[0] : "none";
+    if (parameters.contains("_getpages=")) {
+      state.operation = "page";
+    } else if (path.contains("$")) {
+      state.operation = "operation";
+    } else if (path.contains("_history")) {
+      state.operation = segments.length == 4 ? "vread" : "history";
+    } else if (path.endsWith("_search")) {
+      state.operation = "search";
+    } else {
+      state.operation = operation(state.method, segments.length);
+    }
+  }
+
+  private static String operation(String method, int segments) {
+    switch (method) {
+      case "GET":
+        return segments == 2 ? "read" : "search";
+      case "POST":
+        return segments == 0 ? "transaction" : "create";
+      case "PUT":
+        return "update";
+      case "PATCH":
+        return "patch";
+      case "DELETE":
+        return "delete";
+      default:
+        return method.toLowerCase();
+    }
+  }
+
+  private final class RequestState {
+    final String method;
+    final String url;
+    final FhirRequestEvent event = new FhirRequestEvent();
+    String operation;
+    String resourceType;
+    int status;
+    long requestBytes;
+    long responseBytes;
+    long start;
+    long responseHeaders;
+    boolean finished;
+
+    RequestState(String method, String url) {
+      this.method = method;
+      this.url = url;
+    }
+
+    void finish() {
+      if (!finished) {
+        finished = true;
+        ClientMetricsInterceptor.this.finish(this);
+      }
+    }
+
+    void fail(Exception exception) {
+      ClientMetricsInterceptor.this.fail(this, exception);
+    }
+
+    void fill(FhirRequestEvent event) {
+      event.operation = operation;
+      event.resourceType = resourceType;
+      event.method = method;
+      event.url = url;
+      event.status = status;
+      event.requestBytes = requestBytes;
+      event.networkNanos = responseHeaders - start;
+    }
+  }
+
+  /**
+   * Ends the current request with IO_ERROR when the transport throws, and finishes it when HAPI
+   * closes a response whose body it never opened. Requests without a current state, e.g. those of
+   * StreamingBundleReader, pass through untouched.
+   */
+  private static final class InstrumentedHttpClient extends CloseableHttpClient {
+
+    private final CloseableHttpClient delegate;
+
+    InstrumentedHttpClient(CloseableHttpClient delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    protected CloseableHttpResponse doExecute(
+        HttpHost target, HttpRequest request, HttpContext context) throws IOException {
+      RequestState state = CURRENT.get();
+      CloseableHttpResponse response;
+      try {
+        response = delegate.execute(target, request, context);
+      } catch (IOException | RuntimeException e) {
+        if (state != null) {
+          CURRENT.remove();
+          state.fail(e);
+        }
+        throw e;
+      }
+      return state == null ? response : closingFinishes(response, state);
+    }
+
+    private static CloseableHttpResponse closingFinishes(
+        CloseableHttpResponse response, RequestState state) {
+      return (CloseableHttpResponse)
+          Proxy.newProxyInstance(
+              CloseableHttpResponse.class.getClassLoader(),
+              new Class<?>[] {CloseableHttpResponse.class},
+              (proxy, method, args) -> {
+                try {
+                  return method.invoke(response, args);
+                } catch (InvocationTargetException e) {
+                  throw e.getCause();
+                } finally {
+                  if (method.getName().equals("close") && method.getParameterCount() == 0) {
+                    state.finish();
+                  }
+                }
+              });
+    }
+
+    @Override
+    public void close() throws IOException {
+      delegate.close();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public HttpParams getParams() {
+      return delegate.getParams();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public ClientConnectionManager getConnectionManager() {
+      return delegate.getConnectionManager();
+    }
+  }
+
+  // counts the body while HAPI reads it and finishes the request when the stream is closed
+  private final class CountingEntity extends HttpEntityWrapper {
+
+    private final RequestState state;
+
+    CountingEntity(HttpEntity entity, RequestState state) {
+      super(entity);
+      this.state = state;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+      return new FilterInputStream(super.getContent()) {
+        @Override
+        public int read() throws IOException {
+          int b = super.read();
+          if (b >= 0) {
+            state.responseBytes++;
+          }
+          return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+          int n = super.read(buffer, offset, length);
+          if (n > 0) {
+            state.responseBytes += n;
+          }
+          return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            state.finish();
+          }
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,556 @@
+package client_test;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * A local append-only log of client operations, written before anything goes to the server, so
+ * creates, updates and transactions are not lost while the server is down. An {@link OutboxDrainer}
+ * replays the log to the server and acknowledges what the server took; what is not acknowledged is
+ * replayed again after a restart.
+ *
+ * <p>The log is a directory of memory-mapped segment files of {@code segmentSize} bytes. An append
+ * copies the encoded resource into the mapped segment and returns, so it survives a crash of the
+ * process right away and a crash of the machine once the page has been written back: with {@code
+ * syncEveryAppend} each append forces the segment to disk, otherwise {@link #flush()} does. Records
+ * carry a CRC, a torn record at the end of the log is dropped on open. Segments the drainer has
+ * passed are deleted. Every record gets an idempotency key and the patient it belongs to, which the
+ * drainer uses to replay safely and in order per patient. Thread-safe.
+ */
+public class ClientOutbox implements AutoCloseable {
+
+  public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+  private static final int MAGIC = 0x4f55_5442; // OUTB
+  private static final int SEGMENT_HEADER = 8;
+  private static final int RECORD_HEADER = 8;
+  private static final int NEXT_SEGMENT = -1;
+  private static final String SEGMENT_SUFFIX = ".segment";
+  private static final String CHECKPOINT = "checkpoint.properties";
+
+  /** What the drainer does with the resource of a record. */
+  public enum Operation {
+    /** POST of the resource, conditional on its idempotency key. */
+    CREATE,
+    /** PUT of the resource to its Type/id. */
+    UPDATE,
+    /** The entries of the transaction Bundle. */
+    TRANSACTION
+  }
+
+  /** One operation read back from the log. */
+  public static final class Record {
+    final Operation operation;
+    final String idempotencyKey;
+    final String patient;
+    final byte[] resource;
+    final long next;
+
+    Record(Operation operation, String idempotencyKey, String patient, byte[] resource, long next) {
+      this.operation = operation;
+      this.idempotencyKey = idempotencyKey;
+      this.patient = patient;
+      this.resource = resource;
+      this.next = next;
+    }
+
+    public Operation getOperation() {
+      return operation;
+    }
+
+    public String getIdempotencyKey() {
+      return idempotencyKey;
+    }
+
+    /** The patient the operation belongs to, null if none could be found. */
+    public String getPatient() {
+      return patient;
+    }
+  }
+
+  private final Path directory;
+  private final ResourceCodec codec;
+  private final int segmentSize;
+  private final boolean syncEveryAppend;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition appended = lock.newCondition();
+  private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<>();
+  private MappedByteBuffer writeSegment;
+  private long writeSegmentNumber;
+
+  // positions are segment number << 32 | offset in the segment
+  private volatile long writePosition;
+  private volatile long acknowledgedPosition;
+  private final AtomicLong appendedCount = new AtomicLong();
+  private final AtomicLong acknowledgedCount = new AtomicLong();
+  private volatile boolean closed;
+
+  private ClientOutbox(Path directory, ResourceCodec codec, int segmentSize, boolean sync) {
+    this.directory = directory;
+    this.codec = codec;
+    this.segmentSize = segmentSize;
+    this.syncEveryAppend = sync;
+  }
+
+  /** Opens or creates the outbox in {@code directory} with the binary codec. */
+  public static ClientOutbox open(Path directory) throws IOException {
+    return open(directory, ResourceCodec.binary(), DEFAULT_SEGMENT_SIZE, false);
+  }
+
+  /**
+   * Opens or creates the outbox in {@code directory}. An existing outbox must be opened with the
+   * codec it was written with.
+   */
+  public static ClientOutbox open(
+      Path directory, ResourceCodec codec, int segmentSize, boolean syncEveryAppend)
+      throws IOException {
+    if (segmentSize < 4096) {
+      throw new IllegalArgumentException("segmentSize must be at least 4096");
+    }
+    Files.createDirectories(directory);
+    ClientOutbox outbox = new ClientOutbox(directory, codec, segmentSize, syncEveryAppend);
+    outbox.recover();
+    return outbox;
+  }
+
+  /** Appends a create of the resource and returns its idempotency key. */
+  public String create(Resource resource) {
+    return append(Operation.CREATE, resource, patientOf(resource));
+  }
+
+  /** Appends an update of the resource, which needs an id, and returns its idempotency key. */
+  public String update(Resource resource) {
+    if (!resource.getIdElement().hasIdPart()) {
+      throw new IllegalArgumentException("an update needs a resource with an id");
+    }
+    return append(Operation.UPDATE, resource, patientOf(resource));
+  }
+
+  /** Appends a transaction and returns its idempotency key. */
+  public String transaction(Bundle bundle) {
+    // a urn:uuid subject is the Patient entry with that fullUrl, keyed as a create of it would be
+    Map<String, String> patients = new HashMap<>();
+    for (BundleEntryComponent entry : bundle.getEntry()) {
+      if (entry.getResource() instanceof Patient && entry.hasFullUrl()) {
+        String key = patientOf(entry.getResource());
+        patients.put(entry.getFullUrl(), key != null ? key : patientKey(entry.getFullUrl()));
+      }
+    }
+    String patient = null;
+    for (BundleEntryComponent entry : bundle.getEntry()) {
+      if (entry.getResource() instanceof Patient && entry.hasFullUrl()) {
+        patient = patients.get(entry.getFullUrl());
+      } else if (entry.hasResource()) {
+        patient = patientOf(entry.getResource());
+        patient = patients.getOrDefault(patient, patient);
+      }
+      if (patient != null) {
+        break;
+      }
+    }
+    return append(Operation.TRANSACTION, bundle, patient);
+  }
+
+  // the Patient itself by id or identifier, or the subject or patient reference of anything else
+  private static String patientOf(Resource resource) {
+    if (resource instanceof Patient) {
+      if (resource.getIdElement().hasIdPart() && !resource.getIdElement().isUrn()) {
+        return "Patient/" + resource.getIdElement().getIdPart();
+      }
+      for (Identifier identifier : ((Patient) resource).getIdentifier()) {
+        if (identifier.hasSystem() && identifier.hasValue()) {
+          return "Patient?identifier=" + identifier.getSystem() + "|" + identifier.getValue();
+        }
+      }
+      return null;
+    }
+    for (String name : new String[] {"patient", "subject"}) {
+      BaseRuntimeChildDefinition child =
+          FhirClientFactory.getContext().getResourceDefinition(resource).getChildByName(name);
+      if (child != null) {
+        for (IBase value : child.getAccessor().getValues(resource)) {
+          if (value instanceof Reference && ((Reference) value).hasReference()) {
+            return patientKey(((Reference) value).getReference());
+          }
+        }
+      }
+    }
+    return null;
+  }
+
+  // Patient/1, Patient/1/_history/2 and http://host/fhir/Patient/1 are the same patient;
+  // urn:uuid and conditional references are kept as they are
+  private static String patientKey(String reference) {
+    if (reference.startsWith("urn:") || reference.indexOf('?') >= 0) {
+      return reference;
+    }
+    IdType id = new IdType(reference);
+    return id.hasResourceType() && id.hasIdPart()
+        ? id.toUnqualifiedVersionless().getValue()
+        : reference;
+  }
+
+  private String append(Operation operation, IBaseResource resource, String patient) {
+    String key = UUID.randomUUID().toString();
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    byte[] patientBytes = patient == null ? new byte[0] : patient.getBytes(StandardCharsets.UTF_8);
+    byte[] encoded = codec.encode(resource);
+    int length = 1 + 2 + keyBytes.length + 2 + patientBytes.length + encoded.length;
+    if (patientBytes.length > Short.MAX_VALUE
+        || RECORD_HEADER + length + 4 > segmentSize - SEGMENT_HEADER) {
+      throw new IllegalArgumentException("record of " + length + " bytes does not fit a segment");
+    }
+    ByteBuffer payload = ByteBuffer.allocate(length);
+    payload.put((byte) operation.ordinal());
+    payload.putShort((short) keyBytes.length).put(keyBytes);
+    payload.putShort((short) patientBytes.length).put(patientBytes);
+    payload.put(encoded);
+    CRC32 crc = new CRC32();
+    crc.update(payload.array());
+
+    lock.lock();
+    try {
+      if (closed) {
+        throw new IllegalStateException("outbox is closed");
+      }
+      int offset = offset(writePosition);
+      // room for the record and the end marker behind it
+      if (offset + RECORD_HEADER + length + 4 > segmentSize) {
+        writeSegment.putInt(offset, NEXT_SEGMENT);
+        writeSegment.force();
+        writeSegment = mapSegment(writeSegmentNumber + 1, true);
+        writeSegmentNumber++;
+        offset = SEGMENT_HEADER;
+      }
+      // the length goes in last, a reader never sees a half-written record
+      writeSegment.putInt(offset + 4, (int) crc.getValue());
+      ByteBuffer record = writeSegment.duplicate();
+      record.position(offset + RECORD_HEADER);
+      record.put(payload.array(), 0, length);
+      writeSegment.putInt(offset, length);
+      if (syncEveryAppend) {
+        writeSegment.force();
+      }
+      writePosition = position(writeSegmentNumber, offset + RECORD_HEADER + length);
+      appendedCount.incrementAndGet();
+      appended.signalAll();
+    } catch (IOException e) {
+      throw new UncheckedIOException("cannot append to outbox " + directory, e);
+    } finally {
+      lock.unlock();
+    }
+    return key;
+  }
+
+  /** Forces the records appended so far to disk. */
+  public void flush() {
+    lock.lock();
+    try {
+      if (!closed) {
+        writeSegment.force();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Up to {@code max} records from {@code position} on, waiting up to {@code timeout} for the first
+   * one; none once the outbox is closed. Records are only handed out, {@link #acknowledge} removes
+   * them.
+   */
+  List<Record> read(long position, int max, long timeout, TimeUnit unit)
+      throws InterruptedException {
+    lock.lock();
+    try {
+      long nanos = unit.toNanos(timeout);
+      while (!closed && position >= writePosition && nanos > 0) {
+        nanos = appended.awaitNanos(nanos);
+      }
+      if (closed) {
+        // the segments are released, what is left is read again after the next open
+        return List.of();
+      }
+      List<Record> records = new ArrayList<>(Math.min(max, 64));
+      long end = writePosition;
+      while (records.size() < max && position < end) {
+        ByteBuffer segment = segments.get(segment(position)).duplicate();
+        int offset = offset(position);
+        int length = segment.getInt(offset);
+        if (length == NEXT_SEGMENT) {
+          position = position(segment(position) + 1, SEGMENT_HEADER);
+          continue;
+        }
+        Record record = decodeRecord(segment, position, length);
+        records.add(record);
+        position = record.next;
+      }
+      return records;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private static Record decodeRecord(ByteBuffer segment, long position, int length) {
+    segment.position(offset(position) + RECORD_HEADER);
+    Operation operation = Operation.values()[segment.get()];
+    byte[] key = new byte[segment.getShort()];
+    segment.get(key);
+    byte[] patient = new byte[segment.getShort()];
+    segment.get(patient);
+    byte[] resource = new byte[length - 5 - key.length - patient.length];
+    segment.get(resource);
+    return new Record(
+        operation,
+        new String(key, StandardCharsets.UTF_8),
+        patient.length == 0 ? null : new String(patient, StandardCharsets.UTF_8),
+        resource,
+        position + RECORD_HEADER + length);
+  }
+
+  IBaseResource decode(Record record) {
+    return codec.decode(record.resource);
+  }
+
+  boolean isClosed() {
+    return closed;
+  }
+
+  /** Where reading starts: the first record not acknowledged yet. */
+  long getAcknowledgedPosition() {
+    return acknowledgedPosition;
+  }
+
+  /**
+   * Marks everything before {@code position} as delivered: the checkpoint is written and segments
+   * before it are deleted.
+   */
+  void acknowledge(long position, int records) {
+    lock.lock();
+    try {
+      if (closed) {
+        throw new IllegalStateException("outbox is closed");
+      }
+      writeCheckpoint(position);
+      acknowledgedPosition = position;
+      acknowledgedCount.addAndGet(records);
+      while (segments.firstKey() < segment(position)) {
+        long number = segments.pollFirstEntry().getKey();
+        Files.deleteIfExists(segmentPath(number));
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("cannot write outbox checkpoint in " + directory, e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Records appended and not acknowledged yet. */
+  public long getBacklog() {
+    return appendedCount.get() - acknowledgedCount.get();
+  }
+
+  public long getAppendedCount() {
+    return appendedCount.get();
+  }
+
+  public long getAcknowledgedCount() {
+    return acknowledgedCount.get();
+  }
+
+  public Path getDirectory() {
+    return directory;
+  }
+
+  @Override
+  public void close() {
+    lock.lock();
+    try {
+      if (!closed) {
+        writeSegment.force();
+        closed = true;
+        segments.clear();
+        appended.signalAll();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // reads the checkpoint and finds the end of the log, dropping a torn record at the end
+  private void recover() throws IOException {
+    List<Long> numbers = new ArrayList<>();
+    try (Stream<Path> files = Files.list(directory)) {
+      files
+          .map(f -> f.getFileName().toString())
+          .filter(n -> n.endsWith(SEGMENT_SUFFIX))
+          .forEach(n -> numbers.add(Long.parseLong(n.substring(0, n.indexOf('.')))));
+    }
+    numbers.sort(null);
+    long start = readCheckpoint();
+    for (long number : numbers) {
+      if (number < segment(start)) {
+        // acknowledged, the process stopped before deleting it
+        Files.deleteIfExists(segmentPath(number));
+      } else {
+        mapSegment(number, false);
+      }
+    }
+    if (segments.isEmpty()) {
+      mapSegment(segment(start), true);
+    } else if (segments.firstKey() != segment(start)) {
+      throw new IOException(
+          "segment " + segmentPath(segment(start)) + " of the checkpoint is gone");
+    }
+
+    long position = start;
+    long records = 0;
+    while (true) {
+      MappedByteBuffer segment = segments.get(segment(position));
+      int offset = offset(position);
+      int length = offset + 4 > segmentSize ? 0 : segment.getInt(offset);
+      if (length == NEXT_SEGMENT && segments.containsKey(segment(position) + 1)) {
+        position = position(segment(position) + 1, SEGMENT_HEADER);
+        continue;
+      }
+      if (length <= 0
+          || offset + RECORD_HEADER + length > segmentSize
+          || !crcMatches(segment, offset, length)) {
+        if (segment(position) != segments.lastKey()) {
+          throw new IOException("outbox segment " + segmentPath(segment(position)) + " is corrupt");
+        }
+        // pages may have been written back out of order, nothing behind the end may look valid
+        clear(segment, offset);
+        break;
+      }
+      records++;
+      position += RECORD_HEADER + length;
+    }
+    writeSegmentNumber = segment(position);
+    writeSegment = segments.get(writeSegmentNumber);
+    writePosition = position;
+    acknowledgedPosition = start;
+    appendedCount.set(records);
+  }
+
+  private void clear(MappedByteBuffer segment, int offset) {
+    int i = offset;
+    for (; i < segmentSize && i % 8 != 0; i++) {
+      segment.put(i, (byte) 0);
+    }
+    for (; i < segmentSize; i += 8) {
+      if (segment.getLong(i) != 0) {
+        segment.putLong(i, 0);
+      }
+    }
+  }
+
+  private static boolean crcMatches(ByteBuffer segment, int offset, int length) {
+    ByteBuffer payload = segment.duplicate();
+    payload.position(offset + RECORD_HEADER).limit(offset + RECORD_HEADER + length);
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    return (int) crc.getValue() == segment.getInt(offset + 4);
+  }
+
+  private MappedByteBuffer mapSegment(long number, boolean create) throws IOException {
+    Path path = segmentPath(number);
+    try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+      if (create) {
+        file.setLength(segmentSize);
+      } else if (file.length() != segmentSize) {
+        throw new IOException(path + " is not a segment of " + segmentSize + " bytes");
+      }
+      // the mapping stays valid after the channel is closed
+      MappedByteBuffer segment =
+          file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+      if (create) {
+        segment.putInt(0, MAGIC);
+        segment.putInt(4, segmentSize);
+      } else if (segment.getInt(0) != MAGIC) {
+        throw new IOException(path + " is not an outbox segment");
+      }
+      segments.put(number, segment);
+      return segment;
+    }
+  }
+
+  private Path segmentPath(long number) {
+    return directory.resolve(String.format("%010d%s", number, SEGMENT_SUFFIX));
+  }
+
+  private long readCheckpoint() throws IOException {
+    Path file = directory.resolve(CHECKPOINT);
+    if (!Files.exists(file)) {
+      return position(1, SEGMENT_HEADER);
+    }
+    Properties checkpoint = new Properties();
+    try (InputStream in = Files.newInputStream(file)) {
+      checkpoint.load(in);
+    }
+    return position(
+        Long.parseLong(checkpoint.getProperty("segment")),
+        Integer.parseInt(checkpoint.getProperty("offset")));
+  }
+
+  private void writeCheckpoint(long position) throws IOException {
+    Properties checkpoint = new Properties();
+    checkpoint.setProperty("segment", Long.toString(segment(position)));
+    checkpoint.setProperty("offset", Integer.toString(offset(position)));
+    Path temp = directory.resolve(CHECKPOINT + ".tmp");
+    try (OutputStream out = Files.newOutputStream(temp)) {
+      checkpoint.store(out, null);
+    }
+    Files.move(
+        temp,
+        directory.resolve(CHECKPOINT),
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static long position(long segment, int offset) {
+    return segment << 32 | offset;
+  }
+
+  private static long segment(long position) {
+    return position >>> 32;
+  }
+
+  private static int offset(long position) {
+    return (int) position;
+  }
+}
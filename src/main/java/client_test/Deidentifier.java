@@ -0,0 +1,400 @@
+package client_test;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.BaseDateTimeType;
+import org.hl7.fhir.r4.model.Element;
+import org.hl7.fhir.r4.model.ExpressionNode;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.PrimitiveType;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * De-identifies resources before they leave the hospital, e.g. for research exports. Elements are
+ * selected by FHIRPath and pseudonymised, date-shifted or removed:
+ *
+ * <ul>
+ *   <li>a pseudonym is the HMAC-SHA256 of the value under a secret key, the same value gets the
+ *       same pseudonym in every resource and every run with that key, without a mapping table
+ *   <li>dates of a patient are shifted by the same number of days, derived from the key and the
+ *       patient reference, so intervals between a patient's dates survive; a resource without a
+ *       patient reference gets a shift of its own, derived from its id or else its content
+ *   <li>removed elements are emptied and left out by the encoder
+ * </ul>
+ *
+ * <p>Resource ids and the {@code Type/id} and urn:uuid references between resources are always
+ * pseudonymised the same way, so a Patient, its Encounters and Conditions still reference each
+ * other, also when they are processed on different threads or in different runs; the display of a
+ * reference is removed. Nothing is shared between resources, the stream variant runs in parallel.
+ * Resources are modified in place.
+ */
+public class Deidentifier {
+
+  public static final int DEFAULT_MAX_SHIFT_DAYS = 180;
+
+  private static final String ALGORITHM = "HmacSHA256";
+  private static final String URN_UUID = "urn:uuid:";
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  private static final int PSEUDONYM_BYTES = 16;
+  private static final List<String> PATIENT_REFERENCES = List.of("subject", "patient");
+
+  private enum Action {
+    PSEUDONYMIZE,
+    SHIFT_DATE,
+    REMOVE
+  }
+
+  private static final class Rule {
+    final String resourceType;
+    final ExpressionNode expression;
+    final Action action;
+
+    Rule(String resourceType, ExpressionNode expression, Action action) {
+      this.resourceType = resourceType;
+      this.expression = expression;
+      this.action = action;
+    }
+  }
+
+  private final List<Rule> rules;
+  private final int maxShiftDays;
+  private final FhirContext ctx = FhirClientFactory.getContext();
+  private final FhirPathService fhirPath = FhirPathService.getInstance();
+  private final ThreadLocal<Hasher> hashers;
+
+  private Deidentifier(Builder builder) {
+    this.rules = List.copyOf(builder.rules);
+    this.maxShiftDays = builder.maxShiftDays;
+    SecretKeySpec key = new SecretKeySpec(builder.key, ALGORITHM);
+    this.hashers = ThreadLocal.withInitial(() -> new Hasher(key));
+  }
+
+  public static Builder builder(byte[] key) {
+    return new Builder(key);
+  }
+
+  /**
+   * The rules for the ISiK Patient, Encounter and Condition of the samples: patient and case
+   * numbers pseudonymised, names with their humanname-own-name extension removed, birth date and
+   * every date of the encounter (also of its status history, locations and participants) and of the
+   * condition shifted. A free-text onset or abatement may hold a date and is removed.
+   */
+  public static Deidentifier forIsikExport(byte[] key) {
+    return builder(key)
+        .pseudonymize("Patient.identifier.value")
+        .remove("Patient.name")
+        .remove("Patient.telecom")
+        .remove("Patient.address")
+        .shiftDates("Patient.birthDate")
+        .pseudonymize("Encounter.identifier.value")
+        .shiftDates("Encounter.period")
+        .shiftDates("Encounter.statusHistory.period")
+        .shiftDates("Encounter.location.period")
+        .shiftDates("Encounter.participant.period")
+        .shiftDates("Condition.recordedDate")
+        .shiftDates("Condition.onset.ofType(dateTime) | Condition.onset.ofType(Period)")
+        .remove("Condition.onset.ofType(string)")
+        .shiftDates("Condition.abatement.ofType(dateTime) | Condition.abatement.ofType(Period)")
+        .remove("Condition.abatement.ofType(string)")
+        .build();
+  }
+
+  public static class Builder {
+
+    private final byte[] key;
+    private final List<Rule> rules = new ArrayList<>();
+    private int maxShiftDays = DEFAULT_MAX_SHIFT_DAYS;
+
+    private Builder(byte[] key) {
+      if (key.length < 16) {
+        throw new IllegalArgumentException("the key needs at least 16 bytes");
+      }
+      this.key = key.clone();
+    }
+
+    /** Replaces the values of the selected primitive elements by pseudonyms. */
+    public Builder pseudonymize(String fhirPath) {
+      return rule(fhirPath, Action.PSEUDONYMIZE);
+    }
+
+    /**
+     * Shifts the selected date, dateTime, instant or Period elements by the patient's shift. Select
+     * the date types of a choice element with {@code ofType()}, anything else cannot be shifted.
+     */
+    public Builder shiftDates(String fhirPath) {
+      return rule(fhirPath, Action.SHIFT_DATE);
+    }
+
+    public Builder remove(String fhirPath) {
+      return rule(fhirPath, Action.REMOVE);
+    }
+
+    /** Shifts are between -maxShiftDays and maxShiftDays, never 0. */
+    public Builder maxShiftDays(int maxShiftDays) {
+      if (maxShiftDays < 1) {
+        throw new IllegalArgumentException("maxShiftDays must be positive");
+      }
+      this.maxShiftDays = maxShiftDays;
+      return this;
+    }
+
+    // a path starting with a type name only applies to that type and is not evaluated on others
+    private Builder rule(String fhirPath, Action action) {
+      int dot = fhirPath.indexOf('.');
+      String first = dot < 0 ? fhirPath : fhirPath.substring(0, dot);
+      String type = Character.isUpperCase(first.charAt(0)) ? first : null;
+      rules.add(new Rule(type, FhirPathService.getInstance().compile(fhirPath), action));
+      return this;
+    }
+
+    public Deidentifier build() {
+      return new Deidentifier(this);
+    }
+  }
+
+  /** De-identifies the resources in parallel, in place. */
+  public <R extends Resource> Stream<R> apply(Stream<R> resources) {
+    return resources.parallel().map(this::apply);
+  }
+
+  /**
+   * A stage in front of a sink, e.g. for the sinks of {@link BulkExportClient#download}. The
+   * download threads de-identify in parallel.
+   */
+  public Consumer<Resource> before(Consumer<? super Resource> sink) {
+    return resource -> sink.accept(apply(resource));
+  }
+
+  /** De-identifies the resource in place and returns it. */
+  public <R extends Resource> R apply(R resource) {
+    Hasher hasher = hashers.get();
+    String type = resource.fhirType();
+    // the shift is derived before the references are pseudonymised
+    int shiftDays = shiftDays(hasher, shiftKey(resource));
+    for (Rule rule : rules) {
+      if (rule.resourceType != null && !rule.resourceType.equals(type)) {
+        continue;
+      }
+      for (Base element : fhirPath.evaluate(resource, rule.expression)) {
+        switch (rule.action) {
+          case PSEUDONYMIZE:
+            pseudonymize(hasher, element);
+            break;
+          case SHIFT_DATE:
+            shift(element, shiftDays);
+            break;
+          default:
+            clear(element);
+        }
+      }
+    }
+    if (resource.getIdElement().hasIdPart()) {
+      resource.setId(pseudonymizeReference(hasher, type, resource.getIdElement().getValue()));
+    }
+    pseudonymizeReferences(hasher, resource, ctx.getResourceDefinition(resource));
+    return resource;
+  }
+
+  // walks the model definitions instead of FhirTerser, which builds lists for every element and
+  // allocated twice as much as everything else together; primitives are not entered
+  private void pseudonymizeReferences(
+      Hasher hasher, IBase element, BaseRuntimeElementCompositeDefinition<?> definition) {
+    for (BaseRuntimeChildDefinition child : definition.getChildrenAndExtension()) {
+      List<IBase> values = child.getAccessor().getValues(element);
+      for (int i = 0; i < values.size(); i++) {
+        IBase value = values.get(i);
+        if (value instanceof Reference) {
+          Reference reference = (Reference) value;
+          if (reference.hasReference()) {
+            reference.setReference(pseudonymizeReference(hasher, null, reference.getReference()));
+          }
+          reference.setDisplay(null);
+        } else if (!(value instanceof PrimitiveType)) {
+          BaseRuntimeElementDefinition<?> valueDefinition =
+              child.getChildElementDefinitionByDatatype(value.getClass());
+          if (valueDefinition == null) {
+            valueDefinition = ctx.getElementDefinition(value.getClass());
+          }
+          if (valueDefinition instanceof BaseRuntimeElementCompositeDefinition) {
+            pseudonymizeReferences(
+                hasher, value, (BaseRuntimeElementCompositeDefinition<?>) valueDefinition);
+          }
+        }
+      }
+    }
+  }
+
+  /** The days the dates of the patient are shifted by, for {@code Patient/id} or urn:uuid. */
+  int shiftDays(String patientReference) {
+    return shiftDays(hashers.get(), patientReference);
+  }
+
+  private int shiftDays(Hasher hasher, String key) {
+    ByteBuffer hash = hasher.hash("shift|" + key);
+    int days = (hash.getInt(0) & Integer.MAX_VALUE) % maxShiftDays + 1;
+    // the sign from another byte, the low bit of the magnitude hash would give away its parity
+    return (hash.get(4) & 1) == 0 ? days : -days;
+  }
+
+  // the patient reference, or for a resource without one its own Type/id or its content
+  private String shiftKey(Resource resource) {
+    String patient = patientReference(resource);
+    if (patient != null) {
+      return patient;
+    }
+    IdType id = resource.getIdElement();
+    if (id.hasIdPart()) {
+      return resource.fhirType() + "/" + id.getIdPart();
+    }
+    return FhirClientFactory.getCompactJsonParser().encodeResourceToString(resource);
+  }
+
+  // Patient/id of the resource itself or of its subject or patient reference, if that is a Patient
+  // or a urn:uuid; the subject of a Condition may also be a Group
+  private String patientReference(Resource resource) {
+    IdType id = resource.getIdElement();
+    if ("Patient".equals(resource.fhirType())) {
+      String value = id.getValue();
+      if (value != null && value.startsWith(URN_UUID)) {
+        return value;
+      }
+      return id.hasIdPart() ? "Patient/" + id.getIdPart() : null;
+    }
+    RuntimeResourceDefinition definition = ctx.getResourceDefinition(resource);
+    for (String name : PATIENT_REFERENCES) {
+      BaseRuntimeChildDefinition child = definition.getChildByName(name);
+      List<IBase> values = child == null ? List.of() : child.getAccessor().getValues(resource);
+      if (!values.isEmpty()
+          && values.get(0) instanceof Reference
+          && ((Reference) values.get(0)).hasReference()) {
+        String reference = ((Reference) values.get(0)).getReference();
+        if (reference.startsWith(URN_UUID)) {
+          return reference;
+        }
+        IdType target = new IdType(reference);
+        if ("Patient".equals(target.getResourceType()) && target.hasIdPart()) {
+          return "Patient/" + target.getIdPart();
+        }
+      }
+    }
+    return null;
+  }
+
+  private static void pseudonymize(Hasher hasher, Base element) {
+    if (!(element instanceof PrimitiveType)) {
+      throw new IllegalArgumentException(
+          "only primitive elements can be pseudonymised, not " + element.fhirType());
+    }
+    PrimitiveType<?> primitive = (PrimitiveType<?>) element;
+    if (primitive.hasValue()) {
+      primitive.setValueAsString(hex(hasher.hash(primitive.getValueAsString())));
+    }
+  }
+
+  // Type/id and urn:uuid keep their form, the base URL and version of an absolute reference go
+  private static String pseudonymizeReference(Hasher hasher, String type, String reference) {
+    if (reference.startsWith("#")) {
+      return reference;
+    }
+    if (reference.startsWith(URN_UUID)) {
+      ByteBuffer hash = hasher.hash(reference);
+      return URN_UUID + new UUID(hash.getLong(0), hash.getLong(8));
+    }
+    IdType id = new IdType(reference);
+    String resourceType = type != null ? type : id.getResourceType();
+    if (resourceType == null || !id.hasIdPart()) {
+      return reference;
+    }
+    return resourceType + "/" + hex(hasher.hash(resourceType + "/" + id.getIdPart()));
+  }
+
+  private static void shift(Base element, int days) {
+    if (element instanceof BaseDateTimeType) {
+      BaseDateTimeType date = (BaseDateTimeType) element;
+      if (date.getValue() != null) {
+        date.add(Calendar.DATE, days);
+      }
+    } else if (element instanceof Period) {
+      shift(((Period) element).getStartElement(), days);
+      shift(((Period) element).getEndElement(), days);
+    } else {
+      throw new IllegalArgumentException("cannot shift a " + element.fhirType());
+    }
+  }
+
+  // every child including extensions and the element id is set to nothing
+  private void clear(Base element) {
+    if (element instanceof PrimitiveType) {
+      ((PrimitiveType<?>) element).setValue(null);
+    }
+    if (element instanceof Element) {
+      ((Element) element).setId(null);
+      ((Element) element).getExtension().clear();
+    }
+    BaseRuntimeElementDefinition<?> definition = ctx.getElementDefinition(element.getClass());
+    if (definition instanceof BaseRuntimeElementCompositeDefinition) {
+      for (BaseRuntimeChildDefinition child :
+          ((BaseRuntimeElementCompositeDefinition<?>) definition).getChildren()) {
+        child.getMutator().setValue(element, null);
+      }
+    }
+  }
+
+  private static String hex(ByteBuffer hash) {
+    char[] hex = new char[PSEUDONYM_BYTES * 2];
+    for (int i = 0; i < PSEUDONYM_BYTES; i++) {
+      byte b = hash.get(i);
+      hex[2 * i] = HEX[(b >> 4) & 0xf];
+      hex[2 * i + 1] = HEX[b & 0xf];
+    }
+    return new String(hex);
+  }
+
+  // one Mac and output buffer per thread, reused for every hash
+  private static final class Hasher {
+    private final Mac mac;
+    private final byte[] output;
+    private final ByteBuffer outputBuffer;
+
+    Hasher(SecretKeySpec key) {
+      try {
+        mac = Mac.getInstance(ALGORITHM);
+        mac.init(key);
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException(ALGORITHM + " is not available", e);
+      }
+      output = new byte[mac.getMacLength()];
+      outputBuffer = ByteBuffer.wrap(output);
+    }
+
+    // valid until the next call on this thread
+    ByteBuffer hash(String value) {
+      mac.update(value.getBytes(StandardCharsets.UTF_8));
+      try {
+        mac.doFinal(output, 0);
+      } catch (ShortBufferException e) {
+        throw new IllegalStateException(e);
+      }
+      return outputBuffer;
+    }
+  }
+}
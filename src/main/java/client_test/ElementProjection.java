@@ -0,0 +1,341 @@
+package client_test;
+
+import ca.uhn.fhir.rest.gclient.IQuery;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.hl7.fhir.r4.model.Bundle;
+
+/**
+ * Reads a few fields of the resources of a search result into lightweight objects without building
+ * the HAPI model. Fields are declared as FHIRPath expressions; {@link #getElements()} gives the
+ * matching {@code _elements} so the server leaves out everything else, and the response is read
+ * with Jackson's streaming parser: top-level elements no field needs are skipped without being
+ * materialised, the rest is evaluated as a small JSON tree.
+ *
+ * <p>Only the navigating part of FHIRPath is supported: element names, {@code where(element =
+ * 'value')}, {@code extension('url')} and {@code first()}. A choice element is addressed by its
+ * name without type, e.g. {@code value} for {@code valueString}.
+ */
+public class ElementProjection<T> {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+  private static final Pattern NAME = Pattern.compile("[a-zA-Z][a-zA-Z0-9]*");
+  private static final Pattern WHERE =
+      Pattern.compile("where\\(\\s*([a-zA-Z][a-zA-Z0-9]*)\\s*=\\s*'([^']*)'\\s*\\)");
+  private static final Pattern EXTENSION = Pattern.compile("extension\\(\\s*'([^']*)'\\s*\\)");
+
+  private final String resourceType;
+  private final Map<String, Integer> fieldIndex;
+  private final List<List<Step>> paths;
+  private final Set<String> elements;
+  private final Function<Row, T> mapper;
+  private final StreamingBundleReader reader = new StreamingBundleReader();
+
+  private ElementProjection(
+      String resourceType, Map<String, String> fields, Function<Row, T> mapper) {
+    this.resourceType = resourceType;
+    this.mapper = mapper;
+    this.fieldIndex = new LinkedHashMap<>();
+    this.paths = new ArrayList<>();
+    Set<String> names = new LinkedHashSet<>();
+    for (Map.Entry<String, String> field : fields.entrySet()) {
+      fieldIndex.put(field.getKey(), paths.size());
+      List<Step> path = compile(resourceType, field.getValue());
+      paths.add(path);
+      names.add(((Member) path.get(0)).name);
+    }
+    this.elements = Collections.unmodifiableSet(names);
+  }
+
+  public static Builder forResource(String resourceType) {
+    return new Builder(resourceType);
+  }
+
+  public static class Builder {
+
+    private final String resourceType;
+    private final Map<String, String> fields = new LinkedHashMap<>();
+
+    private Builder(String resourceType) {
+      this.resourceType = resourceType;
+    }
+
+    /** Declares a field, e.g. {@code field("official", "name.where(use='official').family")}. */
+    public Builder field(String name, String fhirPath) {
+      fields.put(name, fhirPath);
+      return this;
+    }
+
+    public <T> ElementProjection<T> build(Function<Row, T> mapper) {
+      return new ElementProjection<>(resourceType, fields, mapper);
+    }
+  }
+
+  public String getResourceType() {
+    return resourceType;
+  }
+
+  /** The top-level elements the fields need, the value for {@code _elements}. */
+  public Set<String> getElements() {
+    return elements;
+  }
+
+  /** Restricts a search of the generic client to {@link #getElements()}. */
+  public <Q> IQuery<Q> applyTo(IQuery<Q> query) {
+    return query.elementsSubset(elements.toArray(new String[0]));
+  }
+
+  /** The search URL for the projected type with {@code _elements}, e.g. for {@link #search}. */
+  public String searchUrl(String serverBase, String parameters) {
+    StringBuilder url = new StringBuilder(serverBase);
+    if (!serverBase.endsWith("/")) {
+      url.append('/');
+    }
+    url.append(resourceType).append('?');
+    if (!parameters.isEmpty()) {
+      url.append(parameters).append('&');
+    }
+    return url.append("_elements=").append(String.join(",", elements)).toString();
+  }
+
+  /**
+   * GETs a search URL or next link and hands every projected resource of the projected type to the
+   * callback. The returned Bundle has everything but the entries, e.g. the next link.
+   */
+  public Bundle search(String url, Consumer<? super T> callback) throws IOException {
+    return reader.get(url, in -> read(in, callback));
+  }
+
+  /** Reads a JSON Bundle from the stream; entries of other resource types are skipped. */
+  public Bundle read(InputStream in, Consumer<? super T> callback) throws IOException {
+    return reader.readEntries(
+        in,
+        json -> {
+          while (json.nextToken() == JsonToken.FIELD_NAME) {
+            String field = json.getCurrentName();
+            json.nextToken();
+            if ("resource".equals(field)) {
+              ObjectNode resource = readResource(json);
+              if (resource != null) {
+                callback.accept(project(resource));
+              }
+            } else {
+              json.skipChildren();
+            }
+          }
+        });
+  }
+
+  /** Projects a resource given as JSON tree. */
+  public T project(JsonNode resource) {
+    List<List<String>> values = new ArrayList<>(paths.size());
+    for (List<Step> path : paths) {
+      List<JsonNode> nodes = Collections.singletonList(resource);
+      for (Step step : path) {
+        nodes = step.apply(nodes);
+      }
+      List<String> strings = new ArrayList<>(nodes.size());
+      for (JsonNode node : nodes) {
+        strings.add(node.isValueNode() ? node.asText() : node.toString());
+      }
+      values.add(strings);
+    }
+    return mapper.apply(new Row(resource.path("id").asText(null), fieldIndex, values));
+  }
+
+  // only id and the needed elements become a tree, null if the resource has another type
+  private ObjectNode readResource(JsonParser json) throws IOException {
+    ObjectNode resource = MAPPER.createObjectNode();
+    boolean matches = true;
+    while (json.nextToken() == JsonToken.FIELD_NAME) {
+      String field = json.getCurrentName();
+      json.nextToken();
+      if ("resourceType".equals(field)) {
+        matches = resourceType.equals(json.getText());
+      } else if (matches && ("id".equals(field) || isNeeded(field))) {
+        resource.set(field, MAPPER.readTree(json));
+      } else {
+        json.skipChildren();
+      }
+    }
+    return matches ? resource : null;
+  }
+
+  private boolean isNeeded(String field) {
+    for (String element : elements) {
+      if (matchesName(field, element)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // valueString matches value, the JSON name of a choice element is its name plus the type
+  private static boolean matchesName(String field, String name) {
+    return field.startsWith(name)
+        && (field.length() == name.length() || Character.isUpperCase(field.charAt(name.length())));
+  }
+
+  private static List<Step> compile(String resourceType, String fhirPath) {
+    List<Step> steps = new ArrayList<>();
+    List<String> segments = segments(fhirPath);
+    if (!segments.isEmpty() && segments.get(0).equals(resourceType)) {
+      segments.remove(0);
+    }
+    for (String segment : segments) {
+      Matcher where = WHERE.matcher(segment);
+      Matcher extension = EXTENSION.matcher(segment);
+      if (NAME.matcher(segment).matches()) {
+        steps.add(new Member(segment));
+      } else if (where.matches()) {
+        steps.add(new Where(where.group(1), where.group(2)));
+      } else if (extension.matches()) {
+        steps.add(new Member("extension"));
+        steps.add(new Where("url", extension.group(1)));
+      } else if (segment.equals("first()")) {
+        steps.add(nodes -> nodes.isEmpty() ? nodes : nodes.subList(0, 1));
+      } else {
+        throw new IllegalArgumentException("unsupported FHIRPath '" + segment + "' in " + fhirPath);
+      }
+    }
+    if (steps.isEmpty() || !(steps.get(0) instanceof Member)) {
+      throw new IllegalArgumentException(fhirPath + " does not start with an element name");
+    }
+    return steps;
+  }
+
+  // splits at the dots outside of parentheses and string literals
+  private static List<String> segments(String fhirPath) {
+    List<String> segments = new ArrayList<>();
+    int depth = 0;
+    boolean literal = false;
+    int start = 0;
+    for (int i = 0; i < fhirPath.length(); i++) {
+      char c = fhirPath.charAt(i);
+      if (c == '\'') {
+        literal = !literal;
+      } else if (!literal && c == '(') {
+        depth++;
+      } else if (!literal && c == ')') {
+        depth--;
+      } else if (!literal && depth == 0 && c == '.') {
+        segments.add(fhirPath.substring(start, i).trim());
+        start = i + 1;
+      }
+    }
+    segments.add(fhirPath.substring(start).trim());
+    return segments;
+  }
+
+  private interface Step {
+    List<JsonNode> apply(List<JsonNode> nodes);
+  }
+
+  private static final class Member implements Step {
+    final String name;
+
+    Member(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public List<JsonNode> apply(List<JsonNode> nodes) {
+      List<JsonNode> result = new ArrayList<>();
+      for (JsonNode node : nodes) {
+        JsonNode child = node.get(name);
+        if (child == null) {
+          child = choice(node);
+        }
+        if (child == null) {
+          continue;
+        }
+        if (child.isArray()) {
+          child.forEach(result::add);
+        } else {
+          result.add(child);
+        }
+      }
+      return result;
+    }
+
+    private JsonNode choice(JsonNode node) {
+      for (Iterator<Map.Entry<String, JsonNode>> fields = node.fields(); fields.hasNext(); ) {
+        Map.Entry<String, JsonNode> field = fields.next();
+        if (matchesName(field.getKey(), name)) {
+          return field.getValue();
+        }
+      }
+      return null;
+    }
+  }
+
+  private static final class Where implements Step {
+    final String element;
+    final String value;
+
+    Where(String element, String value) {
+      this.element = element;
+      this.value = value;
+    }
+
+    @Override
+    public List<JsonNode> apply(List<JsonNode> nodes) {
+      List<JsonNode> result = new ArrayList<>();
+      for (JsonNode node : nodes) {
+        if (value.equals(node.path(element).asText(null))) {
+          result.add(node);
+        }
+      }
+      return result;
+    }
+  }
+
+  /** The values of the declared fields for one resource. */
+  public static class Row {
+
+    private final String id;
+    private final Map<String, Integer> fieldIndex;
+    private final List<List<String>> values;
+
+    Row(String id, Map<String, Integer> fieldIndex, List<List<String>> values) {
+      this.id = id;
+      this.fieldIndex = fieldIndex;
+      this.values = values;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    /** The first value of the field, null if it has none. */
+    public String first(String field) {
+      List<String> all = all(field);
+      return all.isEmpty() ? null : all.get(0);
+    }
+
+    public List<String> all(String field) {
+      Integer index = fieldIndex.get(field);
+      if (index == null) {
+        throw new IllegalArgumentException("no field " + field);
+      }
+      return values.get(index);
+    }
+  }
+}
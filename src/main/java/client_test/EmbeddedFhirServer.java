@@ -0,0 +1,439 @@
+package client_test;
+
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CapabilityStatement;
+import org.hl7.fhir.r4.model.CapabilityStatement.CapabilityStatementKind;
+import org.hl7.fhir.r4.model.CapabilityStatement.CapabilityStatementRestComponent;
+import org.hl7.fhir.r4.model.CapabilityStatement.CapabilityStatementRestResourceComponent;
+import org.hl7.fhir.r4.model.CapabilityStatement.RestfulCapabilityMode;
+import org.hl7.fhir.r4.model.CapabilityStatement.SystemRestfulInteraction;
+import org.hl7.fhir.r4.model.CapabilityStatement.TypeRestfulInteraction;
+import org.hl7.fhir.r4.model.Enumerations.FHIRVersion;
+import org.hl7.fhir.r4.model.Enumerations.PublicationStatus;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * An in-process FHIR endpoint on {@link InMemoryResourceStore} that speaks enough REST for the
+ * samples: create (also with If-None-Exist), update, conditional update, JSON Patch, read with
+ * If-None-Match, transaction, search with paging and a CapabilityStatement, so they and load tests
+ * of the client pipeline run without the public test server. Requests may be JSON or XML, gzip
+ * compressed or not; responses are compact JSON.
+ *
+ * <p>Start one with {@link #start()}, or set the system property {@code fhir.server.base} to {@code
+ * embedded} to make {@link FhirClientFactory#getServerBase()} start a shared one.
+ */
+public class EmbeddedFhirServer implements AutoCloseable {
+
+  public static final String EMBEDDED = "embedded";
+  private static final String BASE_PATH = "/fhir";
+  private static final String CT_FHIR_JSON_UTF8 = Constants.CT_FHIR_JSON_NEW + ";charset=utf-8";
+
+  private static final Set<String> KEPT_ELEMENTS = Set.of("resourceType", "id", "meta");
+
+  // no VREAD: only the current version is kept, _history/n only resolves the Location of a write
+  private static final List<TypeRestfulInteraction> SUPPORTED_INTERACTIONS =
+      List.of(
+          TypeRestfulInteraction.READ,
+          TypeRestfulInteraction.UPDATE,
+          TypeRestfulInteraction.PATCH,
+          TypeRestfulInteraction.CREATE,
+          TypeRestfulInteraction.SEARCHTYPE);
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+  private static final JsonFactory JSON_FACTORY = MAPPER.getFactory();
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final InMemoryResourceStore store = new InMemoryResourceStore();
+  private final String serverBase;
+
+  private EmbeddedFhirServer(int port, int threads) throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+    AtomicInteger threadNumber = new AtomicInteger();
+    executor =
+        Executors.newFixedThreadPool(
+            threads,
+            r -> {
+              Thread thread = new Thread(r, "embedded-fhir-" + threadNumber.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+    server.setExecutor(executor);
+    server.createContext(BASE_PATH, this::handle);
+    startDispatcher(server);
+    serverBase = "http://localhost:" + server.getAddress().getPort() + BASE_PATH;
+  }
+
+  // the dispatcher thread of the HttpServer inherits the daemon flag of the thread that starts it,
+  // as a daemon a running server does not keep the JVM of a sample alive
+  private static void startDispatcher(HttpServer server) {
+    Thread starter = new Thread(server::start, "embedded-fhir-start");
+    starter.setDaemon(true);
+    starter.start();
+    try {
+      starter.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      server.stop(0);
+      throw new IllegalStateException("interrupted while starting the embedded FHIR server", e);
+    }
+  }
+
+  /** Starts a server on a free port with a thread per core, at least four. */
+  public static EmbeddedFhirServer start() {
+    return start(0, Math.max(4, Runtime.getRuntime().availableProcessors()));
+  }
+
+  public static EmbeddedFhirServer start(int port, int threads) {
+    try {
+      return new EmbeddedFhirServer(port, threads);
+    } catch (IOException e) {
+      throw new UncheckedIOException("cannot start the embedded FHIR server", e);
+    }
+  }
+
+  private static final class SharedHolder {
+    private static final EmbeddedFhirServer SHARED = start();
+  }
+
+  /** The server of {@code -Dfhir.server.base=embedded}, started on first use. */
+  static EmbeddedFhirServer getShared() {
+    return SharedHolder.SHARED;
+  }
+
+  public String getServerBase() {
+    return serverBase;
+  }
+
+  public InMemoryResourceStore getStore() {
+    return store;
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdown();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      String path = exchange.getRequestURI().getPath().substring(BASE_PATH.length());
+      String[] segments = path.replaceAll("^/+|/+$", "").split("/");
+      if (segments.length == 1 && segments[0].isEmpty()) {
+        segments = new String[0];
+      }
+      route(exchange, exchange.getRequestMethod(), segments);
+    } catch (BaseServerResponseException e) {
+      sendOutcome(exchange, e.getStatusCode(), e.getMessage());
+    } catch (RuntimeException e) {
+      sendOutcome(exchange, 500, e.toString());
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void route(HttpExchange exchange, String method, String[] segments) throws IOException {
+    String query = exchange.getRequestURI().getRawQuery();
+    if (segments.length == 0 && "POST".equals(method)) {
+      transaction(exchange);
+    } else if (segments.length == 1 && "GET".equals(method) && "metadata".equals(segments[0])) {
+      send(exchange, 200, capabilityStatement());
+    } else if (segments.length == 1 && "GET".equals(method)) {
+      search(exchange, segments[0], InMemoryResourceStore.parseQuery(query));
+    } else if (segments.length == 1 && "POST".equals(method)) {
+      String ifNoneExist = exchange.getRequestHeaders().getFirst(Constants.HEADER_IF_NONE_EXIST);
+      InMemoryResourceStore.Outcome outcome =
+          store.create(body(exchange, segments[0]), ifNoneExist);
+      sendWritten(exchange, outcome);
+    } else if (segments.length == 1 && "PUT".equals(method) && query != null) {
+      InMemoryResourceStore.Outcome outcome =
+          store.conditionalUpdate(body(exchange, segments[0]), query);
+      sendWritten(exchange, outcome);
+    } else if (segments.length == 2 && "PUT".equals(method)) {
+      sendWritten(exchange, store.update(body(exchange, segments[0]), segments[1]));
+    } else if (segments.length == 2 && "PATCH".equals(method)) {
+      String contentType = exchange.getRequestHeaders().getFirst(Constants.HEADER_CONTENT_TYPE);
+      if (contentType == null || !contentType.startsWith(Constants.CT_JSON_PATCH)) {
+        throw new UnclassifiedServerFailureException(
+            415, "only " + Constants.CT_JSON_PATCH + " patches are supported");
+      }
+      String ifMatch = exchange.getRequestHeaders().getFirst(Constants.HEADER_IF_MATCH);
+      JsonNode patch = MAPPER.readTree(text(exchange));
+      sendWritten(
+          exchange,
+          store.patch(
+              segments[0],
+              segments[1],
+              patch,
+              ifMatch == null ? null : ifMatch.replace("W/", "").replace("\"", "")));
+    } else if (segments.length == 2 && "GET".equals(method)) {
+      read(exchange, store.read(segments[0], segments[1]));
+    } else if (segments.length == 4 && "GET".equals(method) && "_history".equals(segments[2])) {
+      InMemoryResourceStore.Stored stored = store.read(segments[0], segments[1]);
+      if (!Long.toString(stored.getVersion()).equals(segments[3])) {
+        throw new ResourceNotFoundException(
+            stored.getKey() + "/_history/" + segments[3] + " is no longer kept");
+      }
+      read(exchange, stored);
+    } else {
+      throw new InvalidRequestException(
+          "unsupported request " + method + " " + exchange.getRequestURI());
+    }
+  }
+
+  // every resource type with the interactions above
+  private static String capabilityStatement() {
+    CapabilityStatement capabilities = new CapabilityStatement();
+    capabilities
+        .setStatus(PublicationStatus.ACTIVE)
+        .setKind(CapabilityStatementKind.INSTANCE)
+        .setFhirVersion(FHIRVersion._4_0_1)
+        .addFormat(Constants.CT_FHIR_JSON_NEW)
+        .setDate(new Date());
+    CapabilityStatementRestComponent rest =
+        capabilities.addRest().setMode(RestfulCapabilityMode.SERVER);
+    rest.addInteraction().setCode(SystemRestfulInteraction.TRANSACTION);
+    for (String type : new TreeSet<>(FhirClientFactory.getContext().getResourceTypes())) {
+      CapabilityStatementRestResourceComponent resource = rest.addResource().setType(type);
+      for (TypeRestfulInteraction interaction : SUPPORTED_INTERACTIONS) {
+        resource.addInteraction().setCode(interaction);
+      }
+    }
+    return FhirClientFactory.getCompactJsonParser().encodeResourceToString(capabilities);
+  }
+
+  private void read(HttpExchange exchange, InMemoryResourceStore.Stored stored) throws IOException {
+    String etag = etag(stored);
+    String ifNoneMatch = exchange.getRequestHeaders().getFirst(Constants.HEADER_IF_NONE_MATCH);
+    exchange.getResponseHeaders().add(Constants.HEADER_ETAG, etag);
+    // clients send the version with or without the W/ prefix
+    if (ifNoneMatch != null && etag.endsWith(ifNoneMatch.replace("W/", ""))) {
+      // without the request body consumed the JDK server closes the connection after a response
+      // without a body
+      exchange.getRequestBody().close();
+      exchange.sendResponseHeaders(Constants.STATUS_HTTP_304_NOT_MODIFIED, -1);
+      return;
+    }
+    send(exchange, 200, stored.getJson());
+  }
+
+  private void transaction(HttpExchange exchange) throws IOException {
+    Resource resource = body(exchange, "Bundle");
+    Bundle bundle = (Bundle) resource;
+    if (bundle.getType() != Bundle.BundleType.TRANSACTION) {
+      throw new InvalidRequestException("only transaction Bundles are supported");
+    }
+    List<InMemoryResourceStore.Outcome> outcomes = store.transaction(bundle);
+    StringWriter out = new StringWriter();
+    try (JsonGenerator json = JSON_FACTORY.createGenerator(out)) {
+      json.writeStartObject();
+      json.writeStringField("resourceType", "Bundle");
+      json.writeStringField("type", "transaction-response");
+      json.writeArrayFieldStart("entry");
+      for (InMemoryResourceStore.Outcome outcome : outcomes) {
+        InMemoryResourceStore.Stored stored = outcome.getStored();
+        json.writeStartObject();
+        json.writeObjectFieldStart("response");
+        json.writeStringField("status", outcome.isCreated() ? "201 Created" : "200 OK");
+        json.writeStringField("location", stored.getKey() + "/_history/" + stored.getVersion());
+        json.writeStringField("etag", etag(stored));
+        json.writeEndObject();
+        json.writeEndObject();
+      }
+      json.writeEndArray();
+      json.writeEndObject();
+    }
+    send(exchange, 200, out.toString());
+  }
+
+  private void search(HttpExchange exchange, String type, Map<String, List<String>> parameters)
+      throws IOException {
+    InMemoryResourceStore.SearchResult result = store.search(type, parameters);
+    String query = exchange.getRequestURI().getRawQuery();
+    String self = serverBase + "/" + type + (query == null ? "" : "?" + query);
+    StringWriter out = new StringWriter();
+    try (JsonGenerator json = JSON_FACTORY.createGenerator(out)) {
+      json.writeStartObject();
+      json.writeStringField("resourceType", "Bundle");
+      json.writeStringField("type", "searchset");
+      json.writeNumberField("total", result.getTotal());
+      json.writeArrayFieldStart("link");
+      writeLink(json, Bundle.LINK_SELF, self);
+      if (result.hasNext()) {
+        StringBuilder next = new StringBuilder(serverBase).append('/').append(type).append('?');
+        if (query != null) {
+          for (String parameter : query.split("&")) {
+            if (!parameter.isEmpty() && !parameter.startsWith("_offset=")) {
+              next.append(parameter).append('&');
+            }
+          }
+        }
+        next.append("_offset=").append(result.getOffset() + result.getMatches().size());
+        writeLink(json, Bundle.LINK_NEXT, next.toString());
+      }
+      json.writeEndArray();
+      json.writeArrayFieldStart("entry");
+      for (InMemoryResourceStore.Stored stored : result.getMatches()) {
+        writeEntry(json, stored, "match", result);
+      }
+      for (InMemoryResourceStore.Stored stored : result.getIncludes()) {
+        writeEntry(json, stored, "include", result);
+      }
+      json.writeEndArray();
+      json.writeEndObject();
+    }
+    send(exchange, 200, out.toString());
+  }
+
+  private static void writeLink(JsonGenerator json, String relation, String url)
+      throws IOException {
+    json.writeStartObject();
+    json.writeStringField("relation", relation);
+    json.writeStringField("url", url);
+    json.writeEndObject();
+  }
+
+  // the stored JSON is written as is, a resource is only parsed again for _elements
+  private void writeEntry(
+      JsonGenerator json,
+      InMemoryResourceStore.Stored stored,
+      String mode,
+      InMemoryResourceStore.SearchResult result)
+      throws IOException {
+    json.writeStartObject();
+    json.writeStringField("fullUrl", serverBase + "/" + stored.getKey());
+    json.writeFieldName("resource");
+    if (result.getElements().isEmpty() || !"match".equals(mode)) {
+      json.writeRawValue(stored.getJson());
+    } else {
+      json.writeTree(subset((ObjectNode) MAPPER.readTree(stored.getJson()), result));
+    }
+    json.writeObjectFieldStart("search");
+    json.writeStringField("mode", mode);
+    json.writeEndObject();
+    json.writeEndObject();
+  }
+
+  // like _elements on a server: the requested elements, id, meta and a SUBSETTED tag
+  private static ObjectNode subset(ObjectNode resource, InMemoryResourceStore.SearchResult result) {
+    for (Iterator<String> fields = resource.fieldNames(); fields.hasNext(); ) {
+      String field = fields.next();
+      if (!KEPT_ELEMENTS.contains(field) && !isRequested(field, result.getElements())) {
+        fields.remove();
+      }
+    }
+    resource
+        .with("meta")
+        .withArray("tag")
+        .addObject()
+        .put("system", "http://terminology.hl7.org/CodeSystem/v3-ObservationValue")
+        .put("code", "SUBSETTED");
+    return resource;
+  }
+
+  // deceasedBoolean is requested as deceased
+  private static boolean isRequested(String field, Set<String> elements) {
+    for (String element : elements) {
+      if (field.equals(element)
+          || (field.startsWith(element) && Character.isUpperCase(field.charAt(element.length())))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void sendWritten(HttpExchange exchange, InMemoryResourceStore.Outcome outcome)
+      throws IOException {
+    InMemoryResourceStore.Stored stored = outcome.getStored();
+    exchange
+        .getResponseHeaders()
+        .add(
+            Constants.HEADER_LOCATION,
+            serverBase + "/" + stored.getKey() + "/_history/" + stored.getVersion());
+    exchange.getResponseHeaders().add(Constants.HEADER_ETAG, etag(stored));
+    send(exchange, outcome.isCreated() ? 201 : 200, stored.getJson());
+  }
+
+  private static String etag(InMemoryResourceStore.Stored stored) {
+    return "W/\"" + stored.getVersion() + "\"";
+  }
+
+  private Resource body(HttpExchange exchange, String type) throws IOException {
+    String contentType = exchange.getRequestHeaders().getFirst(Constants.HEADER_CONTENT_TYPE);
+    IParser parser =
+        contentType != null && contentType.contains("xml")
+            ? FhirClientFactory.getContext().newXmlParser()
+            : FhirClientFactory.getCompactJsonParser();
+    Resource resource = (Resource) parser.parseResource(text(exchange));
+    if (!resource.fhirType().equals(type)) {
+      throw new InvalidRequestException(
+          "expected a " + type + " but the body is a " + resource.fhirType());
+    }
+    return resource;
+  }
+
+  private static String text(HttpExchange exchange) throws IOException {
+    InputStream in = exchange.getRequestBody();
+    if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+      in = new GZIPInputStream(in);
+    }
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    in.transferTo(body);
+    return body.toString(StandardCharsets.UTF_8);
+  }
+
+  private static void sendOutcome(HttpExchange exchange, int status, String message)
+      throws IOException {
+    OperationOutcome outcome = new OperationOutcome();
+    outcome
+        .addIssue()
+        .setSeverity(status >= 500 ? IssueSeverity.FATAL : IssueSeverity.ERROR)
+        .setCode(IssueType.PROCESSING)
+        .setDiagnostics(message);
+    send(
+        exchange, status, FhirClientFactory.getCompactJsonParser().encodeResourceToString(outcome));
+  }
+
+  private static void send(HttpExchange exchange, int status, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().add(Constants.HEADER_CONTENT_TYPE, CT_FHIR_JSON_UTF8);
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+}
@@ -0,0 +1,148 @@
+package client_test;
+
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.TokenClientParam;
+import client_test.TransactionPipeline.PipelineStats;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Runs the calls of the samples against an {@link EmbeddedFhirServer}, with the XML client of the
+ * samples and the compact JSON client of the batch jobs, and loads patient graphs through the
+ * transaction pipeline to show what the client side manages at local memory speed.
+ */
+public class EmbeddedFhirServerCheck {
+
+  private static final int PATIENTS = 10_000;
+
+  private static int failures;
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    // without TCP_NODELAY every small response waits for the delayed ACK of the client
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+    try (EmbeddedFhirServer server = EmbeddedFhirServer.start()) {
+      IGenericClient client = FhirClientFactory.getClient(server.getServerBase());
+      IGenericClient compact =
+          FhirClientFactory.getClient(server.getServerBase(), WireProfile.COMPACT);
+      IsikResourceFactory resources = IsikResourceFactory.getDefault();
+
+      // ClientRest: planned transaction, then the Condition with its Patient and Encounter
+      Patient pat = resources.createPatient();
+      Encounter enc = resources.createEncounter(pat);
+      Condition cond = resources.createCondition(pat, enc);
+      Bundle transaction =
+          new TransactionPlanner()
+              .plan(List.of(cond, enc, pat))
+              .toBundle(TransactionEntryMode.CONDITIONAL_CREATE);
+      Bundle response = client.transaction().withBundle(transaction).execute();
+      IIdType conditionId =
+          HapiClientStarterTransactionBundle.createdId(transaction, response, cond);
+      Bundle found =
+          client
+              .search()
+              .forResource(Condition.class)
+              .where(new TokenClientParam("_id").exactly().code(conditionId.getIdPart()))
+              .include(Condition.INCLUDE_PATIENT)
+              .include(Condition.INCLUDE_ENCOUNTER)
+              .returnBundle(Bundle.class)
+              .execute();
+      check("search with _include", found.getTotal() == 1 && found.getEntry().size() == 3);
+
+      // TransactionBundle: conditional create matches the Patient and Encounter of the first run
+      Patient samePat = resources.createPatient();
+      Encounter sameEnc = resources.createEncounter(samePat);
+      Bundle again =
+          HapiClientStarterTransactionBundle.createTransactionBundle(
+              List.of(samePat, sameEnc, resources.createCondition(samePat, sameEnc)),
+              TransactionEntryMode.CONDITIONAL_CREATE);
+      Bundle againResponse = client.transaction().withBundle(again).execute();
+      check(
+          "conditional create",
+          server.getStore().size("Patient") == 1
+              && server.getStore().size("Condition") == 2
+              && againResponse.getEntry().get(0).getResponse().getStatus().startsWith("200"));
+
+      // update with a client-assigned id twice, then a conditional read answered with 304
+      Patient fixed = resources.createPatient("4711", "Fix", "Ed", "Fixe", new java.util.Date());
+      fixed.setId("Patient/fixed");
+      client.update().resource(fixed).execute();
+      MethodOutcome updated = client.update().resource(fixed).execute();
+      check("update", "2".equals(updated.getId().getVersionIdPart()));
+      ResourceCache cache = new ResourceCache(client, 10, java.time.Duration.ZERO);
+      cache.read(Patient.class, "fixed");
+      cache.read(Patient.class, "fixed");
+      check("If-None-Match", cache.getNotModifiedCount() == 1);
+
+      Bundle byIdentifier =
+          client
+              .search()
+              .forResource(Patient.class)
+              .where(
+                  Patient.IDENTIFIER
+                      .exactly()
+                      .systemAndCode("http://meinkrankhaus.de/fhir/sid/patientId", "4711"))
+              .returnBundle(Bundle.class)
+              .execute();
+      check("identifier search", byIdentifier.getTotal() == 1);
+
+      ElementProjection<PatientNames> projection = PatientNames.projection();
+      List<PatientNames> names = new ArrayList<>();
+      projection.search(projection.searchUrl(server.getServerBase(), "_id=fixed"), names::add);
+      check(
+          "_elements projection",
+          names.size() == 1
+              && "Fix".equals(names.get(0).getFamily())
+              && "Fixe".equals(names.get(0).getMaidenFamily()));
+
+      // load through the pipeline with the compact client, then page through all Patients
+      Stream<Resource> graphs =
+          IntStream.range(0, PATIENTS)
+              .boxed()
+              .flatMap(
+                  i -> {
+                    Patient p = HapiClientStarterTransactionBundle.createPatient();
+                    Encounter e = HapiClientStarterTransactionBundle.createEncounter(p);
+                    return Stream.of(
+                        p, e, HapiClientStarterTransactionBundle.createCondition(p, e));
+                  });
+      PipelineStats stats;
+      try (Stream<Bundle> bundles = TransactionBundleChunker.chunk(graphs)) {
+        stats =
+            new TransactionPipeline(
+                    b -> compact.transaction().withBundle(b).execute(),
+                    TransactionPipeline.DEFAULT_CAPACITY,
+                    chunk -> {})
+                .run(bundles.iterator());
+      }
+      System.out.println(stats);
+      long pagedPatients;
+      try (SearchPager pager =
+          new SearchPager(
+              compact, compact.search().forResource(Patient.class).returnBundle(Bundle.class))) {
+        pagedPatients = pager.resources(Patient.class).count();
+      }
+      check(
+          "pipeline and paging",
+          server.getStore().size("Condition") == PATIENTS + 2
+              && pagedPatients == server.getStore().size("Patient"));
+    }
+    System.out.println(failures == 0 ? "all checks passed" : failures + " checks FAILED");
+  }
+
+  private static void check(String name, boolean ok) {
+    System.out.println((ok ? "ok      " : "FAILED  ") + name);
+    if (!ok) {
+      failures++;
+    }
+  }
+}
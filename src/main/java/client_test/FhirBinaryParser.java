@@ -0,0 +1,432 @@
+package client_test;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.context.RuntimeChildContainedResources;
+import ca.uhn.fhir.context.RuntimeChildDirectResource;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.util.VersionUtil;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.Element;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.IntegerType;
+
+/**
+ * A compact binary encoding of R4 resources, derived from the runtime definitions of the {@link
+ * FhirContext} instead of a self-describing format: an element is written as the number of its
+ * child in the definition plus its values, so no element name is ever written. Strings, codes and
+ * URLs go through a per-resource string table and cost one or two bytes from their second use on,
+ * booleans and integers are written as such.
+ *
+ * <p>The encoding round-trips with the JSON parser: decoding gives a resource that encodes to the
+ * same JSON as the original. Child numbers depend on the HAPI structures, so the encoding is meant
+ * for spooling and caches within one deployment, not as an exchange format; a resource encoded by
+ * another HAPI version is rejected by the version in the header. Thread-safe.
+ */
+public class FhirBinaryParser implements ResourceCodec {
+
+  private static final int MAGIC = 0xF4B1;
+  private static final int FORMAT_VERSION = 1;
+
+  private static final int HAS_VALUE = 1;
+  private static final int HAS_ID = 2;
+  private static final int HAS_EXTENSION = 4;
+  private static final int HAS_COMMENTS = 8;
+
+  private final FhirContext ctx;
+  private final int structuresVersion;
+
+  private static final class DefaultHolder {
+    private static final FhirBinaryParser DEFAULT =
+        new FhirBinaryParser(FhirClientFactory.getContext());
+  }
+
+  /** The parser for the context of {@link FhirClientFactory}. */
+  public static FhirBinaryParser getDefault() {
+    return DefaultHolder.DEFAULT;
+  }
+
+  public FhirBinaryParser(FhirContext ctx) {
+    if (ctx.getVersion().getVersion() != FhirVersionEnum.R4) {
+      throw new IllegalArgumentException("only R4 is supported");
+    }
+    this.ctx = ctx;
+    this.structuresVersion = VersionUtil.getVersion().hashCode() & 0x7fffffff;
+  }
+
+  public byte[] encodeResourceToBytes(IBaseResource resource) {
+    Output out = new Output();
+    out.writeVarint(MAGIC);
+    out.writeVarint(FORMAT_VERSION);
+    out.writeVarint(structuresVersion);
+    new Encoder(out).resource(resource);
+    return out.toByteArray();
+  }
+
+  public void encodeResourceToStream(IBaseResource resource, OutputStream stream)
+      throws IOException {
+    stream.write(encodeResourceToBytes(resource));
+  }
+
+  @Override
+  public byte[] encode(IBaseResource resource) {
+    return encodeResourceToBytes(resource);
+  }
+
+  @Override
+  public IBaseResource decode(byte[] bytes) {
+    return parseResource(bytes);
+  }
+
+  public IBaseResource parseResource(byte[] bytes) {
+    Input in = new Input(bytes);
+    if (in.readVarint() != MAGIC) {
+      throw new DataFormatException("not a binary FHIR resource");
+    }
+    if (in.readVarint() != FORMAT_VERSION || in.readVarint() != structuresVersion) {
+      throw new DataFormatException("resource was encoded with another format or HAPI version");
+    }
+    return new Decoder(in).resource();
+  }
+
+  public <T extends IBaseResource> T parseResource(Class<T> type, byte[] bytes) {
+    return type.cast(parseResource(bytes));
+  }
+
+  public IBaseResource parseResource(InputStream stream) throws IOException {
+    return parseResource(stream.readAllBytes());
+  }
+
+  public <T extends IBaseResource> T parseResource(Class<T> type, InputStream stream)
+      throws IOException {
+    return type.cast(parseResource(stream));
+  }
+
+  // a child with several types or holding resources writes the type of every value
+  private static boolean isTagged(BaseRuntimeChildDefinition child) {
+    return child.getValidChildNames().size() != 1
+        || child instanceof RuntimeChildDirectResource
+        || child instanceof RuntimeChildContainedResources;
+  }
+
+  private final class Encoder {
+    final Output out;
+    final Map<String, Integer> strings = new HashMap<>();
+
+    Encoder(Output out) {
+      this.out = out;
+    }
+
+    void resource(IBaseResource resource) {
+      RuntimeResourceDefinition definition = ctx.getResourceDefinition(resource);
+      string(definition.getName());
+      composite(resource, definition);
+    }
+
+    void composite(IBase element, BaseRuntimeElementCompositeDefinition<?> definition) {
+      List<BaseRuntimeChildDefinition> children = definition.getChildrenAndExtension();
+      // comments of parsed XML, the JSON parser keeps them as fhir_comments
+      if (element.hasFormatComment()) {
+        out.writeVarint(children.size() + 1);
+        comments(element);
+      }
+      for (int i = 0; i < children.size(); i++) {
+        BaseRuntimeChildDefinition child = children.get(i);
+        List<? extends IBase> values = child.getAccessor().getValues(element);
+        int count = 0;
+        for (IBase value : values) {
+          count += value.isEmpty() ? 0 : 1;
+        }
+        if (count == 0) {
+          continue;
+        }
+        out.writeVarint(i + 1);
+        out.writeVarint(count);
+        boolean tagged = isTagged(child);
+        for (IBase value : values) {
+          if (!value.isEmpty()) {
+            value(child, value, tagged);
+          }
+        }
+      }
+      out.writeVarint(0);
+    }
+
+    void value(BaseRuntimeChildDefinition child, IBase value, boolean tagged) {
+      if (value instanceof IBaseResource) {
+        resource((IBaseResource) value);
+        return;
+      }
+      String name;
+      if (tagged) {
+        name = child.getChildNameByDatatype(value.getClass());
+        string(name);
+      } else {
+        name = child.getElementName();
+      }
+      BaseRuntimeElementDefinition<?> definition = child.getChildByName(name);
+      if (definition instanceof BaseRuntimeElementCompositeDefinition) {
+        composite(value, (BaseRuntimeElementCompositeDefinition<?>) definition);
+      } else {
+        primitive((IPrimitiveType<?>) value);
+      }
+    }
+
+    void primitive(IPrimitiveType<?> primitive) {
+      Element element = primitive instanceof Element ? (Element) primitive : null;
+      int flags = primitive.hasValue() ? HAS_VALUE : 0;
+      if (element != null && element.hasId()) {
+        flags |= HAS_ID;
+      }
+      if (element != null && element.hasExtension()) {
+        flags |= HAS_EXTENSION;
+      }
+      if (primitive.hasFormatComment()) {
+        flags |= HAS_COMMENTS;
+      }
+      out.writeVarint(flags);
+      if (primitive.hasValue()) {
+        if (primitive instanceof BooleanType) {
+          out.writeVarint(((BooleanType) primitive).booleanValue() ? 1 : 0);
+        } else if (primitive instanceof IntegerType) {
+          int value = ((IntegerType) primitive).getValue();
+          out.writeVarint((value << 1) ^ (value >> 31));
+        } else {
+          string(primitive.getValueAsString());
+        }
+      }
+      if ((flags & HAS_ID) != 0) {
+        string(element.getId());
+      }
+      if ((flags & HAS_EXTENSION) != 0) {
+        BaseRuntimeElementCompositeDefinition<?> extension =
+            (BaseRuntimeElementCompositeDefinition<?>) ctx.getElementDefinition(Extension.class);
+        out.writeVarint(element.getExtension().size());
+        for (Extension value : element.getExtension()) {
+          composite(value, extension);
+        }
+      }
+      if ((flags & HAS_COMMENTS) != 0) {
+        comments(primitive);
+      }
+    }
+
+    void comments(IBase element) {
+      for (List<String> comments :
+          List.of(element.getFormatCommentsPre(), element.getFormatCommentsPost())) {
+        out.writeVarint(comments.size());
+        comments.forEach(this::string);
+      }
+    }
+
+    // 0 and the UTF-8 bytes the first time, the table index + 1 after that
+    void string(String value) {
+      Integer index = strings.get(value);
+      if (index != null) {
+        out.writeVarint(index + 1);
+        return;
+      }
+      strings.put(value, strings.size());
+      out.writeVarint(0);
+      out.writeString(value);
+    }
+  }
+
+  private final class Decoder {
+    final Input in;
+    final List<String> strings = new ArrayList<>();
+
+    Decoder(Input in) {
+      this.in = in;
+    }
+
+    IBaseResource resource() {
+      String type = string();
+      RuntimeResourceDefinition definition = ctx.getResourceDefinition(type);
+      IBaseResource resource = definition.newInstance();
+      composite(resource, definition);
+      return resource;
+    }
+
+    void composite(IBase element, BaseRuntimeElementCompositeDefinition<?> definition) {
+      List<BaseRuntimeChildDefinition> children = definition.getChildrenAndExtension();
+      for (int index = in.readVarint(); index != 0; index = in.readVarint()) {
+        if (index == children.size() + 1) {
+          comments(element);
+          continue;
+        }
+        if (index > children.size()) {
+          throw new DataFormatException(definition.getName() + " has no child " + index);
+        }
+        BaseRuntimeChildDefinition child = children.get(index - 1);
+        boolean tagged = isTagged(child);
+        boolean resources =
+            child instanceof RuntimeChildDirectResource
+                || child instanceof RuntimeChildContainedResources;
+        for (int count = in.readVarint(); count > 0; count--) {
+          IBase value;
+          if (resources) {
+            value = resource();
+          } else {
+            String name = tagged ? string() : child.getElementName();
+            BaseRuntimeElementDefinition<?> valueDefinition = child.getChildByName(name);
+            if (valueDefinition == null) {
+              throw new DataFormatException("unknown element " + name);
+            }
+            value = valueDefinition.newInstance(child.getInstanceConstructorArguments());
+            if (valueDefinition instanceof BaseRuntimeElementCompositeDefinition) {
+              composite(value, (BaseRuntimeElementCompositeDefinition<?>) valueDefinition);
+            } else {
+              primitive((IPrimitiveType<?>) value);
+            }
+          }
+          child.getMutator().addValue(element, value);
+        }
+      }
+    }
+
+    void primitive(IPrimitiveType<?> primitive) {
+      int flags = in.readVarint();
+      if ((flags & HAS_VALUE) != 0) {
+        if (primitive instanceof BooleanType) {
+          ((BooleanType) primitive).setValue(in.readVarint() == 1);
+        } else if (primitive instanceof IntegerType) {
+          int value = in.readVarint();
+          ((IntegerType) primitive).setValue((value >>> 1) ^ -(value & 1));
+        } else {
+          primitive.setValueAsString(string());
+        }
+      }
+      if ((flags & HAS_ID) != 0) {
+        ((Element) primitive).setId(string());
+      }
+      if ((flags & HAS_EXTENSION) != 0) {
+        BaseRuntimeElementCompositeDefinition<?> definition =
+            (BaseRuntimeElementCompositeDefinition<?>) ctx.getElementDefinition(Extension.class);
+        for (int count = in.readVarint(); count > 0; count--) {
+          Extension extension = new Extension();
+          composite(extension, definition);
+          ((Element) primitive).addExtension(extension);
+        }
+      }
+      if ((flags & HAS_COMMENTS) != 0) {
+        comments(primitive);
+      }
+    }
+
+    void comments(IBase element) {
+      for (List<String> comments :
+          List.of(element.getFormatCommentsPre(), element.getFormatCommentsPost())) {
+        for (int count = in.readVarint(); count > 0; count--) {
+          comments.add(string());
+        }
+      }
+    }
+
+    String string() {
+      int index = in.readVarint();
+      if (index > 0) {
+        return strings.get(index - 1);
+      }
+      String value = in.readString();
+      strings.add(value);
+      return value;
+    }
+  }
+
+  private static final class Output {
+    byte[] buffer = new byte[512];
+    int size;
+
+    void writeVarint(int value) {
+      ensure(5);
+      while ((value & ~0x7f) != 0) {
+        buffer[size++] = (byte) ((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      buffer[size++] = (byte) value;
+    }
+
+    // length-prefixed UTF-8, ASCII without going through an encoder
+    void writeString(String value) {
+      int length = value.length();
+      boolean ascii = true;
+      for (int i = 0; i < length && ascii; i++) {
+        ascii = value.charAt(i) < 0x80;
+      }
+      if (!ascii) {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(utf8.length);
+        ensure(utf8.length);
+        System.arraycopy(utf8, 0, buffer, size, utf8.length);
+        size += utf8.length;
+        return;
+      }
+      writeVarint(length);
+      ensure(length);
+      for (int i = 0; i < length; i++) {
+        buffer[size++] = (byte) value.charAt(i);
+      }
+    }
+
+    void ensure(int bytes) {
+      if (size + bytes > buffer.length) {
+        buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + bytes));
+      }
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(buffer, size);
+    }
+  }
+
+  private static final class Input {
+    final byte[] buffer;
+    int position;
+
+    Input(byte[] buffer) {
+      this.buffer = buffer;
+    }
+
+    int readVarint() {
+      int value = 0;
+      for (int shift = 0; shift < 35; shift += 7) {
+        if (position >= buffer.length) {
+          throw new DataFormatException("truncated binary FHIR resource");
+        }
+        byte b = buffer[position++];
+        value |= (b & 0x7f) << shift;
+        if (b >= 0) {
+          return value;
+        }
+      }
+      throw new DataFormatException("malformed varint");
+    }
+
+    String readString() {
+      int length = readVarint();
+      if (length < 0 || position + length > buffer.length) {
+        throw new DataFormatException("truncated binary FHIR resource");
+      }
+      String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+      position += length;
+      return value;
+    }
+  }
+}
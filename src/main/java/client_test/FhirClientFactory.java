@@ -0,0 +1,176 @@
+package client_test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.context.PerformanceOptionsEnum;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IRestfulClientFactory;
+import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+
+/**
+ * Holds the one {@link FhirContext} of the application together with the clients and parsers built
+ * from it. The context is created with deferred model scanning and only the resource types used by
+ * the samples are scanned up front, so no entry point pays for a full model scan or a server
+ * conformance fetch.
+ */
+public final class FhirClientFactory {
+
+  public static final String DEFAULT_SERVER_BASE = "http://hapi.fhir.org/baseR4";
+  public static final String SERVER_BASE_PROPERTY = "fhir.server.base";
+
+  static final List<Class<? extends IBaseResource>> PREWARMED_RESOURCE_TYPES =
+      List.of(Patient.class, Encounter.class, Condition.class, Bundle.class, Observation.class);
+
+  private static final int CONNECT_TIMEOUT_MILLIS = 5_000;
+  private static final int CONNECTION_REQUEST_TIMEOUT_MILLIS = 10_000;
+  private static final int SOCKET_TIMEOUT_MILLIS = 60_000;
+  private static final int POOL_MAX_TOTAL = 50;
+  private static final int POOL_MAX_PER_ROUTE = 20;
+
+  private static final Map<String, IGenericClient> CLIENTS = new ConcurrentHashMap<>();
+
+  // IParser instances are not thread-safe, so every thread gets its own
+  private static final ThreadLocal<IParser> JSON_PARSER =
+      ThreadLocal.withInitial(() -> getContext().newJsonParser().setPrettyPrint(true));
+  private static final ThreadLocal<IParser> COMPACT_JSON_PARSER =
+      ThreadLocal.withInitial(() -> getContext().newJsonParser().setPrettyPrint(false));
+
+  private FhirClientFactory() {}
+
+  private static final class ContextHolder {
+    private static final FhirContext CTX = createContext();
+  }
+
+  private static final class MeterRegistryHolder {
+    private static final MeterRegistry REGISTRY = createMeterRegistry();
+  }
+
+  public static FhirContext getContext() {
+    return ContextHolder.CTX;
+  }
+
+  /**
+   * The server of the samples: the system property {@code fhir.server.base}, where {@code embedded}
+   * starts an in-process {@link EmbeddedFhirServer}, or else the public HAPI test server.
+   */
+  public static String getServerBase() {
+    String serverBase = System.getProperty(SERVER_BASE_PROPERTY, DEFAULT_SERVER_BASE);
+    return EmbeddedFhirServer.EMBEDDED.equals(serverBase)
+        ? EmbeddedFhirServer.getShared().getServerBase()
+        : serverBase;
+  }
+
+  public static IGenericClient getClient() {
+    return getClient(getServerBase());
+  }
+
+  public static IGenericClient getClient(String serverBase) {
+    return getClient(serverBase, WireProfile.DEFAULT);
+  }
+
+  public static IGenericClient getClient(String serverBase, WireProfile profile) {
+    return CLIENTS.computeIfAbsent(
+        profile + " " + serverBase,
+        key -> {
+          IGenericClient client = getContext().newRestfulGenericClient(serverBase);
+          profile.apply(client);
+          // registered last, so it sees the request body as it goes on the wire
+          client.registerInterceptor(new ClientMetricsInterceptor(getMeterRegistry(), serverBase));
+          return client;
+        });
+  }
+
+  /**
+   * The registry the client meters are recorded in: Micrometer's global registry, with an in-memory
+   * registry added so the values can be read without a monitoring backend. Add an exporting
+   * registry to {@link Metrics#globalRegistry} to publish them.
+   */
+  public static MeterRegistry getMeterRegistry() {
+    return MeterRegistryHolder.REGISTRY;
+  }
+
+  public static IParser getJsonParser() {
+    return JSON_PARSER.get();
+  }
+
+  public static IParser getCompactJsonParser() {
+    return COMPACT_JSON_PARSER.get();
+  }
+
+  static FhirContext createContext() {
+    FhirContext ctx = new FhirContext(FhirVersionEnum.R4);
+    ctx.setPerformanceOptions(PerformanceOptionsEnum.DEFERRED_MODEL_SCANNING);
+    PREWARMED_RESOURCE_TYPES.forEach(ctx::getResourceDefinition);
+
+    IRestfulClientFactory clientFactory = ctx.getRestfulClientFactory();
+    clientFactory.setServerValidationMode(ServerValidationModeEnum.NEVER);
+    clientFactory.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+    clientFactory.setConnectionRequestTimeout(CONNECTION_REQUEST_TIMEOUT_MILLIS);
+    clientFactory.setSocketTimeout(SOCKET_TIMEOUT_MILLIS);
+    clientFactory.setPoolMaxTotal(POOL_MAX_TOTAL);
+    clientFactory.setPoolMaxPerRoute(POOL_MAX_PER_ROUTE);
+    // built here instead of by HAPI, so the connection pool can be observed
+    clientFactory.setHttpClient(createHttpClient());
+    return ctx;
+  }
+
+  private static HttpClient createHttpClient() {
+    PoolingHttpClientConnectionManager connectionManager =
+        new PoolingHttpClientConnectionManager(5_000, TimeUnit.MILLISECONDS);
+    connectionManager.setMaxTotal(POOL_MAX_TOTAL);
+    connectionManager.setDefaultMaxPerRoute(POOL_MAX_PER_ROUTE);
+    RequestConfig requestConfig =
+        RequestConfig.custom()
+            .setConnectTimeout(CONNECT_TIMEOUT_MILLIS)
+            .setConnectionRequestTimeout(CONNECTION_REQUEST_TIMEOUT_MILLIS)
+            .setSocketTimeout(SOCKET_TIMEOUT_MILLIS)
+            .build();
+
+    MeterRegistry registry = getMeterRegistry();
+    Gauge.builder("fhir.client.pool.leased", connectionManager, c -> c.getTotalStats().getLeased())
+        .description("Connections in use")
+        .register(registry);
+    Gauge.builder(
+            "fhir.client.pool.available", connectionManager, c -> c.getTotalStats().getAvailable())
+        .description("Idle connections kept alive")
+        .register(registry);
+    Gauge.builder(
+            "fhir.client.pool.pending", connectionManager, c -> c.getTotalStats().getPending())
+        .description("Requests waiting for a connection")
+        .register(registry);
+    Gauge.builder("fhir.client.pool.max", connectionManager, c -> c.getTotalStats().getMax())
+        .description("Maximum number of pooled connections")
+        .register(registry);
+
+    return ClientMetricsInterceptor.instrument(
+        HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            .disableCookieManagement()
+            .build());
+  }
+
+  private static MeterRegistry createMeterRegistry() {
+    Metrics.addRegistry(new SimpleMeterRegistry());
+    return Metrics.globalRegistry;
+  }
+}
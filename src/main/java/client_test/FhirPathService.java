@@ -0,0 +1,96 @@
+package client_test;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.hl7.fhir.r4.context.IWorkerContext;
+import org.hl7.fhir.r4.hapi.ctx.HapiWorkerContext;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.ExpressionNode;
+import org.hl7.fhir.r4.utils.FHIRPathEngine;
+
+/**
+ * FhirPath evaluation with parsed expressions kept in an LRU cache, so an expression is parsed once
+ * instead of on every call as with {@code new FhirPathR4(ctx).evaluate(...)}.
+ *
+ * <p>There is one service per {@link FhirContext}, kept for the life of the JVM like the context
+ * itself; call {@link #forContext} with long-lived contexts only. The expensive worker context is
+ * shared by all threads, the {@link FHIRPathEngine} on top of it keeps per-evaluation state and is
+ * therefore created once per thread.
+ */
+public class FhirPathService {
+
+  public static final int DEFAULT_CACHE_SIZE = 256;
+
+  // the service holds its context through the worker context, a weak key would never be cleared
+  private static final Map<FhirContext, FhirPathService> SERVICES =
+      Collections.synchronizedMap(new HashMap<>());
+
+  private final ThreadLocal<FHIRPathEngine> engines;
+  private final Map<String, ExpressionNode> expressions;
+
+  FhirPathService(FhirContext ctx, int cacheSize) {
+    IWorkerContext workerContext = new HapiWorkerContext(ctx, ctx.getValidationSupport());
+    this.engines = ThreadLocal.withInitial(() -> new FHIRPathEngine(workerContext));
+    this.expressions =
+        Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+              @Override
+              protected boolean removeEldestEntry(Map.Entry<String, ExpressionNode> eldest) {
+                return size() > cacheSize;
+              }
+            });
+  }
+
+  public static FhirPathService getInstance() {
+    return forContext(FhirClientFactory.getContext());
+  }
+
+  public static FhirPathService forContext(FhirContext ctx) {
+    return SERVICES.computeIfAbsent(ctx, c -> new FhirPathService(c, DEFAULT_CACHE_SIZE));
+  }
+
+  public ExpressionNode compile(String expression) {
+    ExpressionNode node = expressions.get(expression);
+    if (node == null) {
+      // parsed outside the lock, a concurrent first use may parse twice but never blocks others
+      node = engines.get().parse(expression);
+      expressions.put(expression, node);
+    }
+    return node;
+  }
+
+  public List<Base> evaluate(Base input, String expression) {
+    return evaluate(input, compile(expression));
+  }
+
+  public <T extends Base> List<T> evaluate(Base input, String expression, Class<T> type) {
+    return evaluate(input, compile(expression)).stream()
+        .map(type::cast)
+        .collect(Collectors.toList());
+  }
+
+  public List<Base> evaluate(Base input, ExpressionNode expression) {
+    return engines.get().evaluate(input, expression);
+  }
+
+  /**
+   * Evaluates one expression against every resource of the stream in parallel. The mapper receives
+   * the resource together with its result and runs on the worker threads.
+   */
+  public <R extends Base, T> Stream<T> evaluate(
+      Stream<R> resources, String expression, BiFunction<R, List<Base>, T> mapper) {
+    ExpressionNode node = compile(expression);
+    return resources.parallel().map(r -> mapper.apply(r, evaluate(r, node)));
+  }
+
+  int cachedExpressionCount() {
+    return expressions.size();
+  }
+}
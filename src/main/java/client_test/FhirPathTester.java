@@ -1,9 +1,7 @@
 package client_test;
 
-import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
 import java.util.List;
-import org.hl7.fhir.r4.hapi.fluentpath.FhirPathR4;
 import org.hl7.fhir.r4.model.Base;
 import org.hl7.fhir.r4.model.Extension;
 import org.hl7.fhir.r4.model.Observation;
@@ -12,12 +10,11 @@ import org.hl7.fhir.r4.model.Type;
 
 public class FhirPathTester {
   public static void main(String[] args) {
-    FhirContext ctx = FhirContext.forR4();
-    IParser iParser = ctx.newJsonParser().setPrettyPrint(true);
+    IParser iParser = FhirClientFactory.getJsonParser();
 
-    Patient patient = HapiClientStarter.createPatient();
-    FhirPathR4 fhirpath = new FhirPathR4(ctx);
-    List<Base> evaluate = fhirpath.evaluate(patient, "Patient.name", Base.class);
+    Patient patient = IsikResourceFactory.getDefault().createPatient();
+    FhirPathService fhirpath = FhirPathService.getInstance();
+    List<Base> evaluate = fhirpath.evaluate(patient, "Patient.name");
     System.out.println(evaluate.size());
     evaluate.forEach(
         e -> {
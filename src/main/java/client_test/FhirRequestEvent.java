@@ -0,0 +1,59 @@
+package client_test;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR event for one FHIR client request, from sending the request until the response body is
+ * closed. Recorded by {@link ClientMetricsInterceptor} when a recording has it enabled, e.g. with
+ * {@code -XX:StartFlightRecording}.
+ */
+@Name("client_test.FhirRequest")
+@Label("FHIR Request")
+@Category({"FHIR", "Client"})
+@Description("A request of an IGenericClient, from sending until the response is processed")
+class FhirRequestEvent extends Event {
+
+  @Label("Operation")
+  String operation;
+
+  @Label("Resource Type")
+  String resourceType;
+
+  @Label("Method")
+  String method;
+
+  @Label("URL")
+  String url;
+
+  @Label("Status")
+  @Description("HTTP status, 0 when the transport failed")
+  int status;
+
+  @Label("Exception")
+  @Description("Class of the transport exception, if any")
+  String exception;
+
+  @Label("Request Size")
+  @DataAmount
+  long requestBytes;
+
+  @Label("Response Size")
+  @DataAmount
+  long responseBytes;
+
+  @Label("Network Time")
+  @Description("Sending the request until the response headers arrived")
+  @Timespan
+  long networkNanos;
+
+  @Label("Processing Time")
+  @Description("Reading and parsing the response body")
+  @Timespan
+  long processingNanos;
+}
@@ -0,0 +1,45 @@
+package client_test;
+
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Patient;
+
+public class HapiClientStarterAsync {
+
+  public static void main(String[] args) {
+
+    AsyncFhirClient client = new AsyncFhirClient(FhirClientFactory.getServerBase());
+    IParser parser = FhirClientFactory.getJsonParser();
+
+    IsikResourceFactory resources = IsikResourceFactory.getDefault();
+    Patient pat = resources.createPatient();
+    Encounter enc = resources.createEncounter(pat);
+    Condition cond = resources.createCondition(pat, enc);
+
+    // the server assigns the ids: the Encounter is created once the Patient has its id, the
+    // Condition once both have one; no thread waits in between
+    Bundle bundle =
+        client
+            .create(pat)
+            .thenCompose(
+                created -> {
+                  pat.setId(created.getId().toUnqualifiedVersionless());
+                  return client.create(enc);
+                })
+            .thenCompose(
+                created -> {
+                  enc.setId(created.getId().toUnqualifiedVersionless());
+                  return client.create(cond);
+                })
+            .thenCompose(
+                created ->
+                    client.search(
+                        "Condition?_id="
+                            + created.getId().getIdPart()
+                            + "&_include=Condition:patient&_include=Condition:encounter"))
+            .join();
+    System.out.println(parser.encodeResourceToString(bundle));
+  }
+}
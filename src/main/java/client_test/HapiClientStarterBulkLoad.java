@@ -0,0 +1,55 @@
+package client_test;
+
+import client_test.TransactionPipeline.ChunkStats;
+import client_test.TransactionPipeline.PipelineStats;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+
+public class HapiClientStarterBulkLoad {
+
+  public static void main(String[] args) throws InterruptedException {
+    int patientCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000;
+
+    // resources are generated lazily, only the bundles in the pipeline are held in memory
+    Stream<Resource> resources =
+        IntStream.range(0, patientCount).boxed().flatMap(i -> createPatientGraph());
+    try (Stream<Bundle> bundles =
+        TransactionBundleChunker.chunk(resources, 300, 1024 * 1024, TransactionEntryMode.CREATE)) {
+      PipelineStats stats = new PipelineStats();
+      AtomicInteger chunkNumber = new AtomicInteger();
+      try (TransactionSubmitter submitter =
+          new TransactionSubmitter(FhirClientFactory.getClient())) {
+        submitter.submitAll(
+            bundles.iterator(),
+            outcome -> {
+              if (!outcome.isSuccess()) {
+                System.out.println("bundle failed: " + outcome.getError().getMessage());
+                return;
+              }
+              ChunkStats chunkStats =
+                  new ChunkStats(
+                      chunkNumber.incrementAndGet(),
+                      outcome.getRequest().getEntry().size(),
+                      outcome.getLatencyNanos());
+              stats.add(chunkStats);
+              chunkStats.print();
+            });
+      }
+      stats.finish();
+      System.out.println(stats);
+    }
+  }
+
+  private static Stream<Resource> createPatientGraph() {
+    Patient pat = HapiClientStarterTransactionBundle.createPatient();
+    Encounter enc = HapiClientStarterTransactionBundle.createEncounter(pat);
+    Condition cond = HapiClientStarterTransactionBundle.createCondition(pat, enc);
+    return Stream.of(pat, enc, cond);
+  }
+}
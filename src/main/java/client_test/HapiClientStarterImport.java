@@ -0,0 +1,51 @@
+package client_test;
+
+import client_test.NdjsonImporter.ImportStats;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class HapiClientStarterImport {
+
+  // usage: HapiClientStarterImport <file or directory>... ; a crashed run resumes from the
+  // checkpoint when started again with the same arguments. The checkpoint lies next to the first
+  // argument, e.g. data.import-checkpoint for the directory data.
+  public static void main(String[] args) throws IOException, InterruptedException {
+    if (args.length == 0) {
+      System.out.println("usage: HapiClientStarterImport <file or directory>...");
+      return;
+    }
+    List<Path> files = new ArrayList<>();
+    for (String arg : args) {
+      Path path = Paths.get(arg);
+      if (Files.isDirectory(path)) {
+        try (Stream<Path> children = Files.list(path)) {
+          files.addAll(
+              children
+                  .filter(Files::isRegularFile)
+                  .filter(HapiClientStarterImport::isInput)
+                  .sorted()
+                  .collect(Collectors.toList()));
+        }
+      } else {
+        files.add(path);
+      }
+    }
+
+    Path first = Paths.get(args[0]).toAbsolutePath().normalize();
+    Path checkpoint = first.resolveSibling(first.getFileName() + ".import-checkpoint");
+    NdjsonImporter importer = new NdjsonImporter(FhirClientFactory.getClient(), checkpoint);
+    ImportStats stats = importer.importFiles(files);
+    System.out.println(stats);
+  }
+
+  private static boolean isInput(Path file) {
+    String name = file.getFileName().toString();
+    return name.endsWith(".ndjson") || name.endsWith(".json");
+  }
+}
@@ -0,0 +1,35 @@
+package client_test;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Patient;
+
+public class HapiClientStarterOutbox {
+
+  // the transaction of HapiClientStarterTransactionBundle, written to the outbox first; when the
+  // server is down it stays in ./outbox and goes out with the next run
+  public static void main(String[] args) throws IOException, InterruptedException {
+    try (ClientOutbox outbox = ClientOutbox.open(Paths.get("outbox"));
+        OutboxDrainer drainer = new OutboxDrainer(outbox, FhirClientFactory.getClient()).start()) {
+      Patient pat = HapiClientStarterTransactionBundle.createPatient();
+      Encounter enc = HapiClientStarterTransactionBundle.createEncounter(pat);
+      Condition cond = HapiClientStarterTransactionBundle.createCondition(pat, enc);
+      Bundle bundle =
+          HapiClientStarterTransactionBundle.createTransactionBundle(List.of(pat, enc, cond));
+      System.out.println("appended " + outbox.transaction(bundle));
+      outbox.flush();
+
+      if (drainer.awaitDrained(30, TimeUnit.SECONDS)) {
+        System.out.println("sent " + drainer.getSentCount() + " operations to the server");
+      } else {
+        System.out.println(
+            outbox.getBacklog() + " operations still in the outbox, the server is not reachable");
+      }
+    }
+  }
+}
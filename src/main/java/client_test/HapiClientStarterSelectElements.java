@@ -1,51 +1,43 @@
 package client_test;
 
-import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
-import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.gclient.TokenClientParam;
-import java.util.Date;
+import java.io.IOException;
+import java.util.List;
 import java.util.Optional;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.r4.model.Bundle;
-import org.hl7.fhir.r4.model.CodeableConcept;
-import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.Condition;
 import org.hl7.fhir.r4.model.Encounter;
-import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
 import org.hl7.fhir.r4.model.Extension;
 import org.hl7.fhir.r4.model.HumanName;
 import org.hl7.fhir.r4.model.HumanName.NameUse;
-import org.hl7.fhir.r4.model.Identifier;
 import org.hl7.fhir.r4.model.Patient;
-import org.hl7.fhir.r4.model.Reference;
-import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.ResourceType;
 import org.hl7.fhir.r4.model.StringType;
 
 public class HapiClientStarterSelectElements {
 
-  public static void main(String[] args) {
+  public static void main(String[] args) throws IOException {
 
-    FhirContext ctx = FhirContext.forR4();
-    String serverBase = "http://hapi.fhir.org/baseR4";
-    IGenericClient client = ctx.newRestfulGenericClient(serverBase);
+    IGenericClient client = FhirClientFactory.getClient();
+    IParser parser = FhirClientFactory.getJsonParser();
 
-    IParser parser = ctx.newJsonParser().setPrettyPrint(true);
-
-    Patient pat = createPatient();
+    IsikResourceFactory resources = IsikResourceFactory.getDefault();
+    Patient pat = resources.createPatient();
     System.out.println(parser.encodeResourceToString(pat));
-    Encounter enc = createEncounter(pat);
+    Encounter enc = resources.createEncounter(pat);
     System.out.println(parser.encodeResourceToString(enc));
-    Condition cond = createCondition(pat, enc);
-    MethodOutcome execute;
-    execute = client.update().resource(pat).execute();
-    System.out.println(execute.getId());
-    execute = client.update().resource(enc).execute();
-    System.out.println(execute.getId());
-    execute = client.create().resource(cond).execute();
-    IIdType id = execute.getId();
+    Condition cond = resources.createCondition(pat, enc);
+    // one transaction with server-assigned ids instead of fixed ids that collide between runs,
+    // the planner links the references through urn:uuid fullUrls
+    Bundle transaction =
+        new TransactionPlanner()
+            .plan(List.of(pat, enc, cond))
+            .toBundle(TransactionEntryMode.CREATE);
+    Bundle response = client.transaction().withBundle(transaction).execute();
+    IIdType id = HapiClientStarterTransactionBundle.createdId(transaction, response, cond);
     System.out.println(id);
 
     Bundle bundle =
@@ -61,16 +53,24 @@ public class HapiClientStarterSelectElements {
     System.out.println(parser.encodeResourceToString(bundle));
 
     selectItemsFromBundle(bundle);
+
+    // only Patient.name is sent and read, without building the Patient
+    IIdType patientId = HapiClientStarterTransactionBundle.createdId(transaction, response, pat);
+    ElementProjection<PatientNames> projection = PatientNames.projection();
+    projection.search(
+        projection.searchUrl(client.getServerBase(), "_id=" + patientId.getIdPart()),
+        names -> {
+          System.out.println("name: " + names.getFamily() + " " + names.getGiven());
+          System.out.println(
+              "Geburtsname: " + names.getMaidenFamily() + " " + names.getMaidenGiven());
+          System.out.println("Name(Extension): " + names.getOwnName());
+        });
   }
 
   private static void selectItemsFromBundle(Bundle bundle) {
+    BundleIndex index = new BundleIndex(bundle);
     // PATIENT
-    Optional<Resource> patResource =
-        bundle.getEntry().stream()
-            .filter(e -> e.getResource().getResourceType().equals(ResourceType.Patient))
-            .map(e -> e.getResource())
-            .findAny();
-    Patient patient = (Patient) patResource.get();
+    Patient patient = index.getFirst(ResourceType.Patient, Patient.class).get();
     // NAME
     Optional<HumanName> name =
         patient.getName().stream().filter(n -> n.getUse().equals(NameUse.OFFICIAL)).findAny();
@@ -87,106 +87,15 @@ public class HapiClientStarterSelectElements {
       StringType value = (StringType) extension.getValue();
       System.out.println("Name(Extension): " + value.getValue());
     }
-  }
-
-  private static Patient createPatient() {
-    Patient patient = new Patient();
-    CodeableConcept cc = new CodeableConcept();
-    cc.addCoding().setSystem("http://terminology.hl7.org/CodeSystem/v2-0203").setCode("MR");
-    patient
-        .addIdentifier()
-        .setSystem("http://meinkrankhaus.de/fhir/sid/patientId")
-        .setValue("0123456789")
-        .setType(cc);
-    patient.setId("testId");
-    patient.setActive(true);
-    patient.addName().setUse(NameUse.OFFICIAL).setFamily("Nachname").addGiven("Vorname");
-    patient
-        .addName()
-        .setUse(NameUse.MAIDEN)
-        .setFamily("Geburtsname")
-        .addGiven("Vorname")
-        .addExtension()
-        .setUrl("http://hl7.org/fhir/StructureDefinition/humanname-own-name")
-        .setValue(new StringType("Maidenextension"));
-
-    patient.setGender(AdministrativeGender.OTHER);
-    patient.setBirthDate(new Date());
-    return patient;
-  }
-
-  private static Condition createCondition(Patient patient, Encounter encounter) {
-    Condition condition = new Condition();
-    condition.setRecordedDate(new Date());
-    condition
-        .getClinicalStatus()
-        .addCoding()
-        .setSystem("http://terminology.hl7.org/CodeSystem/condition-clinical")
-        .setCode("active");
-    condition.setSubject(new Reference(patient));
-    condition.setEncounter(new Reference(encounter));
-    condition
-        .getCode()
-        .addCoding()
-        .setSystem("http://snomed.info/sct")
-        .setCode("389145006")
-        .setDisplay("allergisches Asthma");
-    return condition;
-  }
-
-  private static Encounter createEncounter(Patient patient) {
-    Encounter enc = new Encounter();
-    enc.setId("encounter01");
-    Identifier identifier = enc.addIdentifier();
-    identifier
-        .getType()
-        .addCoding()
-        .setSystem("http://terminology.hl7.org/CodeSystem/v2-0203")
-        .setCode("VN");
-    identifier.setSystem("http://meinkrankenhaus.de/sid/Fallnummer").setValue("0815");
-    enc.getServiceType()
-        .addCoding()
-        .setSystem("http://fhir.de/CodeSystem/dkgev/Fachabteilungsschluessel")
-        .setCode("0300")
-        .setDisplay("Kardiologie");
-    enc.getPeriod().setStart(new Date());
-    enc.setSubject(new Reference(patient));
-    enc.getClass_()
-        .setSystem("http://terminology.hl7.org/CodeSystem/v3-ActCode")
-        .setCode("IMP")
-        .setDisplay("inpatient encounter");
-    enc.getHospitalization()
-        .getAdmitSource()
-        .addCoding()
-        .setSystem("http://fhir.de/CodeSystem/dgkev/Aufnahmeanlass")
-        .setCode("N")
-        .setDisplay("Notfall");
-    Extension extension = enc.addExtension();
-    extension.setUrl("http://fhir.de/StructureDefinition/Aufnahmegrund");
-    extension
-        .addExtension()
-        .setUrl("ErsteUndZweiteStelle")
-        .setValue(
-            new Coding()
-                .setSystem("http://fhir.de/CodeSystem/dkgev/AufnahmegrundErsteUndZweiteStelle")
-                .setCode("01")
-                .setDisplay("Krankenhausbehandlung, vollstationär"));
-    extension
-        .addExtension()
-        .setUrl("DritteStelle")
-        .setValue(
-            new Coding()
-                .setSystem("http://fhir.de/CodeSystem/dkgev/AufnahmegrundDritteStelle")
-                .setCode("0"));
-    extension
-        .addExtension()
-        .setUrl("VierteStelle")
-        .setValue(
-            new Coding()
-                .setSystem("http://fhir.de/CodeSystem/dkgev/AufnahmegrundVierteStelle")
-                .setCode("1")
-                .setDisplay("Normalfall"));
-
-    return enc;
+    // CONDITION -> PATIENT, ENCOUNTER
+    for (Condition condition : index.getAll(ResourceType.Condition, Condition.class)) {
+      index
+          .resolve(condition.getSubject(), Patient.class)
+          .ifPresent(p -> System.out.println("Condition.subject: " + p.getIdElement().getIdPart()));
+      index
+          .resolve(condition.getEncounter(), Encounter.class)
+          .ifPresent(
+              e -> System.out.println("Condition.encounter: " + e.getIdElement().getIdPart()));
+    }
   }
 }
@@ -0,0 +1,615 @@
+package client_test;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.RuntimeChildResourceDefinition;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.util.FhirTerser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryRequestComponent;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * The resources of {@link EmbeddedFhirServer}: current versions only, kept as compact JSON in
+ * concurrent maps together with a token index on {@code identifier} and {@code _tag} and a
+ * reference index on every top-level Reference element. Ids are assigned from one counter starting
+ * at 1 and search results come in creation order, so a run against a fresh store is deterministic.
+ *
+ * <p>Writes, including a whole transaction, hold the write lock, so a search never sees half of a
+ * transaction. Supported search parameters are {@code _id}, {@code identifier}, {@code _tag}, the
+ * names of Reference elements (plus {@code patient} for {@code subject}), {@code _include}, {@code
+ * _elements}, {@code _count} and {@code _offset}; anything else is rejected with 400.
+ */
+public class InMemoryResourceStore {
+
+  public static final int DEFAULT_PAGE_SIZE = 20;
+
+  private static final Set<String> IGNORED_PARAMETERS = Set.of("_format", "_pretty");
+
+  private final Map<String, Stored> resources = new ConcurrentHashMap<>();
+  private final Map<String, ConcurrentSkipListMap<Long, Stored>> byType = new ConcurrentHashMap<>();
+  private final Map<String, Set<String>> index = new ConcurrentHashMap<>();
+  private final AtomicLong nextId = new AtomicLong();
+  private final AtomicLong nextSequence = new AtomicLong();
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private final FhirTerser terser = FhirClientFactory.getContext().newTerser();
+
+  // resources are encoded on the request threads, parsers are not thread-safe
+  private static final ThreadLocal<IParser> PARSER =
+      ThreadLocal.withInitial(() -> FhirClientFactory.getContext().newJsonParser());
+
+  /** A stored version: its JSON and the index keys it was entered under. */
+  public static final class Stored {
+    final String type;
+    final String id;
+    final long version;
+    final long sequence;
+    final String json;
+    final Map<String, List<String>> references;
+    final List<String> indexKeys;
+
+    Stored(
+        String type,
+        String id,
+        long version,
+        long sequence,
+        String json,
+        Map<String, List<String>> references,
+        List<String> indexKeys) {
+      this.type = type;
+      this.id = id;
+      this.version = version;
+      this.sequence = sequence;
+      this.json = json;
+      this.references = references;
+      this.indexKeys = indexKeys;
+    }
+
+    public String getKey() {
+      return type + "/" + id;
+    }
+
+    public long getVersion() {
+      return version;
+    }
+
+    public String getJson() {
+      return json;
+    }
+  }
+
+  /** The stored resource and whether the write created it. */
+  public static final class Outcome {
+    final Stored stored;
+    final boolean created;
+
+    Outcome(Stored stored, boolean created) {
+      this.stored = stored;
+      this.created = created;
+    }
+
+    public Stored getStored() {
+      return stored;
+    }
+
+    public boolean isCreated() {
+      return created;
+    }
+  }
+
+  /** One page of a search: the matches, the included resources and the total. */
+  public static final class SearchResult {
+    final List<Stored> matches;
+    final List<Stored> includes;
+    final int total;
+    final int offset;
+    final Set<String> elements;
+
+    SearchResult(
+        List<Stored> matches, List<Stored> includes, int total, int offset, Set<String> elements) {
+      this.matches = matches;
+      this.includes = includes;
+      this.total = total;
+      this.offset = offset;
+      this.elements = elements;
+    }
+
+    public List<Stored> getMatches() {
+      return matches;
+    }
+
+    public List<Stored> getIncludes() {
+      return includes;
+    }
+
+    public int getTotal() {
+      return total;
+    }
+
+    public int getOffset() {
+      return offset;
+    }
+
+    public boolean hasNext() {
+      return offset + matches.size() < total;
+    }
+
+    /** The top-level elements of _elements, empty for complete resources. */
+    public Set<String> getElements() {
+      return elements;
+    }
+  }
+
+  public Stored read(String type, String id) {
+    Stored stored = resources.get(type + "/" + id);
+    if (stored == null) {
+      throw new ResourceNotFoundException(type + "/" + id);
+    }
+    return stored;
+  }
+
+  public int size(String type) {
+    ConcurrentSkipListMap<Long, Stored> ofType = byType.get(type);
+    return ofType == null ? 0 : ofType.size();
+  }
+
+  /** Creates the resource, or returns the match of {@code ifNoneExist} (a search query) if any. */
+  public Outcome create(Resource resource, String ifNoneExist) {
+    lock.writeLock().lock();
+    try {
+      if (ifNoneExist != null) {
+        Stored existing = conditionalMatch(resource.fhirType(), ifNoneExist);
+        if (existing != null) {
+          return new Outcome(existing, false);
+        }
+      }
+      return write(resource, Long.toString(nextId.incrementAndGet()));
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Creates or replaces {@code Type/id}. */
+  public Outcome update(Resource resource, String id) {
+    lock.writeLock().lock();
+    try {
+      return write(resource, id);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Applies a JSON Patch to the current version of {@code Type/id}. With {@code ifMatch} the
+   * current version must be that version, otherwise 412.
+   */
+  public Outcome patch(String type, String id, JsonNode patch, String ifMatch) {
+    lock.writeLock().lock();
+    try {
+      Stored stored = read(type, id);
+      if (ifMatch != null && !ifMatch.equals(Long.toString(stored.version))) {
+        throw new PreconditionFailedException(
+            stored.getKey() + " is at version " + stored.version + ", not " + ifMatch);
+      }
+      JsonNode patched = JsonPatch.apply(MAPPER.readTree(stored.json), patch);
+      Resource resource = (Resource) PARSER.get().parseResource(patched.toString());
+      if (!resource.fhirType().equals(type)) {
+        throw new InvalidRequestException("the patch changes the resource type");
+      }
+      return write(resource, id);
+    } catch (JsonProcessingException e) {
+      throw new IllegalStateException("stored JSON of " + type + "/" + id + " is invalid", e);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Updates the one match of the query, or creates the resource if nothing matches. */
+  public Outcome conditionalUpdate(Resource resource, String query) {
+    lock.writeLock().lock();
+    try {
+      Stored existing = conditionalMatch(resource.fhirType(), query);
+      return write(
+          resource, existing == null ? Long.toString(nextId.incrementAndGet()) : existing.id);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Processes POST and PUT entries, conditional ones included, as one unit: every id is resolved
+   * before the first write, so a failing entry leaves the store unchanged. References to the
+   * fullUrls of other entries are rewritten to the ids they got.
+   */
+  public List<Outcome> transaction(Bundle bundle) {
+    lock.writeLock().lock();
+    try {
+      List<String> ids = new ArrayList<>(bundle.getEntry().size());
+      List<Stored> matched = new ArrayList<>(bundle.getEntry().size());
+      Map<String, String> fullUrls = new HashMap<>();
+      for (BundleEntryComponent entry : bundle.getEntry()) {
+        Resource resource = entry.getResource();
+        BundleEntryRequestComponent request = entry.getRequest();
+        if (resource == null || request.getMethod() == null) {
+          throw new InvalidRequestException("transaction entries need a resource and a request");
+        }
+        String type = resource.fhirType();
+        String url = request.getUrl();
+        Stored existing = null;
+        String id;
+        switch (request.getMethod()) {
+          case POST:
+            existing =
+                request.hasIfNoneExist() ? conditionalMatch(type, request.getIfNoneExist()) : null;
+            id = existing != null ? existing.id : Long.toString(nextId.incrementAndGet());
+            break;
+          case PUT:
+            if (url != null && url.contains("?")) {
+              Stored match = conditionalMatch(type, url.substring(url.indexOf('?') + 1));
+              id = match != null ? match.id : Long.toString(nextId.incrementAndGet());
+            } else {
+              id = new IdType(url).getIdPart();
+            }
+            break;
+          default:
+            throw new InvalidRequestException(
+                "unsupported transaction method " + request.getMethod());
+        }
+        ids.add(id);
+        matched.add(existing);
+        if (entry.hasFullUrl()) {
+          fullUrls.put(entry.getFullUrl(), type + "/" + id);
+        }
+      }
+
+      List<Outcome> outcomes = new ArrayList<>(ids.size());
+      for (int i = 0; i < ids.size(); i++) {
+        if (matched.get(i) != null) {
+          outcomes.add(new Outcome(matched.get(i), false));
+          continue;
+        }
+        Resource resource = bundle.getEntry().get(i).getResource();
+        for (Reference reference :
+            terser.getAllPopulatedChildElementsOfType(resource, Reference.class)) {
+          String target = fullUrls.get(reference.getReference());
+          if (target != null) {
+            reference.setReference(target);
+          }
+        }
+        outcomes.add(write(resource, ids.get(i)));
+      }
+      return outcomes;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private Stored conditionalMatch(String type, String query) {
+    SearchResult result = searchLocked(type, parseQuery(query));
+    if (result.total > 1) {
+      throw new PreconditionFailedException(
+          result.total + " " + type + " resources match " + query);
+    }
+    return result.matches.isEmpty() ? null : result.matches.get(0);
+  }
+
+  private Outcome write(Resource resource, String id) {
+    String type = resource.fhirType();
+    String key = type + "/" + id;
+    Stored previous = resources.get(key);
+    long version = previous == null ? 1 : previous.version + 1;
+    resource.setId(new IdType(type, id, Long.toString(version)));
+    resource.getMeta().setVersionId(Long.toString(version)).setLastUpdated(new Date());
+
+    Map<String, List<String>> references = references(resource);
+    List<String> indexKeys = indexKeys(resource, references);
+    Stored stored =
+        new Stored(
+            type,
+            id,
+            version,
+            previous == null ? nextSequence.incrementAndGet() : previous.sequence,
+            PARSER.get().encodeResourceToString(resource),
+            references,
+            indexKeys);
+    if (previous != null) {
+      previous.indexKeys.forEach(k -> index.get(k).remove(key));
+    }
+    indexKeys.forEach(k -> index.computeIfAbsent(k, x -> ConcurrentHashMap.newKeySet()).add(key));
+    resources.put(key, stored);
+    byType.computeIfAbsent(type, t -> new ConcurrentSkipListMap<>()).put(stored.sequence, stored);
+    return new Outcome(stored, previous == null);
+  }
+
+  // top-level Reference element name -> Type/id of the targets
+  private Map<String, List<String>> references(Resource resource) {
+    Map<String, List<String>> references = new HashMap<>();
+    RuntimeResourceDefinition definition =
+        FhirClientFactory.getContext().getResourceDefinition(resource);
+    for (BaseRuntimeChildDefinition child : definition.getChildren()) {
+      for (IBase value : child.getAccessor().getValues(resource)) {
+        if (value instanceof Reference && ((Reference) value).hasReference()) {
+          IdType target = new IdType(((Reference) value).getReference());
+          if (target.hasResourceType() && target.hasIdPart()) {
+            references
+                .computeIfAbsent(child.getElementName(), n -> new ArrayList<>(1))
+                .add(target.getResourceType() + "/" + target.getIdPart());
+          }
+        }
+      }
+    }
+    return references;
+  }
+
+  private List<String> indexKeys(Resource resource, Map<String, List<String>> references) {
+    String type = resource.fhirType();
+    List<String> keys = new ArrayList<>();
+    BaseRuntimeChildDefinition identifiers =
+        FhirClientFactory.getContext().getResourceDefinition(resource).getChildByName("identifier");
+    if (identifiers != null) {
+      for (IBase value : identifiers.getAccessor().getValues(resource)) {
+        Identifier identifier = (Identifier) value;
+        if (identifier.hasValue()) {
+          String system = identifier.hasSystem() ? identifier.getSystem() : "";
+          keys.add(tokenKey(type, "identifier", system, identifier.getValue()));
+          keys.add(tokenKey(type, "identifier", "*", identifier.getValue()));
+        }
+      }
+    }
+    for (Coding tag : resource.getMeta().getTag()) {
+      if (tag.hasCode()) {
+        keys.add(tokenKey(type, "_tag", tag.hasSystem() ? tag.getSystem() : "", tag.getCode()));
+        keys.add(tokenKey(type, "_tag", "*", tag.getCode()));
+      }
+    }
+    references.forEach(
+        (element, targets) -> targets.forEach(t -> keys.add(referenceKey(type, element, t))));
+    return keys;
+  }
+
+  private static String tokenKey(String type, String parameter, String system, String value) {
+    return type + "|" + parameter + "|" + system + "|" + value;
+  }
+
+  private static String referenceKey(String type, String element, String target) {
+    return type + "|" + element + "|" + target;
+  }
+
+  public SearchResult search(String type, Map<String, List<String>> parameters) {
+    lock.readLock().lock();
+    try {
+      return searchLocked(type, parameters);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private SearchResult searchLocked(String type, Map<String, List<String>> parameters) {
+    RuntimeResourceDefinition definition = definition(type);
+    Set<String> candidates = null;
+    int count = DEFAULT_PAGE_SIZE;
+    int offset = 0;
+    List<String> includes = new ArrayList<>();
+    Set<String> elements = new LinkedHashSet<>();
+    for (Map.Entry<String, List<String>> parameter : parameters.entrySet()) {
+      String name = parameter.getKey();
+      for (String value : parameter.getValue()) {
+        switch (name) {
+          case "_count":
+            count = integer(name, value);
+            break;
+          case "_offset":
+            offset = integer(name, value);
+            break;
+          case "_include":
+            includes.add(value);
+            break;
+          case "_elements":
+            elements.addAll(List.of(value.split(",")));
+            break;
+          case "_id":
+            candidates = intersect(candidates, ids(type, value));
+            break;
+          case "identifier":
+          case "_tag":
+            candidates = intersect(candidates, union(tokenKeys(type, name, value)));
+            break;
+          default:
+            if (IGNORED_PARAMETERS.contains(name)) {
+              break;
+            }
+            String element = referenceElement(definition, name);
+            candidates =
+                intersect(
+                    candidates, union(referenceKeys(type, element, referenceTarget(name, value))));
+        }
+      }
+    }
+
+    List<Stored> all = new ArrayList<>();
+    ConcurrentSkipListMap<Long, Stored> ofType = byType.get(type);
+    if (candidates == null) {
+      if (ofType != null) {
+        all.addAll(ofType.values());
+      }
+    } else {
+      for (String key : candidates) {
+        Stored stored = resources.get(key);
+        if (stored != null) {
+          all.add(stored);
+        }
+      }
+      all.sort((a, b) -> Long.compare(a.sequence, b.sequence));
+    }
+    List<Stored> page =
+        all.subList(Math.min(offset, all.size()), Math.min(offset + count, all.size()));
+    return new SearchResult(
+        new ArrayList<>(page),
+        include(definition, type, page, includes),
+        all.size(),
+        offset,
+        Collections.unmodifiableSet(elements));
+  }
+
+  private List<Stored> include(
+      RuntimeResourceDefinition definition, String type, List<Stored> page, List<String> includes) {
+    Set<String> seen = new HashSet<>();
+    page.forEach(s -> seen.add(s.getKey()));
+    List<Stored> included = new ArrayList<>();
+    for (String include : includes) {
+      String[] parts = include.split(":");
+      if (parts.length < 2 || !parts[0].equals(type)) {
+        throw new InvalidRequestException("unsupported _include " + include);
+      }
+      String element = referenceElement(definition, parts[1]);
+      for (Stored stored : page) {
+        for (String target : stored.references.getOrDefault(element, Collections.emptyList())) {
+          Stored resource = resources.get(target);
+          if (resource != null && seen.add(target)) {
+            included.add(resource);
+          }
+        }
+      }
+    }
+    return included;
+  }
+
+  private Set<String> ids(String type, String value) {
+    Set<String> keys = new HashSet<>();
+    for (String id : value.split(",")) {
+      keys.add(type + "/" + id.trim());
+    }
+    return keys;
+  }
+
+  private static List<String> tokenKeys(String type, String parameter, String value) {
+    List<String> keys = new ArrayList<>();
+    for (String token : value.split(",")) {
+      int bar = token.indexOf('|');
+      keys.add(
+          bar < 0
+              ? tokenKey(type, parameter, "*", token)
+              : tokenKey(type, parameter, token.substring(0, bar), token.substring(bar + 1)));
+    }
+    return keys;
+  }
+
+  private static List<String> referenceKeys(String type, String element, List<String> targets) {
+    List<String> keys = new ArrayList<>(targets.size());
+    targets.forEach(t -> keys.add(referenceKey(type, element, t)));
+    return keys;
+  }
+
+  // patient is the usual search parameter for subject
+  private static String referenceElement(RuntimeResourceDefinition definition, String name) {
+    BaseRuntimeChildDefinition child = definition.getChildByName(name);
+    if (child == null && "patient".equals(name)) {
+      child = definition.getChildByName("subject");
+    }
+    if (!(child instanceof RuntimeChildResourceDefinition)) {
+      throw new InvalidRequestException(
+          "unsupported search parameter " + definition.getName() + "." + name);
+    }
+    return child.getElementName();
+  }
+
+  private static List<String> referenceTarget(String name, String value) {
+    List<String> targets = new ArrayList<>();
+    for (String reference : value.split(",")) {
+      IdType id = new IdType(reference);
+      if (id.hasResourceType()) {
+        targets.add(id.getResourceType() + "/" + id.getIdPart());
+      } else if ("patient".equals(name)) {
+        targets.add("Patient/" + id.getIdPart());
+      } else {
+        throw new InvalidRequestException(name + " needs a Type/id reference: " + value);
+      }
+    }
+    return targets;
+  }
+
+  private Set<String> union(List<String> keys) {
+    Set<String> result = new HashSet<>();
+    for (String key : keys) {
+      result.addAll(index.getOrDefault(key, Collections.emptySet()));
+    }
+    return result;
+  }
+
+  private static Set<String> intersect(Set<String> candidates, Set<String> matches) {
+    if (candidates == null) {
+      return matches;
+    }
+    candidates.retainAll(matches);
+    return candidates;
+  }
+
+  private static int integer(String name, String value) {
+    try {
+      return Math.max(0, Integer.parseInt(value));
+    } catch (NumberFormatException e) {
+      throw new InvalidRequestException(name + " is not a number: " + value);
+    }
+  }
+
+  private static RuntimeResourceDefinition definition(String type) {
+    try {
+      return FhirClientFactory.getContext().getResourceDefinition(type);
+    } catch (RuntimeException e) {
+      throw new InvalidRequestException("unknown resource type " + type);
+    }
+  }
+
+  /** Splits a raw query string into decoded parameters, keeping their order. */
+  public static Map<String, List<String>> parseQuery(String query) {
+    Map<String, List<String>> parameters = new LinkedHashMap<>();
+    if (query == null || query.isEmpty()) {
+      return parameters;
+    }
+    for (String pair : query.split("&")) {
+      if (pair.isEmpty()) {
+        continue;
+      }
+      int equals = pair.indexOf('=');
+      String name = decode(equals < 0 ? pair : pair.substring(0, equals));
+      String value = equals < 0 ? "" : decode(pair.substring(equals + 1));
+      parameters.computeIfAbsent(name, n -> new ArrayList<>(1)).add(value);
+    }
+    return parameters;
+  }
+
+  private static String decode(String value) {
+    return URLDecoder.decode(value, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,95 @@
+package client_test;
+
+import java.nio.file.Path;
+import java.util.Date;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.HumanName.NameUse;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+
+/**
+ * Creates the ISiK Patient, Encounter and Condition of the samples from {@link ResourceTemplate}s.
+ * The codings, identifier types and extensions come from the template files and are parsed once;
+ * per record only identifier values, names, dates and references are filled in.
+ */
+public class IsikResourceFactory {
+
+  private final ResourceTemplate<Patient> patientTemplate;
+  private final ResourceTemplate<Encounter> encounterTemplate;
+  private final ResourceTemplate<Condition> conditionTemplate;
+
+  private IsikResourceFactory(
+      ResourceTemplate<Patient> patientTemplate,
+      ResourceTemplate<Encounter> encounterTemplate,
+      ResourceTemplate<Condition> conditionTemplate) {
+    this.patientTemplate = patientTemplate;
+    this.encounterTemplate = encounterTemplate;
+    this.conditionTemplate = conditionTemplate;
+  }
+
+  private static final class DefaultHolder {
+    private static final IsikResourceFactory DEFAULT =
+        new IsikResourceFactory(
+            ResourceTemplate.loadFromClasspath(Patient.class, "/templates/Patient.json"),
+            ResourceTemplate.loadFromClasspath(Encounter.class, "/templates/Encounter.json"),
+            ResourceTemplate.loadFromClasspath(Condition.class, "/templates/Condition.json"));
+  }
+
+  /** The factory for the templates shipped in src/main/resources/templates. */
+  public static IsikResourceFactory getDefault() {
+    return DefaultHolder.DEFAULT;
+  }
+
+  /** Loads Patient.json, Encounter.json and Condition.json from the given directory. */
+  public static IsikResourceFactory load(Path templateDirectory) {
+    return new IsikResourceFactory(
+        ResourceTemplate.load(Patient.class, templateDirectory.resolve("Patient.json")),
+        ResourceTemplate.load(Encounter.class, templateDirectory.resolve("Encounter.json")),
+        ResourceTemplate.load(Condition.class, templateDirectory.resolve("Condition.json")));
+  }
+
+  public Patient createPatient() {
+    return createPatient("0123456789", "Nachname", "Vorname", "Geburtsname", new Date());
+  }
+
+  public Patient createPatient(
+      String patientId, String family, String given, String birthFamily, Date birthDate) {
+    Patient patient = patientTemplate.instantiate();
+    patient.getIdentifierFirstRep().setValue(patientId);
+    for (HumanName name : patient.getName()) {
+      if (name.getUse() == NameUse.OFFICIAL) {
+        name.setFamily(family).addGiven(given);
+      } else if (name.getUse() == NameUse.MAIDEN) {
+        name.setFamily(birthFamily).addGiven(given);
+      }
+    }
+    patient.setBirthDate(birthDate);
+    return patient;
+  }
+
+  public Encounter createEncounter(Patient patient) {
+    return createEncounter(patient, "0815", new Date());
+  }
+
+  public Encounter createEncounter(Patient patient, String caseNumber, Date start) {
+    Encounter encounter = encounterTemplate.instantiate();
+    encounter.getIdentifierFirstRep().setValue(caseNumber);
+    encounter.getPeriod().setStart(start);
+    encounter.setSubject(new Reference(patient));
+    return encounter;
+  }
+
+  public Condition createCondition(Patient patient, Encounter encounter) {
+    return createCondition(patient, encounter, new Date());
+  }
+
+  public Condition createCondition(Patient patient, Encounter encounter, Date recordedDate) {
+    Condition condition = conditionTemplate.instantiate();
+    condition.setRecordedDate(recordedDate);
+    condition.setSubject(new Reference(patient));
+    condition.setEncounter(new Reference(encounter));
+    return condition;
+  }
+}
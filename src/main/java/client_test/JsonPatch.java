@@ -0,0 +1,202 @@
+package client_test;
+
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * RFC 6902 JSON Patch between two JSON documents, e.g. two versions of a resource.
+ *
+ * <p>{@link #diff} walks both trees once: members of objects are compared by name, arrays by index,
+ * so an array that only grew or shrank at its end costs add or remove operations for that end and
+ * an element changed in place is patched below that element. Elements inserted in the middle of an
+ * array make every following element a replace; FHIR arrays are usually appended to. {@link #apply}
+ * supports add, remove, replace and test, the operations {@link #diff} generates plus test for
+ * preconditions.
+ */
+public final class JsonPatch {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private JsonPatch() {}
+
+  /** The operations that turn {@code source} into {@code target}, an empty array if equal. */
+  public static ArrayNode diff(JsonNode source, JsonNode target) {
+    ArrayNode operations = MAPPER.createArrayNode();
+    diff(source, target, new StringBuilder(), operations);
+    return operations;
+  }
+
+  private static void diff(JsonNode source, JsonNode target, StringBuilder path, ArrayNode out) {
+    if (source.equals(target)) {
+      return;
+    }
+    int length = path.length();
+    if (source.isObject() && target.isObject()) {
+      for (Iterator<String> names = source.fieldNames(); names.hasNext(); ) {
+        String name = names.next();
+        appendToken(path, name);
+        if (!target.has(name)) {
+          operation(out, "remove", path, null);
+        } else {
+          diff(source.get(name), target.get(name), path, out);
+        }
+        path.setLength(length);
+      }
+      for (Iterator<Map.Entry<String, JsonNode>> fields = target.fields(); fields.hasNext(); ) {
+        Map.Entry<String, JsonNode> field = fields.next();
+        if (!source.has(field.getKey())) {
+          appendToken(path, field.getKey());
+          operation(out, "add", path, field.getValue());
+          path.setLength(length);
+        }
+      }
+    } else if (source.isArray() && target.isArray()) {
+      int common = Math.min(source.size(), target.size());
+      for (int i = 0; i < common; i++) {
+        diff(source.get(i), target.get(i), path.append('/').append(i), out);
+        path.setLength(length);
+      }
+      // removed from the end backwards, so the indexes stay valid
+      for (int i = source.size() - 1; i >= common; i--) {
+        operation(out, "remove", path.append('/').append(i), null);
+        path.setLength(length);
+      }
+      for (int i = common; i < target.size(); i++) {
+        operation(out, "add", path.append("/-"), target.get(i));
+        path.setLength(length);
+      }
+    } else {
+      operation(out, "replace", path, target);
+    }
+  }
+
+  private static void operation(ArrayNode out, String op, CharSequence path, JsonNode value) {
+    ObjectNode operation = out.addObject().put("op", op).put("path", path.toString());
+    if (value != null) {
+      operation.set("value", value);
+    }
+  }
+
+  private static void appendToken(StringBuilder path, String name) {
+    path.append('/');
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      if (c == '~') {
+        path.append("~0");
+      } else if (c == '/') {
+        path.append("~1");
+      } else {
+        path.append(c);
+      }
+    }
+  }
+
+  /**
+   * Applies the operations to a copy of the document. A failing test operation throws {@link
+   * PreconditionFailedException}, a malformed patch or a path that does not exist {@link
+   * InvalidRequestException}.
+   */
+  public static JsonNode apply(JsonNode document, JsonNode patch) {
+    if (!patch.isArray()) {
+      throw new InvalidRequestException("a JSON Patch is an array of operations");
+    }
+    ObjectNode root = MAPPER.createObjectNode();
+    root.set("", document.deepCopy());
+    for (JsonNode operation : patch) {
+      String op = operation.path("op").asText();
+      String path = operation.path("path").asText(null);
+      JsonNode value = operation.get("value");
+      if (path == null || (!"remove".equals(op) && value == null)) {
+        throw new InvalidRequestException("incomplete operation " + operation);
+      }
+      String[] tokens = tokens(path);
+      JsonNode parent = root;
+      for (int i = 0; i < tokens.length - 1; i++) {
+        parent = child(parent, tokens[i], path);
+      }
+      String last = tokens[tokens.length - 1];
+      switch (op) {
+        case "add":
+          add(parent, last, value.deepCopy(), path);
+          break;
+        case "remove":
+          remove(parent, last, path);
+          break;
+        case "replace":
+          remove(parent, last, path);
+          add(parent, last, value.deepCopy(), path);
+          break;
+        case "test":
+          if (!child(parent, last, path).equals(value)) {
+            throw new PreconditionFailedException("test failed at " + path);
+          }
+          break;
+        default:
+          throw new InvalidRequestException("unsupported JSON Patch operation " + op);
+      }
+    }
+    return root.get("");
+  }
+
+  // the document hangs below the empty name, so "" and "/a" both have a parent
+  private static String[] tokens(String path) {
+    if (!path.isEmpty() && !path.startsWith("/")) {
+      throw new InvalidRequestException("invalid JSON Pointer " + path);
+    }
+    String[] tokens = ("/" + path).substring(1).split("/", -1);
+    for (int i = 0; i < tokens.length; i++) {
+      tokens[i] = tokens[i].replace("~1", "/").replace("~0", "~");
+    }
+    return tokens;
+  }
+
+  private static JsonNode child(JsonNode parent, String token, String path) {
+    JsonNode child =
+        parent.isArray() ? parent.get(index(parent, token, path, false)) : parent.get(token);
+    if (child == null) {
+      throw new InvalidRequestException("no element at " + path);
+    }
+    return child;
+  }
+
+  private static void add(JsonNode parent, String token, JsonNode value, String path) {
+    if (parent.isObject()) {
+      ((ObjectNode) parent).set(token, value);
+    } else if (parent.isArray()) {
+      ((ArrayNode) parent).insert(index(parent, token, path, true), value);
+    } else {
+      throw new InvalidRequestException("no container at " + path);
+    }
+  }
+
+  private static void remove(JsonNode parent, String token, String path) {
+    if (parent.isObject() && parent.has(token)) {
+      ((ObjectNode) parent).remove(token);
+    } else if (parent.isArray()) {
+      ((ArrayNode) parent).remove(index(parent, token, path, false));
+    } else {
+      throw new InvalidRequestException("no element at " + path);
+    }
+  }
+
+  private static int index(JsonNode array, String token, String path, boolean forAdd) {
+    if (forAdd && "-".equals(token)) {
+      return array.size();
+    }
+    try {
+      int index = Integer.parseInt(token);
+      if (index >= 0 && (index < array.size() || (forAdd && index == array.size()))) {
+        return index;
+      }
+    } catch (NumberFormatException e) {
+      // reported below
+    }
+    throw new InvalidRequestException("invalid array index at " + path);
+  }
+}
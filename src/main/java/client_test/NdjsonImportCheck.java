@@ -0,0 +1,166 @@
+package client_test;
+
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.util.FhirTerser;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Imports Patient, Encounter and Condition NDJSON files, exported one file per type with plain
+ * Type/id references, into a stub server that fails one transaction halfway through. The second run
+ * has to resume from the checkpoint, and in the end every resource must exist exactly once on the
+ * server with every reference pointing to a resource the server knows.
+ */
+public class NdjsonImportCheck {
+
+  private static final int PATIENTS = 5_000;
+  private static final int FAILING_REQUEST = 10;
+
+  private static final AtomicInteger requests = new AtomicInteger();
+  private static final AtomicLong created = new AtomicLong();
+  private static final AtomicLong danglingReferences = new AtomicLong();
+  private static final Set<String> serverIds = ConcurrentHashMap.newKeySet();
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    Path directory = Files.createTempDirectory("ndjson-import");
+    List<Path> files = writeFiles(directory);
+    Path checkpoint = directory.resolve("import.checkpoint");
+    HttpServer server = startServer();
+    String serverBase = "http://localhost:" + server.getAddress().getPort();
+    try {
+      try {
+        importFiles(serverBase, files, checkpoint);
+        System.out.println("MISMATCH: the first run should have failed");
+      } catch (BaseServerResponseException e) {
+        System.out.println("first run failed as planned: " + e.getMessage());
+      }
+      NdjsonImporter.ImportStats stats = importFiles(serverBase, files, checkpoint);
+      System.out.println(stats);
+      if (stats.getUnresolvedReferences() != 0) {
+        System.out.println("MISMATCH: the importer reports unresolved references");
+      }
+    } finally {
+      server.stop(0);
+    }
+
+    long expected = 3L * PATIENTS;
+    System.out.println(
+        created.get() == expected && danglingReferences.get() == 0
+            ? "all " + expected + " resources created once, all references resolved"
+            : "MISMATCH: created "
+                + created.get()
+                + " of "
+                + expected
+                + ", "
+                + danglingReferences.get()
+                + " dangling references");
+  }
+
+  private static NdjsonImporter.ImportStats importFiles(
+      String serverBase, List<Path> files, Path checkpoint)
+      throws IOException, InterruptedException {
+    return new NdjsonImporter(FhirClientFactory.getClient(serverBase), checkpoint)
+        .importFiles(files);
+  }
+
+  private static List<Path> writeFiles(Path directory) throws IOException {
+    IParser parser = FhirClientFactory.getCompactJsonParser();
+    IsikResourceFactory resources = IsikResourceFactory.getDefault();
+    Path patients = directory.resolve("1-Patient.ndjson");
+    Path encounters = directory.resolve("2-Encounter.ndjson");
+    Path conditions = directory.resolve("3-Condition.ndjson");
+    try (Writer p = Files.newBufferedWriter(patients);
+        Writer e = Files.newBufferedWriter(encounters);
+        Writer c = Files.newBufferedWriter(conditions)) {
+      for (int i = 0; i < PATIENTS; i++) {
+        Patient patient = resources.createPatient();
+        patient.setId("Patient/p" + i);
+        Encounter encounter = resources.createEncounter(patient);
+        encounter.setId("Encounter/e" + i);
+        encounter.setSubject(new Reference("Patient/p" + i));
+        Condition condition = resources.createCondition(patient, encounter);
+        condition.setId("Condition/c" + i);
+        condition.setSubject(new Reference("Patient/p" + i));
+        condition.setEncounter(new Reference("Encounter/e" + i));
+        p.write(parser.encodeResourceToString(patient) + "\n");
+        e.write(parser.encodeResourceToString(encounter) + "\n");
+        c.write(parser.encodeResourceToString(condition) + "\n");
+      }
+    }
+    return List.of(patients, encounters, conditions);
+  }
+
+  // checks the references of every transaction, assigns server ids and fails one request
+  private static HttpServer startServer() throws IOException {
+    FhirTerser terser = FhirClientFactory.getContext().newTerser();
+    AtomicLong nextId = new AtomicLong();
+
+    // without TCP_NODELAY every small response waits for the delayed ACK of the client
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext(
+        "/",
+        exchange -> {
+          IParser parser = FhirClientFactory.getCompactJsonParser();
+          Bundle request =
+              parser.parseResource(
+                  Bundle.class,
+                  new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+          if (requests.incrementAndGet() == FAILING_REQUEST) {
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+            return;
+          }
+          Set<String> fullUrls = new HashSet<>();
+          request.getEntry().forEach(e -> fullUrls.add(e.getFullUrl()));
+          Bundle response = new Bundle().setType(BundleType.TRANSACTIONRESPONSE);
+          for (BundleEntryComponent entry : request.getEntry()) {
+            Resource resource = entry.getResource();
+            for (Reference reference :
+                terser.getAllPopulatedChildElementsOfType(resource, Reference.class)) {
+              String target = reference.getReference();
+              if (!fullUrls.contains(target) && !serverIds.contains(target)) {
+                danglingReferences.incrementAndGet();
+              }
+            }
+            String id = resource.fhirType() + "/" + nextId.incrementAndGet();
+            serverIds.add(id);
+            created.incrementAndGet();
+            response
+                .addEntry()
+                .getResponse()
+                .setStatus("201 Created")
+                .setLocation(id + "/_history/1");
+          }
+          byte[] body = parser.encodeResourceToString(response).getBytes(StandardCharsets.UTF_8);
+          exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+          exchange.sendResponseHeaders(200, body.length);
+          try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+          }
+        });
+    server.start();
+    return server;
+  }
+}
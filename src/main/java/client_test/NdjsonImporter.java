@@ -0,0 +1,462 @@
+package client_test;
+
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.util.FhirTerser;
+import client_test.TransactionPipeline.ChunkStats;
+import client_test.TransactionPipeline.PipelineStats;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Loads NDJSON files ({@code *.ndjson}) and JSON Bundles (any other file) from disk into a server
+ * through {@link TransactionBundleChunker} and {@link TransactionPipeline}.
+ *
+ * <p>Files are streamed. NDJSON lines are parsed in batches on a fork/join pool, Bundle entries one
+ * by one with {@link StreamingBundleReader}. Every resource gets a fresh urn:uuid id like in {@code
+ * createTransactionBundle}, and references read after it to its original {@code Type/id} are
+ * rewritten to it, so a resource and the resources referring to it can share a transaction. A
+ * reference to a resource that went to the server in an earlier transaction is rewritten to the id
+ * the server assigned. All other references, absolute ones and references to resources not read
+ * before, are left as they are; pass the files in dependency order, e.g. Patient before Encounter.
+ * References to a resource of an earlier transaction that has no server id are counted in {@link
+ * ImportStats#getUnresolvedReferences()}.
+ *
+ * <p>After every committed transaction the position in the input and the assigned server ids are
+ * written to the checkpoint and a {@code .ids} file next to it. Running the import again with the
+ * same files and checkpoint continues after the last committed transaction. A crash between commit
+ * and checkpoint sends that one transaction again; use {@link
+ * TransactionEntryMode#CONDITIONAL_CREATE} if the resources carry identifiers and duplicates
+ * matter.
+ */
+public class NdjsonImporter {
+
+  public static final int DEFAULT_BATCH_SIZE = 1_000;
+
+  private static final String POSITION = "import.position";
+  private static final String SOURCE_ID = "import.sourceId";
+  private static final String URN_UUID = "urn:uuid:";
+  private static final Object END_OF_INPUT = new Object();
+
+  private static final ThreadLocal<IParser> PARSER =
+      ThreadLocal.withInitial(() -> FhirClientFactory.getContext().newJsonParser());
+
+  private final IGenericClient client;
+  private final Path checkpointFile;
+  private final Path idFile;
+  private final int maxEntries;
+  private final long maxBytes;
+  private final TransactionEntryMode mode;
+  private final ForkJoinPool pool;
+  private final int batchSize;
+  private final FhirTerser terser = FhirClientFactory.getContext().newTerser();
+
+  // original Type/id of every resource read -> urn:uuid until committed, server Type/id afterwards
+  private final Map<String, String> targets = new ConcurrentHashMap<>();
+  private final Map<String, String> committedUrns = new ConcurrentHashMap<>();
+  private final AtomicLong unresolvedReferences = new AtomicLong();
+
+  public NdjsonImporter(IGenericClient client, Path checkpointFile) {
+    this(
+        client,
+        checkpointFile,
+        TransactionBundleChunker.DEFAULT_MAX_ENTRIES,
+        TransactionBundleChunker.DEFAULT_MAX_BYTES,
+        TransactionEntryMode.CREATE,
+        ForkJoinPool.commonPool(),
+        DEFAULT_BATCH_SIZE);
+  }
+
+  public NdjsonImporter(
+      IGenericClient client,
+      Path checkpointFile,
+      int maxEntries,
+      long maxBytes,
+      TransactionEntryMode mode,
+      ForkJoinPool pool,
+      int batchSize) {
+    if (batchSize < 1) {
+      throw new IllegalArgumentException("batchSize must be positive");
+    }
+    this.client = client;
+    this.checkpointFile = checkpointFile;
+    this.idFile = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".ids");
+    this.maxEntries = maxEntries;
+    this.maxBytes = maxBytes;
+    this.mode = mode;
+    this.pool = pool;
+    this.batchSize = batchSize;
+  }
+
+  /** The position of a resource in the input: file index and line or entry number. */
+  private static final class Position {
+    final int file;
+    final long record;
+
+    Position(int file, long record) {
+      this.file = file;
+      this.record = record;
+    }
+  }
+
+  public ImportStats importFiles(List<Path> files) throws IOException, InterruptedException {
+    Position start = readCheckpoint(files);
+    ResourceQueue resources = new ResourceQueue(files, start);
+    try (Writer ids =
+        Files.newBufferedWriter(
+            idFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+      TransactionBundleChunker chunker =
+          new TransactionBundleChunker(resources, maxEntries, maxBytes, mode);
+      PipelineStats stats =
+          new TransactionPipeline(b -> submit(b, ids, files), 2, ChunkStats::print).run(chunker);
+      return new ImportStats(stats, unresolvedReferences.get());
+    } finally {
+      resources.close();
+    }
+  }
+
+  private Bundle submit(Bundle bundle, Writer ids, List<Path> files) {
+    resolveCommittedReferences(bundle);
+    Bundle response = client.transaction().withBundle(bundle).execute();
+    try {
+      for (int i = 0; i < bundle.getEntry().size(); i++) {
+        BundleEntryComponent entry = bundle.getEntry().get(i);
+        String location = response.getEntry().get(i).getResponse().getLocation();
+        if (location == null) {
+          continue;
+        }
+        String serverId = new IdType(location).toUnqualifiedVersionless().getValue();
+        committedUrns.put(entry.getFullUrl(), serverId);
+        String sourceId = (String) entry.getResource().getUserData(SOURCE_ID);
+        if (sourceId != null) {
+          targets.put(sourceId, serverId);
+          ids.write(sourceId + "\t" + serverId + "\n");
+        }
+      }
+      ids.flush();
+      List<BundleEntryComponent> entries = bundle.getEntry();
+      Position last =
+          (Position) entries.get(entries.size() - 1).getResource().getUserData(POSITION);
+      writeCheckpoint(files, new Position(last.file, last.record + 1));
+    } catch (IOException e) {
+      throw new UncheckedIOException("cannot write checkpoint " + checkpointFile, e);
+    }
+    return response;
+  }
+
+  // urn:uuid references to resources of earlier transactions now point to the server ids
+  private void resolveCommittedReferences(Bundle bundle) {
+    Set<String> fullUrls = new HashSet<>();
+    bundle.getEntry().forEach(e -> fullUrls.add(e.getFullUrl()));
+    for (BundleEntryComponent entry : bundle.getEntry()) {
+      for (Reference reference :
+          terser.getAllPopulatedChildElementsOfType(entry.getResource(), Reference.class)) {
+        String target = reference.getReference();
+        if (target == null || !target.startsWith(URN_UUID) || fullUrls.contains(target)) {
+          continue;
+        }
+        String serverId = committedUrns.get(target);
+        if (serverId != null) {
+          reference.setReference(serverId);
+        } else {
+          unresolvedReferences.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  // assigns the urn:uuid and rewrites references, in input order on the reading thread
+  private Resource rewrite(Resource resource, Position position) {
+    resource.setUserData(POSITION, position);
+    IdType id = resource.getIdElement();
+    String sourceId = null;
+    if (id.getValue() != null && id.getValue().startsWith(URN_UUID)) {
+      sourceId = id.getValue();
+    } else if (id.hasIdPart()) {
+      sourceId = resource.fhirType() + "/" + id.getIdPart();
+    }
+    if (sourceId != null && !targets.containsKey(sourceId)) {
+      // an existing urn:uuid is kept, a Type/id gets a new one
+      String target = sourceId.startsWith(URN_UUID) ? sourceId : IdType.newRandomUuid().getValue();
+      targets.put(sourceId, target);
+      resource.setUserData(SOURCE_ID, sourceId);
+      resource.setId(target);
+    } else {
+      // no id, or the same id was already read: a new resource without a source id
+      resource.setId(IdType.newRandomUuid());
+    }
+    for (Reference reference :
+        terser.getAllPopulatedChildElementsOfType(resource, Reference.class)) {
+      String key = localKey(reference.getReference());
+      String target = key == null ? null : targets.get(key);
+      if (target != null) {
+        reference.setReference(target);
+      }
+    }
+    return resource;
+  }
+
+  // the key a reference has in targets; null for contained and absolute references
+  private static String localKey(String reference) {
+    if (reference == null || reference.startsWith("#")) {
+      return null;
+    }
+    if (reference.startsWith(URN_UUID)) {
+      return reference;
+    }
+    IdType id = new IdType(reference);
+    return !id.isAbsolute() && id.hasResourceType() && id.hasIdPart()
+        ? id.toUnqualifiedVersionless().getValue()
+        : null;
+  }
+
+  private Position readCheckpoint(List<Path> files) throws IOException {
+    if (!Files.exists(checkpointFile)) {
+      Files.deleteIfExists(idFile);
+      return new Position(0, 0);
+    }
+    Properties checkpoint = new Properties();
+    try (InputStream in = Files.newInputStream(checkpointFile)) {
+      checkpoint.load(in);
+    }
+    int file = Integer.parseInt(checkpoint.getProperty("file"));
+    if (file < files.size()
+        && !files.get(file).getFileName().toString().equals(checkpoint.getProperty("fileName"))) {
+      throw new IllegalStateException(
+          "checkpoint " + checkpointFile + " belongs to a different list of files");
+    }
+    if (Files.exists(idFile)) {
+      try (BufferedReader lines = Files.newBufferedReader(idFile, StandardCharsets.UTF_8)) {
+        String line;
+        while ((line = lines.readLine()) != null) {
+          int tab = line.indexOf('\t');
+          if (tab > 0) {
+            targets.put(line.substring(0, tab), line.substring(tab + 1));
+          }
+        }
+      }
+    }
+    Position position = new Position(file, Long.parseLong(checkpoint.getProperty("record")));
+    System.out.printf(
+        "resuming at file %d, record %d with %d known server ids%n",
+        position.file, position.record, targets.size());
+    return position;
+  }
+
+  private void writeCheckpoint(List<Path> files, Position position) throws IOException {
+    Properties checkpoint = new Properties();
+    checkpoint.setProperty("file", Integer.toString(position.file));
+    checkpoint.setProperty("record", Long.toString(position.record));
+    if (position.file < files.size()) {
+      checkpoint.setProperty("fileName", files.get(position.file).getFileName().toString());
+    }
+    Path temp = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+    try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+      checkpoint.store(out, "NdjsonImporter checkpoint");
+    }
+    Files.move(
+        temp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Reads the files on a background thread and hands the rewritten resources to the chunker through
+   * a bounded queue, like {@link SearchPager} does with pages.
+   */
+  private final class ResourceQueue implements Iterator<Resource>, AutoCloseable {
+
+    private final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(batchSize * 2);
+    private final Thread reader;
+    private Object next;
+
+    ResourceQueue(List<Path> files, Position start) {
+      this.reader = new Thread(() -> readAll(files, start), "ndjson-import-reader");
+      reader.setDaemon(true);
+      reader.start();
+    }
+
+    private void readAll(List<Path> files, Position start) {
+      try {
+        for (int file = start.file; file < files.size(); file++) {
+          long skip = file == start.file ? start.record : 0;
+          Path path = files.get(file);
+          if (path.getFileName().toString().endsWith(".ndjson")) {
+            readNdjson(path, file, skip);
+          } else {
+            readBundle(path, file, skip);
+          }
+        }
+        queue.put(END_OF_INPUT);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (IOException | RuntimeException e) {
+        RuntimeException failure =
+            e instanceof IOException
+                ? new UncheckedIOException((IOException) e)
+                : (RuntimeException) e;
+        try {
+          queue.put(failure);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+
+    private void readNdjson(Path path, int file, long skip)
+        throws IOException, InterruptedException {
+      long line = 0;
+      try (BufferedReader lines = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+        List<String> batch = new ArrayList<>(batchSize);
+        long batchStart = skip;
+        String text;
+        while ((text = lines.readLine()) != null) {
+          if (line++ < skip) {
+            continue;
+          }
+          batch.add(text);
+          if (batch.size() == batchSize) {
+            putBatch(batch, file, batchStart);
+            batchStart += batch.size();
+            batch = new ArrayList<>(batchSize);
+          }
+        }
+        putBatch(batch, file, batchStart);
+      }
+    }
+
+    // parses a batch in parallel, then rewrites it in input order
+    private void putBatch(List<String> batch, int file, long batchStart)
+        throws InterruptedException {
+      List<Resource> parsed;
+      try {
+        parsed =
+            pool.submit(
+                    () ->
+                        batch.parallelStream()
+                            .map(NdjsonImporter::parseLine)
+                            .collect(Collectors.toList()))
+                .get();
+      } catch (ExecutionException e) {
+        throw new IllegalStateException("cannot parse batch", e.getCause());
+      }
+      for (int i = 0; i < parsed.size(); i++) {
+        Resource resource = parsed.get(i);
+        if (resource != null) {
+          queue.put(rewrite(resource, new Position(file, batchStart + i)));
+        }
+      }
+    }
+
+    private void readBundle(Path path, int file, long skip) throws IOException {
+      AtomicLong entry = new AtomicLong();
+      Consumer<Resource> callback =
+          resource -> {
+            long number = entry.getAndIncrement();
+            if (number < skip) {
+              return;
+            }
+            try {
+              queue.put(rewrite(resource, new Position(file, number)));
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              throw new IllegalStateException("interrupted while reading " + path, e);
+            }
+          };
+      try (InputStream in = Files.newInputStream(path)) {
+        new StreamingBundleReader().readResources(in, callback);
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (next == null) {
+        try {
+          next = queue.take();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException("interrupted while waiting for the next resource", e);
+        }
+      }
+      if (next instanceof RuntimeException) {
+        throw (RuntimeException) next;
+      }
+      return next != END_OF_INPUT;
+    }
+
+    @Override
+    public Resource next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Resource resource = (Resource) next;
+      next = null;
+      return resource;
+    }
+
+    @Override
+    public void close() {
+      reader.interrupt();
+    }
+  }
+
+  /** The pipeline statistics of an import run and the references it could not resolve. */
+  public static class ImportStats {
+
+    private final PipelineStats pipelineStats;
+    private final long unresolvedReferences;
+
+    ImportStats(PipelineStats pipelineStats, long unresolvedReferences) {
+      this.pipelineStats = pipelineStats;
+      this.unresolvedReferences = unresolvedReferences;
+    }
+
+    public PipelineStats getPipelineStats() {
+      return pipelineStats;
+    }
+
+    /**
+     * References to resources that were neither in the same transaction nor imported before; they
+     * went to the server as urn:uuid references.
+     */
+    public long getUnresolvedReferences() {
+      return unresolvedReferences;
+    }
+
+    @Override
+    public String toString() {
+      return pipelineStats + ", " + unresolvedReferences + " unresolved references";
+    }
+  }
+
+  private static Resource parseLine(String line) {
+    return line.isBlank() ? null : (Resource) PARSER.get().parseResource(line);
+  }
+}
@@ -0,0 +1,143 @@
+package client_test;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Patient;
+
+/**
+ * Writes Patient, Encounter and Condition transactions through a {@link ClientOutbox} while the
+ * server is down, then brings an {@link EmbeddedFhirServer} up on the address: the backlog has to
+ * drain with every case created exactly once. A copy of the outbox taken before the server came up
+ * is drained a second time, as after a lost acknowledgement, and must not create anything. A
+ * transaction that lists its Patient last has to be keyed to that Patient like a create of it.
+ */
+public class OutboxCheck {
+
+  private static final int CASES = 5_000;
+
+  private static int failures;
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    // without TCP_NODELAY every small response waits for the delayed ACK of the client
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+    checkPatientKey();
+
+    // learn a free port, the server comes up there later
+    EmbeddedFhirServer probe = EmbeddedFhirServer.start();
+    String serverBase = probe.getServerBase();
+    probe.close();
+    int port = URI.create(serverBase).getPort();
+    IGenericClient client = FhirClientFactory.getClient(serverBase, WireProfile.COMPACT);
+
+    Path directory = Files.createTempDirectory("outbox");
+    Path replay = Files.createTempDirectory("outbox-replay");
+    try (ClientOutbox outbox = ClientOutbox.open(directory);
+        OutboxDrainer drainer = new OutboxDrainer(outbox, client, 100, 50).start()) {
+      createTransactions(CASES).forEach(outbox::transaction);
+      outbox.flush();
+      check("backlog while the server is down", outbox.getBacklog() == CASES);
+      copy(directory, replay);
+
+      try (EmbeddedFhirServer server = EmbeddedFhirServer.start(port, 4)) {
+        check("drained", drainer.awaitDrained(10, TimeUnit.MINUTES));
+        System.out.printf(
+            "        %d transactions in %d batches, %d retries%n",
+            drainer.getSentCount(), drainer.getBatchCount(), drainer.getRetryCount());
+        check("every case created once", created(server.getStore(), CASES));
+
+        try (ClientOutbox copy = ClientOutbox.open(replay);
+            OutboxDrainer again = new OutboxDrainer(copy, client).start()) {
+          check("replay drained", again.awaitDrained(10, TimeUnit.MINUTES));
+          check("replay created nothing", created(server.getStore(), CASES));
+        }
+      }
+    } finally {
+      delete(directory);
+      delete(replay);
+    }
+    System.out.println(failures == 0 ? "all checks passed" : failures + " checks FAILED");
+    System.exit(failures == 0 ? 0 : 1);
+  }
+
+  // the Condition and Encounter reference the Patient by urn:uuid before its entry comes
+  private static void checkPatientKey() throws IOException, InterruptedException {
+    Path directory = Files.createTempDirectory("outbox-keys");
+    try (ClientOutbox outbox = ClientOutbox.open(directory)) {
+      Bundle transaction = createTransactions(1).get(0);
+      List<BundleEntryComponent> entries = new ArrayList<>(transaction.getEntry());
+      BundleEntryComponent patientEntry = entries.remove(0);
+      entries.add(patientEntry);
+      transaction.setEntry(entries);
+      outbox.transaction(transaction);
+      outbox.create(patientEntry.getResource().copy());
+
+      List<ClientOutbox.Record> records =
+          outbox.read(outbox.getAcknowledgedPosition(), 2, 1, TimeUnit.SECONDS);
+      String patient = records.get(1).getPatient();
+      check(
+          "urn:uuid subject keyed as " + patient,
+          patient.startsWith("Patient?identifier=") && patient.equals(records.get(0).getPatient()));
+    } finally {
+      delete(directory);
+    }
+  }
+
+  private static List<Bundle> createTransactions(int count) {
+    IsikResourceFactory factory = IsikResourceFactory.getDefault();
+    List<Bundle> transactions = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      Date date = new Date(1_600_000_000_000L + i * 3_600_000L);
+      Patient patient =
+          factory.createPatient("P" + i, "Nachname" + i, "Vorname", "Geburtsname", date);
+      Encounter encounter = factory.createEncounter(patient, "F" + i, date);
+      Condition condition = factory.createCondition(patient, encounter, date);
+      transactions.add(
+          HapiClientStarterTransactionBundle.createTransactionBundle(
+              List.of(patient, encounter, condition)));
+    }
+    return transactions;
+  }
+
+  private static boolean created(InMemoryResourceStore store, int cases) {
+    int patients = store.size("Patient");
+    int encounters = store.size("Encounter");
+    int conditions = store.size("Condition");
+    System.out.printf(
+        "        %d patients, %d encounters, %d conditions%n", patients, encounters, conditions);
+    return patients == cases && encounters == cases && conditions == cases;
+  }
+
+  private static void copy(Path from, Path to) throws IOException {
+    try (Stream<Path> files = Files.list(from)) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        Files.copy(file, to.resolve(file.getFileName()));
+      }
+    }
+  }
+
+  private static void delete(Path directory) throws IOException {
+    try (Stream<Path> files = Files.walk(directory)) {
+      files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+    }
+  }
+
+  private static void check(String name, boolean ok) {
+    System.out.println((ok ? "ok      " : "FAILED  ") + name);
+    if (!ok) {
+      failures++;
+    }
+  }
+}
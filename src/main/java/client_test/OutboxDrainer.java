@@ -0,0 +1,292 @@
+package client_test;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Replays a {@link ClientOutbox} to the server on a background thread: up to {@code batchSize}
+ * records at a time as one transaction, acknowledged once the server has committed it. Batches go
+ * out one after the other and a batch never holds two records of the same patient, so the
+ * operations of a patient reach the server in the order they were appended. A record whose patient
+ * is not known goes out in a batch of its own.
+ *
+ * <p>Delivery is at least once: a batch that failed on the way or whose response got lost is sent
+ * again. Creates are therefore tagged with the idempotency key of their record ({@link
+ * #IDEMPOTENCY_TAG_SYSTEM}) and sent as conditional creates on that tag, and updates are PUTs, so a
+ * replay does not duplicate anything. While the server is unreachable or answers 408, 429 or 5xx
+ * the drainer backs off exponentially up to a minute and retries; the outbox keeps growing in the
+ * meantime. Any other failure is not retried: the batch is sent again record by record, and a
+ * record that fails on its own, rejected by the server or not even decodable, is written to {@code
+ * rejected.ndjson} (or {@code <key>.rejected} as it was stored) in the outbox directory and
+ * skipped.
+ */
+public class OutboxDrainer implements AutoCloseable {
+
+  public static final int DEFAULT_BATCH_SIZE = 100;
+  public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 200;
+  public static final String IDEMPOTENCY_TAG_SYSTEM = "urn:hapi-client-starter:outbox";
+
+  private static final long MAX_BACKOFF_MILLIS = 60_000;
+  private static final String REJECTED = "rejected.ndjson";
+  private static final String REJECTED_UNDECODABLE = ".rejected";
+
+  private final ClientOutbox outbox;
+  private final IGenericClient client;
+  private final int batchSize;
+  private final long initialBackoffMillis;
+  private final Thread thread;
+  private volatile boolean stopped;
+
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong retries = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+
+  public OutboxDrainer(ClientOutbox outbox, IGenericClient client) {
+    this(outbox, client, DEFAULT_BATCH_SIZE, DEFAULT_INITIAL_BACKOFF_MILLIS);
+  }
+
+  public OutboxDrainer(
+      ClientOutbox outbox, IGenericClient client, int batchSize, long initialBackoffMillis) {
+    if (batchSize < 1 || initialBackoffMillis < 0) {
+      throw new IllegalArgumentException("invalid drainer configuration");
+    }
+    this.outbox = outbox;
+    this.client = client;
+    this.batchSize = batchSize;
+    this.initialBackoffMillis = initialBackoffMillis;
+    this.thread = new Thread(this::run, "outbox-drainer");
+    thread.setDaemon(true);
+  }
+
+  public OutboxDrainer start() {
+    thread.start();
+    return this;
+  }
+
+  /** Waits until every record appended so far is acknowledged; false on timeout. */
+  public boolean awaitDrained(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (outbox.getBacklog() > 0) {
+      if (System.nanoTime() > deadline || !thread.isAlive()) {
+        return false;
+      }
+      Thread.sleep(5);
+    }
+    return true;
+  }
+
+  private void run() {
+    long position = outbox.getAcknowledgedPosition();
+    try {
+      while (!stopped) {
+        List<ClientOutbox.Record> records = outbox.read(position, batchSize, 1, TimeUnit.SECONDS);
+        if (records.isEmpty()) {
+          if (outbox.isClosed()) {
+            return;
+          }
+          continue;
+        }
+        // a patient once per batch, the rest waits for the next one; a record of an unknown
+        // patient may belong to any of them and goes on its own
+        Set<String> patients = new HashSet<>();
+        int size = records.get(0).patient == null ? 1 : 0;
+        while (size < records.size()
+            && records.get(size).patient != null
+            && patients.add(records.get(size).patient)) {
+          size++;
+        }
+        List<ClientOutbox.Record> batch = records.subList(0, size);
+        if (!deliver(batch)) {
+          return;
+        }
+        position = batch.get(size - 1).next;
+        outbox.acknowledge(position, size);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // false once stopped before the batch got through
+  private boolean deliver(List<ClientOutbox.Record> batch) throws InterruptedException {
+    Bundle transaction;
+    try {
+      transaction = toTransaction(batch);
+    } catch (RuntimeException e) {
+      // a record that cannot be decoded or turned into entries fails the same way every time
+      return deliverEach(batch, e);
+    }
+    int attempt = 0;
+    while (!stopped) {
+      try {
+        client.transaction().withBundle(transaction).execute();
+        sent.addAndGet(batch.size());
+        batches.incrementAndGet();
+        return true;
+      } catch (BaseServerResponseException e) {
+        if (!isRetryable(e.getStatusCode())) {
+          return deliverEach(batch, e);
+        }
+      } catch (RuntimeException e) {
+        // not a transport error, e.g. a resource the client cannot encode
+        return deliverEach(batch, e);
+      }
+      retries.incrementAndGet();
+      Thread.sleep(backoffMillis(++attempt));
+    }
+    return false;
+  }
+
+  // a failed batch is retried record by record, a record that failed on its own is rejected
+  private boolean deliverEach(List<ClientOutbox.Record> batch, RuntimeException failure)
+      throws InterruptedException {
+    if (batch.size() == 1) {
+      reject(batch.get(0), failure);
+      return true;
+    }
+    for (ClientOutbox.Record record : batch) {
+      if (!deliver(List.of(record))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // an unreachable server (FhirClientConnectionException) is a 500 as well
+  private static boolean isRetryable(int statusCode) {
+    return statusCode == 408 || statusCode == 429 || statusCode >= 500;
+  }
+
+  private long backoffMillis(int attempt) {
+    long backoff = Math.min(MAX_BACKOFF_MILLIS, initialBackoffMillis << Math.min(attempt - 1, 16));
+    return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+  }
+
+  private Bundle toTransaction(List<ClientOutbox.Record> batch) {
+    Bundle transaction = new Bundle().setType(BundleType.TRANSACTION);
+    for (ClientOutbox.Record record : batch) {
+      IBaseResource decoded = outbox.decode(record);
+      switch (record.operation) {
+        case CREATE:
+          addCreate(transaction.addEntry(), (Resource) decoded, record.idempotencyKey);
+          break;
+        case UPDATE:
+          Resource resource = (Resource) decoded;
+          transaction
+              .addEntry()
+              .setResource(resource)
+              .getRequest()
+              .setMethod(HTTPVerb.PUT)
+              .setUrl(resource.fhirType() + "/" + resource.getIdElement().getIdPart());
+          break;
+        default:
+          List<BundleEntryComponent> entries = ((Bundle) decoded).getEntry();
+          for (int i = 0; i < entries.size(); i++) {
+            BundleEntryComponent entry = entries.get(i);
+            if (entry.getRequest().getMethod() == HTTPVerb.POST
+                && !entry.getRequest().hasIfNoneExist()) {
+              addCreate(entry, entry.getResource(), record.idempotencyKey + "." + i);
+            }
+            transaction.addEntry(entry);
+          }
+      }
+    }
+    return transaction;
+  }
+
+  private static void addCreate(BundleEntryComponent entry, Resource resource, String key) {
+    resource.getMeta().addTag(IDEMPOTENCY_TAG_SYSTEM, key, null);
+    entry
+        .setResource(resource)
+        .getRequest()
+        .setMethod(HTTPVerb.POST)
+        .setUrl(resource.fhirType())
+        .setIfNoneExist("_tag=" + IDEMPOTENCY_TAG_SYSTEM + "|" + key);
+  }
+
+  // the JSON goes to rejected.ndjson, a record that cannot be decoded to a file of its own
+  private void reject(ClientOutbox.Record record, RuntimeException failure) {
+    rejected.incrementAndGet();
+    try {
+      String json = toJson(record);
+      if (json == null) {
+        Files.write(
+            outbox.getDirectory().resolve(record.idempotencyKey + REJECTED_UNDECODABLE),
+            record.resource);
+      } else {
+        try (Writer out =
+            Files.newBufferedWriter(
+                outbox.getDirectory().resolve(REJECTED),
+                StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND)) {
+          out.write(json + "\n");
+        }
+      }
+    } catch (IOException io) {
+      throw new UncheckedIOException("cannot keep rejected record " + record.idempotencyKey, io);
+    }
+    String reason =
+        failure instanceof BaseServerResponseException
+            ? ((BaseServerResponseException) failure).getStatusCode() + " " + failure.getMessage()
+            : failure.toString();
+    System.err.println("outbox record " + record.idempotencyKey + " rejected: " + reason);
+  }
+
+  private String toJson(ClientOutbox.Record record) {
+    try {
+      return FhirClientFactory.getCompactJsonParser().encodeResourceToString(outbox.decode(record));
+    } catch (RuntimeException e) {
+      return null;
+    }
+  }
+
+  /** Stops the drainer and waits for its thread; an interrupt while waiting is kept for later. */
+  @Override
+  public void close() {
+    stopped = true;
+    thread.interrupt();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Records the server has taken. */
+  public long getSentCount() {
+    return sent.get();
+  }
+
+  public long getBatchCount() {
+    return batches.get();
+  }
+
+  /** Attempts that failed and were retried after a backoff. */
+  public long getRetryCount() {
+    return retries.get();
+  }
+
+  public long getRejectedCount() {
+    return rejected.get();
+  }
+}
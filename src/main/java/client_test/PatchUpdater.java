@@ -0,0 +1,260 @@
+package client_test;
+
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.IPatchExecutable;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.hl7.fhir.r4.model.CapabilityStatement;
+import org.hl7.fhir.r4.model.CapabilityStatement.CapabilityStatementRestComponent;
+import org.hl7.fhir.r4.model.CapabilityStatement.CapabilityStatementRestResourceComponent;
+import org.hl7.fhir.r4.model.CapabilityStatement.ResourceInteractionComponent;
+import org.hl7.fhir.r4.model.CapabilityStatement.TypeRestfulInteraction;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Sends only what changed: {@link #update(Resource)} compares the resource with the version last
+ * seen on the server and sends the difference as JSON Patch, so changing the status of an Encounter
+ * costs a few dozen bytes instead of the whole Encounter. The patch carries If-Match with the base
+ * version, a concurrent change on the server fails with 412 instead of being merged blindly.
+ *
+ * <p>Without a base version, for resource types the CapabilityStatement does not list patch for,
+ * when the server rejects patch (405, 415, 501) and when the patch would not be smaller, the
+ * resource is sent with a full update instead. An unchanged resource is not sent at all.
+ *
+ * <p>Base versions are kept as JSON trees for up to {@code maxEntries} resources, the least
+ * recently used are dropped. Thread-safe.
+ */
+public class PatchUpdater {
+
+  public static final int DEFAULT_MAX_ENTRIES = 10_000;
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+  private static final Set<Integer> PATCH_NOT_SUPPORTED =
+      Set.of(
+          Constants.STATUS_HTTP_405_METHOD_NOT_ALLOWED,
+          415, // unsupported media type
+          Constants.STATUS_HTTP_501_NOT_IMPLEMENTED);
+
+  private final IGenericClient client;
+  private final Map<String, Base> bases;
+  private final Map<String, Boolean> patchSupported = new ConcurrentHashMap<>();
+  private volatile Set<String> patchableTypes;
+
+  private final AtomicLong patched = new AtomicLong();
+  private final AtomicLong updated = new AtomicLong();
+  private final AtomicLong unchanged = new AtomicLong();
+  private final AtomicLong requestBytes = new AtomicLong();
+
+  public PatchUpdater(IGenericClient client) {
+    this(client, DEFAULT_MAX_ENTRIES);
+  }
+
+  public PatchUpdater(IGenericClient client, int maxEntries) {
+    this.client = client;
+    this.bases =
+        Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+              @Override
+              protected boolean removeEldestEntry(Map.Entry<String, Base> eldest) {
+                return size() > maxEntries;
+              }
+            });
+  }
+
+  private static final class Base {
+    final JsonNode json;
+    final String version;
+
+    Base(JsonNode json, String version) {
+      this.json = json;
+      this.version = version;
+    }
+  }
+
+  /**
+   * Remembers the resource as the server has it, e.g. right after a read or a search. Call it
+   * before changing the resource, or track the original and update a copy.
+   */
+  public void track(Resource resource) {
+    String json = FhirClientFactory.getCompactJsonParser().encodeResourceToString(resource);
+    bases.put(key(resource), new Base(tree(json), version(resource)));
+  }
+
+  /**
+   * Writes the resource with a patch against its tracked base version or with a full update, and
+   * makes the written version the new base. The id and meta.versionId of the resource are set to
+   * the written version.
+   */
+  public MethodOutcome update(Resource resource) {
+    String key = key(resource);
+    String body = FhirClientFactory.getCompactJsonParser().encodeResourceToString(resource);
+    JsonNode json = tree(body);
+    Base base = bases.get(key);
+    MethodOutcome outcome = null;
+    if (base != null) {
+      ArrayNode operations = JsonPatch.diff(base.json, json);
+      if (operations.isEmpty()) {
+        unchanged.incrementAndGet();
+        return new MethodOutcome(resource.getIdElement());
+      }
+      if (isPatchSupported(resource.fhirType())) {
+        outcome = patch(resource, operations, base.version, body.length());
+      }
+    }
+    if (outcome == null) {
+      outcome =
+          client
+              .update()
+              .resource(body)
+              .withId(resource.getIdElement().toUnqualifiedVersionless())
+              .execute();
+      requestBytes.addAndGet(body.getBytes(StandardCharsets.UTF_8).length);
+      updated.incrementAndGet();
+    }
+    String version = outcome.getId() == null ? null : outcome.getId().getVersionIdPart();
+    if (version != null) {
+      resource.setId(new IdType(resource.fhirType(), resource.getIdElement().getIdPart(), version));
+      resource.getMeta().setVersionId(version);
+    }
+    bases.put(key, new Base(json, version));
+    return outcome;
+  }
+
+  // null if the server turned patch down, the caller then updates
+  private MethodOutcome patch(
+      Resource resource, ArrayNode operations, String baseVersion, int updateLength) {
+    String body = operations.toString();
+    if (body.length() >= updateLength) {
+      return null;
+    }
+    int bodyBytes = body.getBytes(StandardCharsets.UTF_8).length;
+    IPatchExecutable patch =
+        client.patch().withBody(body).withId(resource.getIdElement().toUnqualifiedVersionless());
+    if (baseVersion != null) {
+      patch.withAdditionalHeader(Constants.HEADER_IF_MATCH, "W/\"" + baseVersion + "\"");
+    }
+    try {
+      MethodOutcome outcome = patch.execute();
+      requestBytes.addAndGet(bodyBytes);
+      patched.incrementAndGet();
+      return outcome;
+    } catch (BaseServerResponseException e) {
+      if (!PATCH_NOT_SUPPORTED.contains(e.getStatusCode())) {
+        throw e;
+      }
+      patchSupported.put(resource.fhirType(), false);
+      return null;
+    }
+  }
+
+  private boolean isPatchSupported(String type) {
+    return patchSupported.computeIfAbsent(type, t -> patchableTypes().contains(t));
+  }
+
+  // read once; a server without a usable CapabilityStatement is asked with the patch itself
+  private Set<String> patchableTypes() {
+    Set<String> types = patchableTypes;
+    if (types == null) {
+      types = ConcurrentHashMap.newKeySet();
+      try {
+        CapabilityStatement capabilities =
+            client.capabilities().ofType(CapabilityStatement.class).execute();
+        for (CapabilityStatementRestComponent rest : capabilities.getRest()) {
+          for (CapabilityStatementRestResourceComponent type : rest.getResource()) {
+            for (ResourceInteractionComponent interaction : type.getInteraction()) {
+              if (interaction.getCode() == TypeRestfulInteraction.PATCH) {
+                types.add(type.getType());
+              }
+            }
+          }
+        }
+      } catch (BaseServerResponseException e) {
+        types = new AllTypes();
+      }
+      patchableTypes = types;
+    }
+    return types;
+  }
+
+  private static final class AllTypes extends AbstractSet<String> {
+    @Override
+    public boolean contains(Object type) {
+      return true;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+      return Collections.emptyIterator();
+    }
+
+    @Override
+    public int size() {
+      return 0;
+    }
+  }
+
+  // meta.versionId and meta.lastUpdated are set by the server and not part of the change
+  private static JsonNode tree(String resource) {
+    try {
+      ObjectNode json = (ObjectNode) MAPPER.readTree(resource);
+      JsonNode meta = json.get("meta");
+      if (meta instanceof ObjectNode) {
+        ((ObjectNode) meta).remove("versionId");
+        ((ObjectNode) meta).remove("lastUpdated");
+        if (meta.isEmpty()) {
+          json.remove("meta");
+        }
+      }
+      return json;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static String key(Resource resource) {
+    if (!resource.getIdElement().hasIdPart()) {
+      throw new IllegalArgumentException("resource has no id");
+    }
+    return resource.fhirType() + "/" + resource.getIdElement().getIdPart();
+  }
+
+  private static String version(Resource resource) {
+    return resource.getIdElement().hasVersionIdPart()
+        ? resource.getIdElement().getVersionIdPart()
+        : resource.getMeta().getVersionId();
+  }
+
+  public long getPatchCount() {
+    return patched.get();
+  }
+
+  public long getUpdateCount() {
+    return updated.get();
+  }
+
+  public long getUnchangedCount() {
+    return unchanged.get();
+  }
+
+  /** Body bytes of the patches and updates sent. */
+  public long getRequestBytes() {
+    return requestBytes.get();
+  }
+}
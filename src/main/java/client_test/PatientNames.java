@@ -0,0 +1,78 @@
+package client_test;
+
+/** The names of a Patient as the select-elements sample prints them. */
+public class PatientNames {
+
+  private static final String OWN_NAME =
+      "http://hl7.org/fhir/StructureDefinition/humanname-own-name";
+
+  private static final class ProjectionHolder {
+    private static final ElementProjection<PatientNames> PROJECTION =
+        ElementProjection.forResource("Patient")
+            .field("family", "name.where(use='official').family")
+            .field("given", "name.where(use='official').given")
+            .field("maidenFamily", "name.where(use='maiden').family")
+            .field("maidenGiven", "name.where(use='maiden').given")
+            .field("ownName", "name.where(use='maiden').extension('" + OWN_NAME + "').value")
+            .build(
+                row ->
+                    new PatientNames(
+                        row.getId(),
+                        row.first("family"),
+                        String.join(" ", row.all("given")),
+                        row.first("maidenFamily"),
+                        String.join(" ", row.all("maidenGiven")),
+                        row.first("ownName")));
+  }
+
+  private final String id;
+  private final String family;
+  private final String given;
+  private final String maidenFamily;
+  private final String maidenGiven;
+  private final String ownName;
+
+  public PatientNames(
+      String id,
+      String family,
+      String given,
+      String maidenFamily,
+      String maidenGiven,
+      String ownName) {
+    this.id = id;
+    this.family = family;
+    this.given = given;
+    this.maidenFamily = maidenFamily;
+    this.maidenGiven = maidenGiven;
+    this.ownName = ownName;
+  }
+
+  /** Official name, maiden name and its humanname-own-name extension; needs only Patient.name. */
+  public static ElementProjection<PatientNames> projection() {
+    return ProjectionHolder.PROJECTION;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getFamily() {
+    return family;
+  }
+
+  public String getGiven() {
+    return given;
+  }
+
+  public String getMaidenFamily() {
+    return maidenFamily;
+  }
+
+  public String getMaidenGiven() {
+    return maidenGiven;
+  }
+
+  public String getOwnName() {
+    return ownName;
+  }
+}
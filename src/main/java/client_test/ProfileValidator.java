@@ -0,0 +1,159 @@
+package client_test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.DefaultProfileValidationSupport;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.validation.FhirValidator;
+import ca.uhn.fhir.validation.ValidationResult;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.hl7.fhir.common.hapi.validation.support.CachingValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.CommonCodeSystemsTerminologyService;
+import org.hl7.fhir.common.hapi.validation.support.InMemoryTerminologyServerValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.PrePopulatedValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.SnapshotGeneratingValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain;
+import org.hl7.fhir.common.hapi.validation.validator.FhirInstanceValidator;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.hl7.fhir.utilities.npm.NpmPackage.NpmPackageFolder;
+
+/**
+ * Validates resources in-process against the core definitions and the profiles of local FHIR
+ * package tarballs (e.g. de.gematik.isik-basismodul and its dependency de.basisprofil.r4), instead
+ * of a {@code client.validate()} round trip per resource.
+ *
+ * <p>CodeSystems and ValueSets in the {@code terminology} directory next to the package directory
+ * (JSON or NDJSON, e.g. a SNOMED CT or ICD-10-GM export) are loaded into an off-heap {@link
+ * TerminologyIndex} that answers their codes first. Validators that should share one index get it
+ * passed in instead.
+ *
+ * <p>The validation support chain is built once and wrapped in a {@link CachingValidationSupport},
+ * so snapshots and code lookups are computed by the first validation only. The validator is
+ * thread-safe and meant to be shared.
+ */
+public class ProfileValidator {
+
+  public static final Path DEFAULT_PACKAGE_DIRECTORY = Paths.get("packages");
+  public static final String TERMINOLOGY_DIRECTORY_NAME = "terminology";
+
+  private final FhirValidator validator;
+
+  public ProfileValidator() {
+    this(FhirClientFactory.getContext(), DEFAULT_PACKAGE_DIRECTORY);
+  }
+
+  public ProfileValidator(FhirContext ctx, Path packageDirectory) {
+    this(ctx, createValidationSupport(ctx, packageDirectory));
+  }
+
+  public ProfileValidator(FhirContext ctx, Path packageDirectory, TerminologyIndex terminology) {
+    this(ctx, createValidationSupport(ctx, packageDirectory, terminology));
+  }
+
+  private ProfileValidator(FhirContext ctx, IValidationSupport validationSupport) {
+    FhirInstanceValidator instanceValidator = new FhirInstanceValidator(validationSupport);
+    this.validator = ctx.newValidator().registerValidatorModule(instanceValidator);
+  }
+
+  /**
+   * Core definitions, the profiles, value sets and code systems of every {@code *.tgz} in the
+   * directory, and in-memory terminology. A missing directory leaves only the core definitions.
+   * Every call builds a new index from the {@code terminology} directory next to the package
+   * directory.
+   */
+  public static IValidationSupport createValidationSupport(FhirContext ctx, Path packageDirectory) {
+    return createValidationSupport(
+        ctx, packageDirectory, loadTerminology(terminologyDirectory(packageDirectory)));
+  }
+
+  /** As above, with the codes of the index checked before any other terminology. */
+  public static IValidationSupport createValidationSupport(
+      FhirContext ctx, Path packageDirectory, TerminologyIndex terminology) {
+    PrePopulatedValidationSupport packages = new PrePopulatedValidationSupport(ctx);
+    if (Files.isDirectory(packageDirectory)) {
+      for (Path tarball : packageTarballs(packageDirectory)) {
+        loadPackage(ctx, tarball, packages);
+      }
+    }
+    ValidationSupportChain chain =
+        new ValidationSupportChain(
+            new DefaultProfileValidationSupport(ctx),
+            packages,
+            new TerminologyValidationSupport(ctx, terminology),
+            new CommonCodeSystemsTerminologyService(ctx),
+            new InMemoryTerminologyServerValidationSupport(ctx),
+            new SnapshotGeneratingValidationSupport(ctx));
+    return new CachingValidationSupport(chain);
+  }
+
+  /** The {@code terminology} directory next to the package directory. */
+  public static Path terminologyDirectory(Path packageDirectory) {
+    return packageDirectory.resolveSibling(TERMINOLOGY_DIRECTORY_NAME);
+  }
+
+  /** The off-heap index of the directory, an empty one if there is no such directory. */
+  public static TerminologyIndex loadTerminology(Path terminologyDirectory) {
+    return Files.isDirectory(terminologyDirectory)
+        ? TerminologyIndex.load(terminologyDirectory, true)
+        : TerminologyIndex.builder().build(false);
+  }
+
+  private static List<Path> packageTarballs(Path packageDirectory) {
+    try (Stream<Path> files = Files.list(packageDirectory)) {
+      return files
+          .filter(f -> f.getFileName().toString().endsWith(".tgz"))
+          .sorted()
+          .collect(Collectors.toList());
+    } catch (IOException e) {
+      throw new UncheckedIOException("cannot list " + packageDirectory, e);
+    }
+  }
+
+  private static void loadPackage(
+      FhirContext ctx, Path tarball, PrePopulatedValidationSupport packages) {
+    IParser parser = ctx.newJsonParser();
+    try (InputStream in = Files.newInputStream(tarball)) {
+      NpmPackage npmPackage = NpmPackage.fromPackage(in);
+      NpmPackageFolder folder = npmPackage.getFolders().get("package");
+      for (String file : folder.listFiles()) {
+        if (!file.endsWith(".json") || file.equals("package.json") || file.startsWith(".")) {
+          continue;
+        }
+        String json = new String(folder.fetchFile(file), StandardCharsets.UTF_8);
+        IBaseResource resource = parser.parseResource(json);
+        String type = ctx.getResourceType(resource);
+        if ("StructureDefinition".equals(type)
+            || "ValueSet".equals(type)
+            || "CodeSystem".equals(type)) {
+          packages.addResource(resource);
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("cannot read package " + tarball, e);
+    }
+  }
+
+  public ValidationResult validate(IBaseResource resource) {
+    return validator.validateWithResult(resource);
+  }
+
+  /**
+   * Validates every resource of the stream in parallel. The mapper receives the resource together
+   * with its result and runs on the worker threads.
+   */
+  public <R extends IBaseResource, T> Stream<T> validate(
+      Stream<R> resources, BiFunction<R, ValidationResult, T> mapper) {
+    return resources.parallel().map(r -> mapper.apply(r, validate(r)));
+  }
+}
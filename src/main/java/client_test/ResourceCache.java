@@ -0,0 +1,202 @@
+package client_test;
+
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.IReadExecutable;
+import ca.uhn.fhir.rest.server.exceptions.NotModifiedException;
+import ca.uhn.fhir.util.DateUtils;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Read-through cache in front of {@code client.read()} with one entry per resource type and id; the
+ * entry remembers the version it holds.
+ *
+ * <p>A versioned read is served from the cache when the entry holds that version, a version never
+ * changes; other versions are read from the server and not cached. A versionless read is served
+ * from the cache for {@code timeToLive}; after that the entry is revalidated with a conditional GET
+ * (If-None-Match on the version, If-Modified-Since on meta.lastUpdated), so an unchanged resource
+ * costs a 304 instead of its payload. Beyond {@code maxEntries} the least recently used entries are
+ * dropped.
+ *
+ * <p>{@link #addAll(Bundle)} takes the resources of a search result, typically its _include
+ * entries, so reference targets that came with a search are not read again. Entries tagged
+ * SUBSETTED (e.g. from {@code _summary} or {@code _elements}) are left out. Cached resources are
+ * shared by all callers and must be treated as read-only.
+ */
+public class ResourceCache {
+
+  public static final int DEFAULT_MAX_ENTRIES = 10_000;
+  public static final Duration DEFAULT_TIME_TO_LIVE = Duration.ofMinutes(5);
+
+  private final IGenericClient client;
+  private final long timeToLiveNanos;
+  private final Map<String, CacheEntry> entries;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong notModified = new AtomicLong();
+  private final AtomicLong fetched = new AtomicLong();
+
+  public ResourceCache(IGenericClient client) {
+    this(client, DEFAULT_MAX_ENTRIES, DEFAULT_TIME_TO_LIVE);
+  }
+
+  public ResourceCache(IGenericClient client, int maxEntries, Duration timeToLive) {
+    this.client = client;
+    this.timeToLiveNanos = timeToLive.toNanos();
+    this.entries =
+        Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+              @Override
+              protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > maxEntries;
+              }
+            });
+  }
+
+  private static final class CacheEntry {
+    final Resource resource;
+    final String version;
+    volatile long validatedAt;
+
+    CacheEntry(Resource resource, String version, long validatedAt) {
+      this.resource = resource;
+      this.version = version;
+      this.validatedAt = validatedAt;
+    }
+  }
+
+  public <T extends Resource> T read(Class<T> type, String id) {
+    return read(type, new IdType(type.getSimpleName(), id));
+  }
+
+  /**
+   * Reads {@code Type/id} or, if the id has a version, {@code Type/id/_history/version}. The
+   * resource type defaults to {@code type} when the id has none.
+   */
+  public <T extends Resource> T read(Class<T> type, IIdType id) {
+    String resourceType =
+        id.hasResourceType()
+            ? id.getResourceType()
+            : FhirClientFactory.getContext().getResourceType(type);
+    CacheEntry entry = entries.get(resourceType + "/" + id.getIdPart());
+    long now = System.nanoTime();
+    if (id.hasVersionIdPart()) {
+      if (entry != null && id.getVersionIdPart().equals(entry.version)) {
+        hits.incrementAndGet();
+        return type.cast(entry.resource);
+      }
+      fetched.incrementAndGet();
+      return fetch(type, id);
+    }
+    if (entry != null && now - entry.validatedAt < timeToLiveNanos) {
+      hits.incrementAndGet();
+      return type.cast(entry.resource);
+    }
+    // fetched outside the lock, concurrent misses on the same id may both go to the server
+    T resource = entry == null ? fetch(type, id) : revalidate(type, id, entry);
+    if (entry != null && resource == entry.resource) {
+      entry.validatedAt = now;
+      notModified.incrementAndGet();
+    } else {
+      put(resource, now);
+      fetched.incrementAndGet();
+    }
+    return resource;
+  }
+
+  private <T extends Resource> T fetch(Class<T> type, IIdType id) {
+    return client.read().resource(type).withId(id).execute();
+  }
+
+  private <T extends Resource> T revalidate(Class<T> type, IIdType id, CacheEntry entry) {
+    T cached = type.cast(entry.resource);
+    if (entry.version != null) {
+      return client
+          .read()
+          .resource(type)
+          .withId(id)
+          .ifVersionMatches(entry.version)
+          .returnResource(cached)
+          .execute();
+    }
+    IReadExecutable<T> read = client.read().resource(type).withId(id);
+    if (cached.getMeta().hasLastUpdated()) {
+      read.withAdditionalHeader(
+          Constants.HEADER_IF_MODIFIED_SINCE,
+          DateUtils.formatDate(cached.getMeta().getLastUpdated()));
+    }
+    try {
+      return read.execute();
+    } catch (NotModifiedException e) {
+      return cached;
+    }
+  }
+
+  /** Resolves a literal reference like {@code Patient/1} through the cache. */
+  public Optional<Resource> resolve(Reference reference) {
+    if (!reference.hasReference()) {
+      return Optional.empty();
+    }
+    IdType id = new IdType(reference.getReference());
+    if (!id.hasResourceType() || !id.hasIdPart()) {
+      return Optional.empty();
+    }
+    Class<? extends Resource> type =
+        FhirClientFactory.getContext()
+            .getResourceDefinition(id.getResourceType())
+            .getImplementingClass()
+            .asSubclass(Resource.class);
+    return Optional.of(read(type, id));
+  }
+
+  /** Adds every resource of the Bundle, e.g. the _include entries of a search result. */
+  public void addAll(Bundle bundle) {
+    long now = System.nanoTime();
+    for (BundleEntryComponent entry : bundle.getEntry()) {
+      Resource resource = entry.getResource();
+      if (resource != null
+          && resource.getIdElement().hasIdPart()
+          && resource
+                  .getMeta()
+                  .getTag(Constants.TAG_SUBSETTED_SYSTEM_R4, Constants.TAG_SUBSETTED_CODE)
+              == null) {
+        put(resource, now);
+      }
+    }
+  }
+
+  private void put(Resource resource, long validatedAt) {
+    IIdType id = resource.getIdElement();
+    String version =
+        id.hasVersionIdPart() ? id.getVersionIdPart() : resource.getMeta().getVersionId();
+    entries.put(
+        resource.fhirType() + "/" + id.getIdPart(), new CacheEntry(resource, version, validatedAt));
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getNotModifiedCount() {
+    return notModified.get();
+  }
+
+  public long getFetchCount() {
+    return fetched.get();
+  }
+
+  public int size() {
+    return entries.size();
+  }
+}
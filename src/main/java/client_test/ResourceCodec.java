@@ -0,0 +1,41 @@
+package client_test;
+
+import java.nio.charset.StandardCharsets;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+/**
+ * How resources are turned into bytes where they are spooled or cached locally: {@link #binary()}
+ * is the compact {@link FhirBinaryParser} encoding, {@link #json()} the compact JSON of the client
+ * for files other tools read as well. Implementations are thread-safe.
+ */
+public interface ResourceCodec {
+
+  byte[] encode(IBaseResource resource);
+
+  IBaseResource decode(byte[] bytes);
+
+  default <T extends IBaseResource> T decode(Class<T> type, byte[] bytes) {
+    return type.cast(decode(bytes));
+  }
+
+  static ResourceCodec binary() {
+    return FhirBinaryParser.getDefault();
+  }
+
+  static ResourceCodec json() {
+    return new ResourceCodec() {
+      @Override
+      public byte[] encode(IBaseResource resource) {
+        return FhirClientFactory.getCompactJsonParser()
+            .encodeResourceToString(resource)
+            .getBytes(StandardCharsets.UTF_8);
+      }
+
+      @Override
+      public IBaseResource decode(byte[] bytes) {
+        return FhirClientFactory.getCompactJsonParser()
+            .parseResource(new String(bytes, StandardCharsets.UTF_8));
+      }
+    };
+  }
+}
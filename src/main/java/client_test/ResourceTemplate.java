@@ -0,0 +1,63 @@
+package client_test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * The constant skeleton of a resource, parsed once from a JSON file. {@link #instantiate()} returns
+ * a deep copy of the skeleton, so instances share nothing and may be changed freely.
+ *
+ * <p>Copying is much cheaper than parsing the file per record, but not cheaper than building the
+ * same resource with setters: templates keep the constant parts in one file instead of four copies
+ * of builder code, they do not make resource creation faster.
+ */
+public class ResourceTemplate<T extends Resource> {
+
+  private final T skeleton;
+
+  public ResourceTemplate(T skeleton) {
+    this.skeleton = skeleton;
+  }
+
+  public static <T extends Resource> ResourceTemplate<T> load(Class<T> type, Path file) {
+    try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      return load(type, reader);
+    } catch (IOException e) {
+      throw new UncheckedIOException("cannot read template " + file, e);
+    }
+  }
+
+  public static <T extends Resource> ResourceTemplate<T> loadFromClasspath(
+      Class<T> type, String resourceName) {
+    InputStream in = ResourceTemplate.class.getResourceAsStream(resourceName);
+    if (in == null) {
+      throw new IllegalArgumentException("template not found on the classpath: " + resourceName);
+    }
+    try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+      return load(type, reader);
+    } catch (IOException e) {
+      throw new UncheckedIOException("cannot read template " + resourceName, e);
+    }
+  }
+
+  private static <T extends Resource> ResourceTemplate<T> load(Class<T> type, Reader reader) {
+    T skeleton = FhirClientFactory.getContext().newJsonParser().parseResource(type, reader);
+    return new ResourceTemplate<>(skeleton);
+  }
+
+  @SuppressWarnings("unchecked")
+  public T instantiate() {
+    return (T) skeleton.copy();
+  }
+
+  public T getSkeleton() {
+    return skeleton;
+  }
+}
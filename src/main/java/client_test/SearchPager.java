@@ -0,0 +1,128 @@
+package client_test;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.IQuery;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Lazily walks all pages of a search by following the Bundle next links with {@code
+ * client.loadPage()}. A background thread fetches the following pages while the current one is
+ * consumed. At most {@code prefetchPages} fetched pages wait in the buffer; when the consumer falls
+ * behind, fetching pauses.
+ *
+ * <p>Closing the pager, or the stream returned by {@link #pages()} or {@link #resources()}, stops
+ * the background fetch; {@link #hasNext()} returns false from then on.
+ */
+public class SearchPager implements Iterator<Bundle>, AutoCloseable {
+
+  public static final int DEFAULT_PAGE_SIZE = 100;
+  public static final int DEFAULT_PREFETCH_PAGES = 2;
+
+  private static final Object END_OF_PAGES = new Object();
+
+  private final BlockingQueue<Object> buffer;
+  private final Thread fetcher;
+  private volatile boolean closed;
+  private Object next;
+
+  public SearchPager(IGenericClient client, IQuery<Bundle> query) {
+    this(client, query, DEFAULT_PAGE_SIZE, DEFAULT_PREFETCH_PAGES);
+  }
+
+  public SearchPager(IGenericClient client, IQuery<Bundle> query, int pageSize, int prefetchPages) {
+    if (pageSize < 1 || prefetchPages < 1) {
+      throw new IllegalArgumentException("pageSize and prefetchPages must be positive");
+    }
+    this.buffer = new ArrayBlockingQueue<>(prefetchPages);
+    IQuery<Bundle> pagedQuery = query.count(pageSize);
+    this.fetcher = new Thread(() -> fetchAll(client, pagedQuery), "search-pager");
+    fetcher.setDaemon(true);
+    fetcher.start();
+  }
+
+  private void fetchAll(IGenericClient client, IQuery<Bundle> query) {
+    try {
+      Bundle page = query.execute();
+      buffer.put(page);
+      while (page.getLink(Bundle.LINK_NEXT) != null) {
+        page = client.loadPage().next(page).execute();
+        buffer.put(page);
+      }
+      buffer.put(END_OF_PAGES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (RuntimeException e) {
+      try {
+        buffer.put(e);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (closed) {
+      return false;
+    }
+    if (next == null) {
+      try {
+        next = buffer.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("interrupted while waiting for the next page", e);
+      }
+    }
+    if (next instanceof RuntimeException) {
+      throw (RuntimeException) next;
+    }
+    return next != END_OF_PAGES && !closed;
+  }
+
+  @Override
+  public Bundle next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    Bundle page = (Bundle) next;
+    next = null;
+    return page;
+  }
+
+  public Stream<Bundle> pages() {
+    return StreamSupport.stream(
+            Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL),
+            false)
+        .onClose(this::close);
+  }
+
+  public Stream<Resource> resources() {
+    return pages()
+        .flatMap(page -> page.getEntry().stream())
+        .map(BundleEntryComponent::getResource)
+        .filter(Objects::nonNull);
+  }
+
+  public <T extends Resource> Stream<T> resources(Class<T> resourceClass) {
+    return resources().filter(resourceClass::isInstance).map(resourceClass::cast);
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    fetcher.interrupt();
+    // wakes a consumer blocked in hasNext(), the buffer is full if this fails and nobody waits
+    buffer.offer(END_OF_PAGES);
+  }
+}
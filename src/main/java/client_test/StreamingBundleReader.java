@@ -0,0 +1,159 @@
+package client_test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IJsonLikeParser;
+import ca.uhn.fhir.parser.json.jackson.JacksonStructure;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.client.api.IHttpClient;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.function.Consumer;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Reads a JSON Bundle entry by entry from a stream instead of materialising it. Only the entry that
+ * is currently parsed is held as a JSON tree; it is handed to HAPI's parser as a tree, so there is
+ * no intermediate string. The returned Bundle carries everything except the entries (type, total,
+ * links), which is enough to continue paging.
+ */
+public class StreamingBundleReader {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+  private static final JsonFactory JSON_FACTORY = MAPPER.getFactory();
+
+  private final FhirContext ctx;
+
+  public StreamingBundleReader() {
+    this(FhirClientFactory.getContext());
+  }
+
+  public StreamingBundleReader(FhirContext ctx) {
+    this.ctx = ctx;
+  }
+
+  public Bundle readResources(InputStream in, Consumer<? super Resource> callback)
+      throws IOException {
+    return read(
+        in,
+        entry -> {
+          if (entry.getResource() != null) {
+            callback.accept(entry.getResource());
+          }
+        });
+  }
+
+  public Bundle read(InputStream in, Consumer<BundleEntryComponent> callback) throws IOException {
+    IJsonLikeParser parser = (IJsonLikeParser) ctx.newJsonParser();
+    return readEntries(in, json -> callback.accept(parseEntry(parser, MAPPER.readTree(json))));
+  }
+
+  /**
+   * Streams the entries of a Bundle to the reader, which gets the JSON parser positioned on the
+   * start of an entry object and has to consume the whole object.
+   */
+  Bundle readEntries(InputStream in, EntryReader reader) throws IOException {
+    ObjectNode shell = MAPPER.createObjectNode();
+    try (JsonParser json = JSON_FACTORY.createParser(in)) {
+      if (json.nextToken() != JsonToken.START_OBJECT) {
+        throw new IOException("expected a JSON object");
+      }
+      while (json.nextToken() == JsonToken.FIELD_NAME) {
+        String field = json.getCurrentName();
+        JsonToken value = json.nextToken();
+        if ("entry".equals(field) && value == JsonToken.START_ARRAY) {
+          while (json.nextToken() == JsonToken.START_OBJECT) {
+            reader.read(json);
+          }
+        } else {
+          shell.set(field, MAPPER.readTree(json));
+        }
+      }
+    }
+    IJsonLikeParser parser = (IJsonLikeParser) ctx.newJsonParser();
+    return (Bundle) parser.parseResource(structure(shell));
+  }
+
+  interface EntryReader {
+    void read(JsonParser json) throws IOException;
+  }
+
+  // the entry is wrapped in a one-entry Bundle so fullUrl, search and response are kept as well
+  private BundleEntryComponent parseEntry(IJsonLikeParser parser, JsonNode entry) {
+    ObjectNode wrapper = MAPPER.createObjectNode();
+    wrapper.put("resourceType", "Bundle");
+    wrapper.putArray("entry").add(entry);
+    Bundle bundle = (Bundle) parser.parseResource(structure(wrapper));
+    return bundle.getEntryFirstRep();
+  }
+
+  private static JacksonStructure structure(ObjectNode node) {
+    JacksonStructure structure = new JacksonStructure();
+    structure.setNativeObject(node);
+    return structure;
+  }
+
+  /** GETs a search URL, e.g. a search or a next link, and streams the entries of the response. */
+  public Bundle search(String url, Consumer<BundleEntryComponent> callback) throws IOException {
+    return get(url, in -> read(in, callback));
+  }
+
+  <T> T get(String url, BodyReader<T> reader) throws IOException {
+    IHttpClient httpClient = httpClient(url, RequestTypeEnum.GET);
+    return execute(httpClient.createGetRequest(ctx, EncodingEnum.JSON), reader);
+  }
+
+  /** POSTs a transaction and streams the entries of the transaction-response Bundle. */
+  public Bundle transaction(
+      String serverBase, Bundle transaction, Consumer<BundleEntryComponent> callback)
+      throws IOException {
+    IHttpClient httpClient = httpClient(serverBase, RequestTypeEnum.POST);
+    String body = ctx.newJsonParser().encodeResourceToString(transaction);
+    IHttpRequest request =
+        httpClient.createByteRequest(ctx, body, Constants.CT_FHIR_JSON_NEW, EncodingEnum.JSON);
+    return execute(request, in -> read(in, callback));
+  }
+
+  private IHttpClient httpClient(String url, RequestTypeEnum requestType) {
+    return ctx.getRestfulClientFactory()
+        .getHttpClient(
+            new StringBuilder(url),
+            Collections.emptyMap(),
+            null,
+            requestType,
+            Collections.emptyList());
+  }
+
+  private <T> T execute(IHttpRequest request, BodyReader<T> reader) throws IOException {
+    request.addHeader(Constants.HEADER_ACCEPT, Constants.CT_FHIR_JSON_NEW);
+    IHttpResponse response = request.execute();
+    try {
+      if (response.getStatus() >= 400) {
+        throw BaseServerResponseException.newInstance(
+            response.getStatus(), response.getStatusInfo());
+      }
+      try (InputStream in = response.readEntity()) {
+        return reader.read(in);
+      }
+    } finally {
+      response.close();
+    }
+  }
+
+  interface BodyReader<T> {
+    T read(InputStream in) throws IOException;
+  }
+}
@@ -0,0 +1,530 @@
+package client_test;
+
+import ca.uhn.fhir.util.FhirTerser;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.ValueSet;
+
+/**
+ * Code lookup, display filling and validate-code for CodeSystems and ValueSets loaded from files,
+ * without a terminology server round trip.
+ *
+ * <p>Concepts are kept in flat buffers instead of objects: an open-addressing table of 64-bit
+ * hashes of (code system, code) points to the concept number, and the code and display of every
+ * concept are UTF-8 bytes in one buffer. With {@code offHeap} the buffers are direct, so a
+ * SNOMED-sized code system adds almost nothing to the Java heap and nothing for the GC to trace. A
+ * lookup allocates nothing unless a display is returned.
+ *
+ * <p>ValueSets are supported as expansions or as composes of concept lists and whole code systems.
+ * Filters, excludes and imported ValueSets are not evaluated, such ValueSets are left to the
+ * validation support chain. The index is immutable and thread-safe.
+ */
+public final class TerminologyIndex {
+
+  private static final long EMPTY = 0;
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private final Map<String, Integer> systemOrdinals;
+  private final LongBuffer keys;
+  private final IntBuffer slots;
+  private final int mask;
+  private final IntBuffer conceptSystems;
+  private final IntBuffer offsets;
+  private final IntBuffer codeLengths;
+  private final ByteBuffer data;
+  private final int size;
+  private final int dataEnd;
+  private final Map<String, Members> valueSets;
+
+  private TerminologyIndex(Builder builder, boolean offHeap) {
+    this.systemOrdinals = Collections.unmodifiableMap(new HashMap<>(builder.systemOrdinals));
+    int concepts = builder.codes.size();
+    int capacity = Integer.highestOneBit(Math.max(4, concepts) * 2 - 1) << 1;
+    this.mask = capacity - 1;
+    this.keys = allocate(capacity * 8L, offHeap).asLongBuffer();
+    this.slots = allocate(capacity * 4L, offHeap).asIntBuffer();
+    this.conceptSystems = allocate(concepts * 4L, offHeap).asIntBuffer();
+    this.offsets = allocate(concepts * 4L, offHeap).asIntBuffer();
+    this.codeLengths = allocate(concepts * 4L, offHeap).asIntBuffer();
+
+    List<byte[]> codeBytes = new ArrayList<>(concepts);
+    List<byte[]> displayBytes = new ArrayList<>(concepts);
+    long bytes = 0;
+    for (int i = 0; i < concepts; i++) {
+      byte[] code = builder.codes.get(i).getBytes(StandardCharsets.UTF_8);
+      String display = builder.displays.get(i);
+      byte[] displayUtf8 = display == null ? new byte[0] : display.getBytes(StandardCharsets.UTF_8);
+      codeBytes.add(code);
+      displayBytes.add(displayUtf8);
+      bytes += code.length + displayUtf8.length;
+    }
+    if (bytes > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("codes and displays exceed 2 GB");
+    }
+    this.data = allocate(bytes, offHeap);
+
+    for (int i = 0; i < concepts; i++) {
+      conceptSystems.put(i, builder.conceptSystems[i]);
+      offsets.put(i, data.position());
+      codeLengths.put(i, codeBytes.get(i).length);
+      data.put(codeBytes.get(i));
+      data.put(displayBytes.get(i));
+      insert(hash(builder.conceptSystems[i], builder.codes.get(i)), i);
+    }
+    this.size = concepts;
+    this.dataEnd = data.position();
+
+    Map<String, Members> members = new HashMap<>();
+    builder.valueSets.forEach(
+        (url, pending) -> {
+          int[] numbers = pending.concepts.stream().mapToInt(Integer::intValue).sorted().toArray();
+          members.put(url, new Members(numbers, pending.wholeSystems));
+        });
+    this.valueSets = Collections.unmodifiableMap(members);
+  }
+
+  private static ByteBuffer allocate(long bytes, boolean offHeap) {
+    return offHeap ? ByteBuffer.allocateDirect((int) bytes) : ByteBuffer.allocate((int) bytes);
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /** Loads every {@code *.json} and {@code *.ndjson} file of the directory. */
+  public static TerminologyIndex load(Path directory, boolean offHeap) {
+    return builder().loadDirectory(directory).build(offHeap);
+  }
+
+  private static final class Members {
+    final int[] concepts;
+    final BitSet wholeSystems;
+
+    Members(int[] concepts, BitSet wholeSystems) {
+      this.concepts = concepts;
+      this.wholeSystems = wholeSystems;
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isCodeSystemSupported(String system) {
+    return systemOrdinals.containsKey(system);
+  }
+
+  public boolean isValueSetSupported(String valueSetUrl) {
+    return valueSets.containsKey(valueSetUrl);
+  }
+
+  public boolean contains(String system, String code) {
+    return find(system, code) >= 0;
+  }
+
+  /** The display of the code, null if the code is unknown or has no display. */
+  public String getDisplay(String system, String code) {
+    int concept = find(system, code);
+    if (concept < 0) {
+      return null;
+    }
+    int start = offsets.get(concept) + codeLengths.get(concept);
+    int end = concept + 1 < size ? offsets.get(concept + 1) : dataEnd;
+    if (end == start) {
+      return null;
+    }
+    byte[] display = new byte[end - start];
+    for (int i = 0; i < display.length; i++) {
+      display[i] = data.get(start + i);
+    }
+    return new String(display, StandardCharsets.UTF_8);
+  }
+
+  /** Whether the code is in the ValueSet; false for unknown ValueSets. */
+  public boolean validateCode(String valueSetUrl, String system, String code) {
+    Members members = valueSets.get(valueSetUrl);
+    if (members == null) {
+      return false;
+    }
+    Integer systemOrdinal = systemOrdinals.get(system);
+    if (systemOrdinal == null) {
+      return false;
+    }
+    int concept = find(systemOrdinal, code);
+    return concept >= 0
+        && (members.wholeSystems.get(systemOrdinal)
+            || Arrays.binarySearch(members.concepts, concept) >= 0);
+  }
+
+  /** Sets the display of every Coding of the resource that has none; returns how many. */
+  public int fillDisplays(IBaseResource resource) {
+    FhirTerser terser = FhirClientFactory.getContext().newTerser();
+    int filled = 0;
+    for (Coding coding : terser.getAllPopulatedChildElementsOfType(resource, Coding.class)) {
+      if (!coding.hasDisplay() && coding.hasSystem() && coding.hasCode()) {
+        String display = getDisplay(coding.getSystem(), coding.getCode());
+        if (display != null) {
+          coding.setDisplay(display);
+          filled++;
+        }
+      }
+    }
+    return filled;
+  }
+
+  private int find(String system, String code) {
+    Integer systemOrdinal = systemOrdinals.get(system);
+    return systemOrdinal == null || code == null ? -1 : find(systemOrdinal, code);
+  }
+
+  private int find(int system, String code) {
+    long hash = hash(system, code);
+    for (int slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+      long key = keys.get(slot);
+      if (key == EMPTY) {
+        return -1;
+      }
+      if (key == hash) {
+        int concept = slots.get(slot);
+        if (conceptSystems.get(concept) == system && codeEquals(concept, code)) {
+          return concept;
+        }
+      }
+    }
+  }
+
+  private void insert(long hash, int concept) {
+    int slot = (int) hash & mask;
+    while (keys.get(slot) != EMPTY) {
+      slot = (slot + 1) & mask;
+    }
+    keys.put(slot, hash);
+    slots.put(slot, concept);
+  }
+
+  // codes are almost always ASCII, compared byte by byte without decoding
+  private boolean codeEquals(int concept, String code) {
+    int offset = offsets.get(concept);
+    int length = codeLengths.get(concept);
+    if (length == code.length()) {
+      boolean ascii = true;
+      for (int i = 0; i < length && ascii; i++) {
+        char c = code.charAt(i);
+        if (c >= 0x80) {
+          ascii = false;
+        } else if (data.get(offset + i) != c) {
+          return false;
+        }
+      }
+      if (ascii) {
+        return true;
+      }
+    }
+    byte[] bytes = code.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (data.get(offset + i) != bytes[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // FNV-1a over the chars, seeded with the code system and finished with the murmur3 mix
+  private static long hash(int system, String code) {
+    long h = 0xcbf29ce484222325L ^ (system * 0x9E3779B97F4A7C15L);
+    for (int i = 0; i < code.length(); i++) {
+      h ^= code.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h == EMPTY ? 1 : h;
+  }
+
+  /** Collects concepts and ValueSets; {@link #build(boolean)} freezes them into the index. */
+  public static final class Builder {
+
+    private final Map<String, Integer> systemOrdinals = new HashMap<>();
+    private int[] conceptSystems = new int[1024];
+    private final List<String> codes = new ArrayList<>();
+    private final List<String> displays = new ArrayList<>();
+    private final Map<String, Integer> numbers = new HashMap<>();
+    private final Map<String, PendingValueSet> valueSets = new HashMap<>();
+
+    private Builder() {}
+
+    private static final class PendingValueSet {
+      final List<Integer> concepts = new ArrayList<>();
+      final BitSet wholeSystems = new BitSet();
+    }
+
+    public Builder addConcept(String system, String code, String display) {
+      addConceptNumber(system, code, display);
+      return this;
+    }
+
+    // a concept added twice, e.g. by a ValueSet and its CodeSystem, keeps its first number and
+    // the first display it was given
+    private int addConceptNumber(String systemUrl, String code, String display) {
+      int system = systemOrdinal(systemUrl);
+      Integer existing = numbers.putIfAbsent(system + "|" + code, codes.size());
+      if (existing != null) {
+        if (displays.get(existing) == null) {
+          displays.set(existing, display);
+        }
+        return existing;
+      }
+      int number = codes.size();
+      if (number == conceptSystems.length) {
+        conceptSystems = Arrays.copyOf(conceptSystems, number * 2);
+      }
+      conceptSystems[number] = system;
+      codes.add(code);
+      displays.add(display);
+      return number;
+    }
+
+    private int systemOrdinal(String system) {
+      return systemOrdinals.computeIfAbsent(system, s -> systemOrdinals.size());
+    }
+
+    public Builder addCodeSystem(CodeSystem codeSystem) {
+      addConcepts(codeSystem.getUrl(), codeSystem.getConcept());
+      return this;
+    }
+
+    private void addConcepts(String system, List<ConceptDefinitionComponent> concepts) {
+      for (ConceptDefinitionComponent concept : concepts) {
+        addConcept(system, concept.getCode(), concept.getDisplay());
+        addConcepts(system, concept.getConcept());
+      }
+    }
+
+    /** Adds the ValueSet if its expansion or compose is supported, otherwise ignores it. */
+    public Builder addValueSet(ValueSet valueSet) {
+      try {
+        return addValueSet(
+            MAPPER.readTree(
+                FhirClientFactory.getCompactJsonParser().encodeResourceToString(valueSet)));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    private Builder addValueSet(JsonNode valueSet) {
+      String url = valueSet.path("url").asText(null);
+      if (url == null) {
+        return this;
+      }
+      PendingValueSet pending = new PendingValueSet();
+      if (valueSet.path("expansion").has("contains")) {
+        addContains(pending, valueSet.path("expansion").path("contains"));
+      } else if (!addCompose(pending, valueSet.path("compose"))) {
+        return this;
+      }
+      valueSets.put(url, pending);
+      return this;
+    }
+
+    private void addContains(PendingValueSet pending, JsonNode contains) {
+      for (JsonNode concept : contains) {
+        if (concept.has("system") && concept.has("code")) {
+          pending.concepts.add(
+              addConceptNumber(
+                  concept.get("system").asText(),
+                  concept.get("code").asText(),
+                  concept.path("display").asText(null)));
+        }
+        addContains(pending, concept.path("contains"));
+      }
+    }
+
+    private boolean addCompose(PendingValueSet pending, JsonNode compose) {
+      if (!compose.has("include") || compose.has("exclude")) {
+        return false;
+      }
+      for (JsonNode include : compose.get("include")) {
+        String system = include.path("system").asText(null);
+        if (system == null || include.has("filter") || include.has("valueSet")) {
+          return false;
+        }
+        if (!include.has("concept")) {
+          pending.wholeSystems.set(systemOrdinal(system));
+          continue;
+        }
+        for (JsonNode concept : include.get("concept")) {
+          pending.concepts.add(
+              addConceptNumber(
+                  system, concept.path("code").asText(), concept.path("display").asText(null)));
+        }
+      }
+      return true;
+    }
+
+    public Builder loadDirectory(Path directory) {
+      try (Stream<Path> files = Files.list(directory)) {
+        for (Path file : files.sorted().collect(Collectors.toList())) {
+          String name = file.getFileName().toString();
+          if (name.endsWith(".json") || name.endsWith(".ndjson")) {
+            load(file);
+          }
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException("cannot list " + directory, e);
+      }
+      return this;
+    }
+
+    /**
+     * Loads a CodeSystem or ValueSet JSON file, or an NDJSON file of them. The concepts of a
+     * CodeSystem file are streamed, the file is never held as a whole.
+     */
+    public Builder load(Path file) {
+      try {
+        if (file.getFileName().toString().endsWith(".ndjson")) {
+          try (BufferedReader lines = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = lines.readLine()) != null) {
+              if (!line.isBlank()) {
+                addResource(MAPPER.readTree(line));
+              }
+            }
+          }
+        } else {
+          try (InputStream in = Files.newInputStream(file);
+              JsonParser json = MAPPER.getFactory().createParser(in)) {
+            readResource(json);
+          }
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException("cannot read " + file, e);
+      }
+      return this;
+    }
+
+    private void addResource(JsonNode resource) {
+      String type = resource.path("resourceType").asText();
+      if ("CodeSystem".equals(type)) {
+        List<String> concepts = new ArrayList<>();
+        collectConcepts(resource.path("concept"), concepts);
+        addCollected(resource.path("url").asText(null), concepts);
+      } else if ("ValueSet".equals(type)) {
+        addValueSet(resource);
+      }
+    }
+
+    private static void collectConcepts(JsonNode concepts, List<String> collected) {
+      for (JsonNode concept : concepts) {
+        collected.add(concept.path("code").asText());
+        collected.add(concept.path("display").asText(null));
+        collectConcepts(concept.path("concept"), collected);
+      }
+    }
+
+    // url may come after the concepts, so they are collected first
+    private void addCollected(String system, List<String> concepts) {
+      if (system == null) {
+        return;
+      }
+      for (int i = 0; i < concepts.size(); i += 2) {
+        addConcept(system, concepts.get(i), concepts.get(i + 1));
+      }
+    }
+
+    private void readResource(JsonParser json) throws IOException {
+      if (json.nextToken() != JsonToken.START_OBJECT) {
+        throw new IOException("expected a JSON object");
+      }
+      String type = null;
+      String url = null;
+      List<String> concepts = new ArrayList<>();
+      ObjectNode rest = MAPPER.createObjectNode();
+      while (json.nextToken() == JsonToken.FIELD_NAME) {
+        String field = json.getCurrentName();
+        json.nextToken();
+        if ("resourceType".equals(field)) {
+          type = json.getText();
+          rest.put(field, type);
+        } else if ("url".equals(field)) {
+          url = json.getText();
+          rest.put(field, url);
+        } else if ("concept".equals(field)) {
+          // resourceType need not come first, the concepts are only kept for a CodeSystem below
+          streamConcepts(json, concepts);
+        } else if ("compose".equals(field) || "expansion".equals(field)) {
+          rest.set(field, MAPPER.readTree(json));
+        } else {
+          json.skipChildren();
+        }
+      }
+      if ("CodeSystem".equals(type)) {
+        addCollected(url, concepts);
+      } else if ("ValueSet".equals(type)) {
+        addValueSet(rest);
+      }
+    }
+
+    private static void streamConcepts(JsonParser json, List<String> collected) throws IOException {
+      while (json.nextToken() == JsonToken.START_OBJECT) {
+        String code = null;
+        String display = null;
+        List<String> children = null;
+        while (json.nextToken() == JsonToken.FIELD_NAME) {
+          String field = json.getCurrentName();
+          json.nextToken();
+          if ("code".equals(field)) {
+            code = json.getText();
+          } else if ("display".equals(field)) {
+            display = json.getText();
+          } else if ("concept".equals(field)) {
+            children = new ArrayList<>();
+            streamConcepts(json, children);
+          } else {
+            json.skipChildren();
+          }
+        }
+        collected.add(code);
+        collected.add(display);
+        if (children != null) {
+          collected.addAll(children);
+        }
+      }
+    }
+
+    public TerminologyIndex build(boolean offHeap) {
+      return new TerminologyIndex(this, offHeap);
+    }
+  }
+}
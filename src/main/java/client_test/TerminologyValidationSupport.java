@@ -0,0 +1,107 @@
+package client_test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.ConceptValidationOptions;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.ValueSet;
+
+/**
+ * Answers code lookups and validate-code for the code systems and value sets of a {@link
+ * TerminologyIndex}. Everything else returns null, so the next member of the validation support
+ * chain gets the call.
+ */
+public class TerminologyValidationSupport implements IValidationSupport {
+
+  private final FhirContext ctx;
+  private final TerminologyIndex index;
+
+  public TerminologyValidationSupport(FhirContext ctx, TerminologyIndex index) {
+    this.ctx = ctx;
+    this.index = index;
+  }
+
+  @Override
+  public FhirContext getFhirContext() {
+    return ctx;
+  }
+
+  @Override
+  public boolean isCodeSystemSupported(ValidationSupportContext context, String system) {
+    return index.isCodeSystemSupported(system);
+  }
+
+  @Override
+  public boolean isValueSetSupported(ValidationSupportContext context, String valueSetUrl) {
+    return index.isValueSetSupported(valueSetUrl);
+  }
+
+  @Override
+  public CodeValidationResult validateCode(
+      ValidationSupportContext context,
+      ConceptValidationOptions options,
+      String system,
+      String code,
+      String display,
+      String valueSetUrl) {
+    if (system == null || code == null) {
+      return null;
+    }
+    if (valueSetUrl != null) {
+      if (!index.isValueSetSupported(valueSetUrl) || !index.isCodeSystemSupported(system)) {
+        return null;
+      }
+      if (!index.validateCode(valueSetUrl, system, code)) {
+        return error(code, "Code " + system + "#" + code + " is not in value set " + valueSetUrl);
+      }
+    } else if (!index.isCodeSystemSupported(system)) {
+      return null;
+    } else if (!index.contains(system, code)) {
+      return error(code, "Unknown code " + system + "#" + code);
+    }
+    String expected = index.getDisplay(system, code);
+    CodeValidationResult result = new CodeValidationResult().setCode(code).setDisplay(expected);
+    if (display != null && expected != null && !display.equalsIgnoreCase(expected)) {
+      result
+          .setSeverity(IssueSeverity.WARNING)
+          .setMessage("Display '" + display + "' for " + code + " should be '" + expected + "'");
+    }
+    return result;
+  }
+
+  @Override
+  public CodeValidationResult validateCodeInValueSet(
+      ValidationSupportContext context,
+      ConceptValidationOptions options,
+      String system,
+      String code,
+      String display,
+      IBaseResource valueSet) {
+    if (!(valueSet instanceof ValueSet) || !((ValueSet) valueSet).hasUrl()) {
+      return null;
+    }
+    return validateCode(context, options, system, code, display, ((ValueSet) valueSet).getUrl());
+  }
+
+  @Override
+  public LookupCodeResult lookupCode(
+      ValidationSupportContext context, String system, String code, String displayLanguage) {
+    if (!index.isCodeSystemSupported(system)) {
+      return null;
+    }
+    LookupCodeResult result = new LookupCodeResult();
+    result.setSearchedForSystem(system);
+    result.setSearchedForCode(code);
+    result.setFound(index.contains(system, code));
+    result.setCodeDisplay(index.getDisplay(system, code));
+    return result;
+  }
+
+  private static CodeValidationResult error(String code, String message) {
+    return new CodeValidationResult()
+        .setCode(code)
+        .setSeverity(IssueSeverity.ERROR)
+        .setMessage(message);
+  }
+}
@@ -0,0 +1,171 @@
+package client_test;
+
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.util.FhirTerser;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ResourceType;
+
+/**
+ * Cuts a stream of resources into transaction bundles without ever holding more than one bundle in
+ * memory. A Patient opens a new group, every following resource with a Reference into the open
+ * group joins it, and a group is never split across two bundles. A bundle is closed as soon as the
+ * next group would exceed the entry count or the encoded byte size.
+ */
+public class TransactionBundleChunker implements Iterator<Bundle> {
+
+  public static final int DEFAULT_MAX_ENTRIES = 500;
+  public static final long DEFAULT_MAX_BYTES = 5L * 1024 * 1024;
+
+  private final Iterator<? extends Resource> resources;
+  private final int maxEntries;
+  private final long maxBytes;
+  private final TransactionEntryMode mode;
+  private final FhirTerser terser = FhirClientFactory.getContext().newTerser();
+  private final IParser sizeParser = FhirClientFactory.getContext().newJsonParser();
+
+  private final List<Resource> group = new ArrayList<>();
+  private final Set<String> groupIds = new HashSet<>();
+  private long groupBytes;
+
+  private Bundle chunk;
+  private long chunkBytes;
+  private Bundle next;
+
+  public TransactionBundleChunker(Iterator<? extends Resource> resources) {
+    this(resources, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES, TransactionEntryMode.CREATE);
+  }
+
+  public TransactionBundleChunker(
+      Iterator<? extends Resource> resources,
+      int maxEntries,
+      long maxBytes,
+      TransactionEntryMode mode) {
+    if (maxEntries < 1 || maxBytes < 1) {
+      throw new IllegalArgumentException("maxEntries and maxBytes must be positive");
+    }
+    this.resources = resources;
+    this.maxEntries = maxEntries;
+    this.maxBytes = maxBytes;
+    this.mode = mode;
+  }
+
+  public static Stream<Bundle> chunk(Stream<? extends Resource> resources) {
+    return chunk(resources, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES, TransactionEntryMode.CREATE);
+  }
+
+  public static Stream<Bundle> chunk(
+      Stream<? extends Resource> resources,
+      int maxEntries,
+      long maxBytes,
+      TransactionEntryMode mode) {
+    TransactionBundleChunker chunker =
+        new TransactionBundleChunker(resources.iterator(), maxEntries, maxBytes, mode);
+    return StreamSupport.stream(
+            Spliterators.spliteratorUnknownSize(chunker, Spliterator.ORDERED | Spliterator.NONNULL),
+            false)
+        .onClose(resources::close);
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (next == null) {
+      if (resources.hasNext()) {
+        accept(resources.next());
+      } else if (!group.isEmpty()) {
+        closeGroup();
+      } else if (chunk != null) {
+        emitChunk();
+      } else {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public Bundle next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    Bundle result = next;
+    next = null;
+    return result;
+  }
+
+  private void accept(Resource resource) {
+    if (!group.isEmpty()
+        && (resource.getResourceType() == ResourceType.Patient || !referencesGroup(resource))) {
+      closeGroup();
+    }
+    group.add(resource);
+    if (resource.hasIdElement()) {
+      groupIds.add(resource.getIdElement().getValue());
+      groupIds.add(resource.getIdElement().toUnqualifiedVersionless().getValue());
+    }
+    if (maxBytes != Long.MAX_VALUE) {
+      groupBytes += encodedSize(resource);
+    }
+  }
+
+  private boolean referencesGroup(Resource resource) {
+    for (Reference reference :
+        terser.getAllPopulatedChildElementsOfType(resource, Reference.class)) {
+      String target = referenceTarget(reference);
+      if (target != null && groupIds.contains(target)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  static String referenceTarget(Reference reference) {
+    if (reference.hasReference()) {
+      return reference.getReference();
+    }
+    if (reference.getResource() != null && !reference.getResource().getIdElement().isEmpty()) {
+      return reference.getResource().getIdElement().getValue();
+    }
+    return null;
+  }
+
+  private void closeGroup() {
+    if (chunk != null
+        && (chunk.getEntry().size() + group.size() > maxEntries
+            || chunkBytes + groupBytes > maxBytes)) {
+      emitChunk();
+    }
+    if (chunk == null) {
+      chunk = new Bundle();
+      chunk.setType(BundleType.TRANSACTION);
+      chunkBytes = 0;
+    }
+    group.forEach(r -> HapiClientStarterTransactionBundle.addTransactionEntry(chunk, r, mode));
+    chunkBytes += groupBytes;
+    group.clear();
+    groupIds.clear();
+    groupBytes = 0;
+  }
+
+  private void emitChunk() {
+    next = chunk;
+    chunk = null;
+  }
+
+  private long encodedSize(Resource resource) {
+    return sizeParser.encodeResourceToString(resource).getBytes(StandardCharsets.UTF_8).length;
+  }
+}
@@ -0,0 +1,15 @@
+package client_test;
+
+/**
+ * How {@link HapiClientStarterTransactionBundle#addTransactionEntry} turns a resource into a
+ * transaction entry. The conditional modes match on the first Identifier with system and value,
+ * resources without such an identifier are always sent as a plain create.
+ */
+public enum TransactionEntryMode {
+  /** POST to the resource type, every load creates a new resource. */
+  CREATE,
+  /** POST with ifNoneExist=identifier=system|value, an existing match is left untouched. */
+  CONDITIONAL_CREATE,
+  /** PUT to Type?identifier=system|value, an existing match is overwritten, otherwise created. */
+  CONDITIONAL_UPDATE
+}
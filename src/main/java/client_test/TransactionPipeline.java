@@ -0,0 +1,170 @@
+package client_test;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+import org.hl7.fhir.r4.model.Bundle;
+
+/**
+ * Hands transaction bundles from the producing thread to a submitting thread through a bounded
+ * queue. When the server is slower than the producer the queue fills up and the producer blocks, so
+ * at most {@code capacity + 2} bundles are alive at any time.
+ */
+public class TransactionPipeline {
+
+  public static final int DEFAULT_CAPACITY = 4;
+
+  private static final Bundle END_OF_STREAM = new Bundle();
+
+  private final UnaryOperator<Bundle> submitter;
+  private final int capacity;
+  private final Consumer<ChunkStats> listener;
+
+  public TransactionPipeline(IGenericClient client) {
+    this(b -> client.transaction().withBundle(b).execute(), DEFAULT_CAPACITY, ChunkStats::print);
+  }
+
+  public TransactionPipeline(
+      UnaryOperator<Bundle> submitter, int capacity, Consumer<ChunkStats> listener) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("capacity must be positive");
+    }
+    this.submitter = submitter;
+    this.capacity = capacity;
+    this.listener = listener;
+  }
+
+  public PipelineStats run(Iterator<Bundle> bundles) throws InterruptedException {
+    BlockingQueue<Bundle> queue = new ArrayBlockingQueue<>(capacity);
+    AtomicReference<RuntimeException> failure = new AtomicReference<>();
+    PipelineStats stats = new PipelineStats();
+
+    Thread consumer =
+        new Thread(
+            () -> {
+              try {
+                int chunkNumber = 0;
+                for (Bundle bundle = queue.take(); bundle != END_OF_STREAM; bundle = queue.take()) {
+                  long start = System.nanoTime();
+                  submitter.apply(bundle);
+                  ChunkStats chunkStats =
+                      new ChunkStats(
+                          ++chunkNumber, bundle.getEntry().size(), System.nanoTime() - start);
+                  stats.add(chunkStats);
+                  listener.accept(chunkStats);
+                }
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              } catch (RuntimeException e) {
+                failure.set(e);
+              }
+            },
+            "transaction-pipeline");
+    consumer.setDaemon(true);
+    consumer.start();
+
+    try {
+      while (bundles.hasNext()) {
+        offer(queue, bundles.next(), failure);
+      }
+      offer(queue, END_OF_STREAM, failure);
+      consumer.join();
+    } finally {
+      consumer.interrupt();
+    }
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+    stats.finish();
+    return stats;
+  }
+
+  // blocks while the queue is full, but gives up as soon as the consumer has failed
+  private static void offer(
+      BlockingQueue<Bundle> queue, Bundle bundle, AtomicReference<RuntimeException> failure)
+      throws InterruptedException {
+    while (!queue.offer(bundle, 100, TimeUnit.MILLISECONDS)) {
+      if (failure.get() != null) {
+        throw failure.get();
+      }
+    }
+  }
+
+  public static class ChunkStats {
+    private final int chunkNumber;
+    private final int entryCount;
+    private final long latencyNanos;
+
+    ChunkStats(int chunkNumber, int entryCount, long latencyNanos) {
+      this.chunkNumber = chunkNumber;
+      this.entryCount = entryCount;
+      this.latencyNanos = latencyNanos;
+    }
+
+    public int getChunkNumber() {
+      return chunkNumber;
+    }
+
+    public int getEntryCount() {
+      return entryCount;
+    }
+
+    public long getLatencyNanos() {
+      return latencyNanos;
+    }
+
+    public double getEntriesPerSecond() {
+      return entryCount / (latencyNanos / 1e9);
+    }
+
+    public void print() {
+      System.out.printf(
+          "chunk %d: %d entries in %.1f ms (%.0f entries/s)%n",
+          chunkNumber, entryCount, latencyNanos / 1e6, getEntriesPerSecond());
+    }
+  }
+
+  public static class PipelineStats {
+    private final long start = System.nanoTime();
+    private long elapsedNanos;
+    private int chunkCount;
+    private long entryCount;
+
+    synchronized void add(ChunkStats chunkStats) {
+      chunkCount++;
+      entryCount += chunkStats.getEntryCount();
+    }
+
+    synchronized void finish() {
+      elapsedNanos = System.nanoTime() - start;
+    }
+
+    public synchronized int getChunkCount() {
+      return chunkCount;
+    }
+
+    public synchronized long getEntryCount() {
+      return entryCount;
+    }
+
+    public synchronized long getElapsedNanos() {
+      return elapsedNanos;
+    }
+
+    public synchronized double getEntriesPerSecond() {
+      return entryCount / (elapsedNanos / 1e9);
+    }
+
+    @Override
+    public synchronized String toString() {
+      return String.format(
+          "%d chunks, %d entries in %.1f ms (%.0f entries/s)",
+          chunkCount, entryCount, elapsedNanos / 1e6, getEntriesPerSecond());
+    }
+  }
+}
@@ -0,0 +1,225 @@
+package client_test;
+
+import ca.uhn.fhir.util.FhirTerser;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Plans transactions for a set of resources from their reference graph, so callers neither have to
+ * pass resources in dependency order nor give them transaction-ready ids.
+ *
+ * <p>Every resource gets a urn:uuid id (an existing one is kept) and every Reference to another
+ * resource of the set, by {@code Type/id}, by urn:uuid or by the resource object itself, is
+ * rewritten to it. References to resources outside the set, e.g. a Practitioner already on the
+ * server, are left alone. The resources are then split into connected components: resources of
+ * different components do not reference each other, so each component can go into its own
+ * transaction and those transactions can be submitted in parallel.
+ *
+ * <p>Resources are modified in place.
+ */
+public class TransactionPlanner {
+
+  private static final String URN_UUID = "urn:uuid:";
+
+  private final FhirTerser terser = FhirClientFactory.getContext().newTerser();
+
+  public Plan plan(Collection<? extends Resource> input) {
+    List<Resource> resources = new ArrayList<>(input);
+    int size = resources.size();
+    Map<String, Integer> byId = new HashMap<>();
+    Map<IBaseResource, Integer> byObject = new IdentityHashMap<>();
+    Map<String, String> idMap = new LinkedHashMap<>();
+    for (int i = 0; i < size; i++) {
+      Resource resource = resources.get(i);
+      byObject.put(resource, i);
+      IdType id = resource.getIdElement();
+      if (id.getValue() != null && id.getValue().startsWith(URN_UUID)) {
+        byId.put(id.getValue(), i);
+        continue;
+      }
+      String urn = IdType.newRandomUuid().getValue();
+      if (id.hasIdPart()) {
+        String sourceId = resource.fhirType() + "/" + id.getIdPart();
+        byId.put(sourceId, i);
+        idMap.put(sourceId, urn);
+      }
+      resource.setId(urn);
+      byId.put(urn, i);
+    }
+
+    int[] parent = new int[size];
+    List<List<Integer>> dependencies = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      parent[i] = i;
+      dependencies.add(new ArrayList<>(2));
+    }
+    for (int i = 0; i < size; i++) {
+      for (Reference reference :
+          terser.getAllPopulatedChildElementsOfType(resources.get(i), Reference.class)) {
+        Integer target = target(reference, byId, byObject);
+        if (target == null) {
+          continue;
+        }
+        reference.setReference(resources.get(target).getIdElement().getValue());
+        if (target != i) {
+          dependencies.get(i).add(target);
+          union(parent, i, target);
+        }
+      }
+    }
+
+    // a component is reached first from its first resource, so components keep the input order
+    Map<Integer, List<Resource>> components = new LinkedHashMap<>();
+    for (int i : dependencyOrder(dependencies)) {
+      components.computeIfAbsent(find(parent, i), root -> new ArrayList<>()).add(resources.get(i));
+    }
+    List<List<Resource>> result = new ArrayList<>(components.size());
+    components.values().forEach(c -> result.add(Collections.unmodifiableList(c)));
+    return new Plan(Collections.unmodifiableList(result), Collections.unmodifiableMap(idMap));
+  }
+
+  private static Integer target(
+      Reference reference, Map<String, Integer> byId, Map<IBaseResource, Integer> byObject) {
+    if (reference.getResource() != null && byObject.containsKey(reference.getResource())) {
+      return byObject.get(reference.getResource());
+    }
+    String value = reference.getReference();
+    if (value == null || value.startsWith("#")) {
+      return null;
+    }
+    if (value.startsWith(URN_UUID)) {
+      return byId.get(value);
+    }
+    IdType id = new IdType(value);
+    return id.hasResourceType() && id.hasIdPart()
+        ? byId.get(id.getResourceType() + "/" + id.getIdPart())
+        : null;
+  }
+
+  // depth-first post-order, iterative because reference chains may be long; cycles are cut where
+  // they are found, the server resolves urn:uuid references regardless of entry order
+  private static List<Integer> dependencyOrder(List<List<Integer>> dependencies) {
+    int size = dependencies.size();
+    List<Integer> order = new ArrayList<>(size);
+    boolean[] visited = new boolean[size];
+    Deque<int[]> stack = new ArrayDeque<>();
+    for (int start = 0; start < size; start++) {
+      if (visited[start]) {
+        continue;
+      }
+      visited[start] = true;
+      stack.push(new int[] {start, 0});
+      while (!stack.isEmpty()) {
+        int[] frame = stack.peek();
+        List<Integer> next = dependencies.get(frame[0]);
+        if (frame[1] < next.size()) {
+          int dependency = next.get(frame[1]++);
+          if (!visited[dependency]) {
+            visited[dependency] = true;
+            stack.push(new int[] {dependency, 0});
+          }
+        } else {
+          order.add(stack.pop()[0]);
+        }
+      }
+    }
+    return order;
+  }
+
+  private static int find(int[] parent, int i) {
+    while (parent[i] != i) {
+      parent[i] = parent[parent[i]];
+      i = parent[i];
+    }
+    return i;
+  }
+
+  private static void union(int[] parent, int a, int b) {
+    int rootA = find(parent, a);
+    int rootB = find(parent, b);
+    if (rootA != rootB) {
+      parent[Math.max(rootA, rootB)] = Math.min(rootA, rootB);
+    }
+  }
+
+  /** The connected components of a resource set and the urn:uuid assigned to each source id. */
+  public static class Plan {
+
+    private final List<List<Resource>> components;
+    private final Map<String, String> idMap;
+
+    Plan(List<List<Resource>> components, Map<String, String> idMap) {
+      this.components = components;
+      this.idMap = idMap;
+    }
+
+    /** Independent groups of resources, every group in dependency order. */
+    public List<List<Resource>> getComponents() {
+      return components;
+    }
+
+    /** Original {@code Type/id} to the urn:uuid that replaced it. */
+    public Map<String, String> getIdMap() {
+      return idMap;
+    }
+
+    /** All resources in one transaction. */
+    public Bundle toBundle(TransactionEntryMode mode) {
+      Bundle bundle = newTransaction();
+      components.forEach(c -> addAll(bundle, c, mode));
+      return bundle;
+    }
+
+    /**
+     * Packs whole components into transactions of at most {@code maxEntries} entries. A component
+     * larger than that gets a transaction of its own, splitting it would break the urn:uuid
+     * references between its resources.
+     */
+    public List<Bundle> toBundles(int maxEntries, TransactionEntryMode mode) {
+      if (maxEntries < 1) {
+        throw new IllegalArgumentException("maxEntries must be positive");
+      }
+      List<Bundle> bundles = new ArrayList<>();
+      Bundle bundle = null;
+      for (List<Resource> component : components) {
+        if (bundle != null && bundle.getEntry().size() + component.size() > maxEntries) {
+          bundles.add(bundle);
+          bundle = null;
+        }
+        if (bundle == null) {
+          bundle = newTransaction();
+        }
+        addAll(bundle, component, mode);
+      }
+      if (bundle != null) {
+        bundles.add(bundle);
+      }
+      return bundles;
+    }
+
+    private static Bundle newTransaction() {
+      Bundle bundle = new Bundle();
+      bundle.setType(BundleType.TRANSACTION);
+      return bundle;
+    }
+
+    private static void addAll(Bundle bundle, List<Resource> component, TransactionEntryMode mode) {
+      component.forEach(
+          r -> HapiClientStarterTransactionBundle.addTransactionEntry(bundle, r, mode));
+    }
+  }
+}
@@ -0,0 +1,156 @@
+package client_test;
+
+import ca.uhn.fhir.parser.IParser;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Plans shuffled patient graphs with plain ids, half of them referenced by {@code Type/id} and half
+ * by resource object, and submits the planned transactions in parallel to a stub server that checks
+ * every reference of a bundle against the fullUrls that precede it.
+ */
+public class TransactionPlannerCheck {
+
+  private static final int PATIENTS = 20_000;
+  private static final int MAX_ENTRIES = 300;
+  private static final Pattern REFERENCE = Pattern.compile("\"reference\":\"([^\"]+)\"");
+
+  private static final AtomicLong entries = new AtomicLong();
+  private static final AtomicLong misplacedReferences = new AtomicLong();
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    List<Resource> resources = new ArrayList<>();
+    IsikResourceFactory factory = IsikResourceFactory.getDefault();
+    for (int i = 0; i < PATIENTS; i++) {
+      Patient patient = factory.createPatient();
+      patient.setId("p" + i);
+      Encounter encounter = factory.createEncounter(patient);
+      encounter.setId("Encounter/e" + i);
+      Condition condition = factory.createCondition(patient, encounter);
+      condition.setId("c" + i);
+      if (i % 2 == 0) {
+        encounter.setSubject(new Reference("Patient/p" + i));
+        condition.setSubject(new Reference("Patient/p" + i));
+        condition.setEncounter(new Reference("Encounter/e" + i));
+      }
+      resources.addAll(List.of(patient, encounter, condition));
+    }
+    Collections.shuffle(resources, new Random(1));
+
+    long start = System.nanoTime();
+    TransactionPlanner.Plan plan = new TransactionPlanner().plan(resources);
+    List<Bundle> bundles = plan.toBundles(MAX_ENTRIES, TransactionEntryMode.CREATE);
+    System.out.printf(
+        "planned %d resources into %d components and %d bundles in %.0f ms%n",
+        resources.size(),
+        plan.getComponents().size(),
+        bundles.size(),
+        (System.nanoTime() - start) / 1e6);
+    boolean patientsFirst =
+        plan.getComponents().stream().allMatch(c -> c.size() == 3 && c.get(0) instanceof Patient);
+
+    HttpServer server = startServer();
+    AtomicInteger failed = new AtomicInteger();
+    start = System.nanoTime();
+    try (TransactionSubmitter submitter =
+        new TransactionSubmitter(
+            FhirClientFactory.getClient("http://localhost:" + server.getAddress().getPort()))) {
+      submitter.submitAll(
+          bundles.iterator(),
+          outcome -> {
+            if (!outcome.isSuccess()) {
+              failed.incrementAndGet();
+            }
+          });
+    } finally {
+      server.stop(0);
+    }
+    System.out.printf(
+        "submitted %d bundles in parallel in %.0f ms%n",
+        bundles.size(), (System.nanoTime() - start) / 1e6);
+
+    boolean ok =
+        plan.getComponents().size() == PATIENTS
+            && patientsFirst
+            && plan.getIdMap().size() == resources.size()
+            && entries.get() == resources.size()
+            && misplacedReferences.get() == 0
+            && failed.get() == 0;
+    System.out.println(
+        ok
+            ? "all components in dependency order, all references resolved within their bundle"
+            : "MISMATCH: "
+                + entries.get()
+                + " entries received, "
+                + misplacedReferences.get()
+                + " misplaced references, "
+                + failed.get()
+                + " failed bundles, patients first: "
+                + patientsFirst);
+  }
+
+  // every reference must be the fullUrl of an earlier entry of the same bundle
+  private static HttpServer startServer() throws IOException {
+    AtomicLong nextId = new AtomicLong();
+
+    // without TCP_NODELAY every small response waits for the delayed ACK of the client
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext(
+        "/",
+        exchange -> {
+          IParser parser = FhirClientFactory.getCompactJsonParser();
+          Bundle request =
+              parser.parseResource(
+                  Bundle.class,
+                  new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+          Set<String> earlier = new HashSet<>();
+          Bundle response = new Bundle().setType(BundleType.TRANSACTIONRESPONSE);
+          for (BundleEntryComponent entry : request.getEntry()) {
+            Matcher references =
+                REFERENCE.matcher(parser.encodeResourceToString(entry.getResource()));
+            while (references.find()) {
+              if (!earlier.contains(references.group(1))) {
+                misplacedReferences.incrementAndGet();
+              }
+            }
+            earlier.add(entry.getFullUrl());
+            entries.incrementAndGet();
+            response
+                .addEntry()
+                .getResponse()
+                .setStatus("201 Created")
+                .setLocation(entry.getResource().fhirType() + "/" + nextId.incrementAndGet());
+          }
+          byte[] body = parser.encodeResourceToString(response).getBytes(StandardCharsets.UTF_8);
+          exchange.getResponseHeaders().add("Content-Type", "application/fhir+json");
+          exchange.sendResponseHeaders(200, body.length);
+          try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+          }
+        });
+    server.start();
+    return server;
+  }
+}
@@ -0,0 +1,230 @@
+package client_test;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+
+/**
+ * Sends transaction bundles concurrently through one shared {@link IGenericClient}. At most {@code
+ * parallelism} bundles are in flight; submitting blocks the caller while all permits are taken.
+ * Requests answered with 429 or 503 are retried with exponential backoff, honouring a Retry-After
+ * header if the server sends one, up to the same 30 second cap.
+ *
+ * <p>Runs on virtual threads when the JVM provides them (Java 21+) and on a fixed thread pool
+ * otherwise. The HTTP connection pool of {@link FhirClientFactory} must allow at least {@code
+ * parallelism} connections per route, otherwise requests queue for a connection instead.
+ */
+public class TransactionSubmitter implements AutoCloseable {
+
+  public static final int DEFAULT_PARALLELISM = 8;
+  public static final int DEFAULT_MAX_RETRIES = 5;
+  public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 200;
+  private static final long MAX_BACKOFF_MILLIS = 30_000;
+
+  private final IGenericClient client;
+  private final int maxRetries;
+  private final long initialBackoffMillis;
+  private final int parallelism;
+  private final Semaphore permits;
+  private final ExecutorService executor;
+
+  public TransactionSubmitter(IGenericClient client) {
+    this(client, DEFAULT_PARALLELISM, DEFAULT_MAX_RETRIES, DEFAULT_INITIAL_BACKOFF_MILLIS);
+  }
+
+  public TransactionSubmitter(
+      IGenericClient client, int parallelism, int maxRetries, long initialBackoffMillis) {
+    if (parallelism < 1 || maxRetries < 0 || initialBackoffMillis < 0) {
+      throw new IllegalArgumentException("invalid submitter configuration");
+    }
+    this.client = client;
+    this.maxRetries = maxRetries;
+    this.initialBackoffMillis = initialBackoffMillis;
+    this.parallelism = parallelism;
+    this.permits = new Semaphore(parallelism);
+    this.executor = newExecutor(parallelism);
+  }
+
+  static ExecutorService newExecutor(int parallelism) {
+    try {
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+      AtomicInteger threadNumber = new AtomicInteger();
+      return Executors.newFixedThreadPool(
+          parallelism,
+          r -> {
+            Thread thread =
+                new Thread(r, "transaction-submitter-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          });
+    }
+  }
+
+  public CompletableFuture<BundleOutcome> submit(Bundle bundle) throws InterruptedException {
+    return submit(bundle, outcome -> {});
+  }
+
+  /**
+   * Submits every bundle and returns once all of them are done. Outcomes are not collected but
+   * handed to the listener as they complete, so the listener must be thread-safe.
+   */
+  public void submitAll(Iterator<Bundle> bundles, Consumer<BundleOutcome> listener)
+      throws InterruptedException {
+    while (bundles.hasNext()) {
+      submit(bundles.next(), listener);
+    }
+    permits.acquire(parallelism);
+    permits.release(parallelism);
+  }
+
+  private CompletableFuture<BundleOutcome> submit(Bundle bundle, Consumer<BundleOutcome> listener)
+      throws InterruptedException {
+    permits.acquire();
+    try {
+      return CompletableFuture.supplyAsync(
+          () -> {
+            try {
+              BundleOutcome outcome = execute(bundle);
+              listener.accept(outcome);
+              return outcome;
+            } finally {
+              permits.release();
+            }
+          },
+          executor);
+    } catch (RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  private BundleOutcome execute(Bundle bundle) {
+    long start = System.nanoTime();
+    int attempt = 0;
+    while (true) {
+      attempt++;
+      try {
+        Bundle response = client.transaction().withBundle(bundle).execute();
+        return new BundleOutcome(bundle, response, null, attempt, System.nanoTime() - start);
+      } catch (BaseServerResponseException e) {
+        if (!isRetryable(e.getStatusCode()) || attempt > maxRetries) {
+          return new BundleOutcome(bundle, null, e, attempt, System.nanoTime() - start);
+        }
+        try {
+          Thread.sleep(backoffMillis(e, attempt));
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          return new BundleOutcome(bundle, null, ie, attempt, System.nanoTime() - start);
+        }
+      } catch (RuntimeException e) {
+        return new BundleOutcome(bundle, null, e, attempt, System.nanoTime() - start);
+      }
+    }
+  }
+
+  static boolean isRetryable(int statusCode) {
+    return statusCode == 429 || statusCode == 503;
+  }
+
+  private long backoffMillis(BaseServerResponseException e, int attempt) {
+    List<String> retryAfter =
+        e.getResponseHeaders() == null ? null : e.getResponseHeaders().get("retry-after");
+    if (retryAfter != null && !retryAfter.isEmpty()) {
+      try {
+        long seconds = Long.parseLong(retryAfter.get(0).trim());
+        return Math.max(0, Math.min(MAX_BACKOFF_MILLIS, TimeUnit.SECONDS.toMillis(seconds)));
+      } catch (NumberFormatException ignored) {
+        // an HTTP date instead of delta seconds, fall back to our own backoff
+      }
+    }
+    long backoff = Math.min(MAX_BACKOFF_MILLIS, initialBackoffMillis << Math.min(attempt - 1, 16));
+    return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+  }
+
+  @Override
+  public void close() {
+    executor.shutdown();
+  }
+
+  public static class BundleOutcome {
+    private final Bundle request;
+    private final Bundle response;
+    private final Exception error;
+    private final int attempts;
+    private final long latencyNanos;
+
+    BundleOutcome(
+        Bundle request, Bundle response, Exception error, int attempts, long latencyNanos) {
+      this.request = request;
+      this.response = response;
+      this.error = error;
+      this.attempts = attempts;
+      this.latencyNanos = latencyNanos;
+    }
+
+    public boolean isSuccess() {
+      return error == null;
+    }
+
+    public Bundle getRequest() {
+      return request;
+    }
+
+    public Bundle getResponse() {
+      return response;
+    }
+
+    public Exception getError() {
+      return error;
+    }
+
+    public int getAttempts() {
+      return attempts;
+    }
+
+    public long getLatencyNanos() {
+      return latencyNanos;
+    }
+
+    // Location of every entry of the transactionResponseBundle, in request order
+    public List<String> getLocations() {
+      if (response == null) {
+        return Collections.emptyList();
+      }
+      List<String> locations = new ArrayList<>(response.getEntry().size());
+      for (BundleEntryComponent entry : response.getEntry()) {
+        locations.add(entry.getResponse().getLocation());
+      }
+      return locations;
+    }
+
+    // number of entries per response status, e.g. "201 Created" -> 3
+    public Map<String, Integer> getStatusCounts() {
+      Map<String, Integer> counts = new LinkedHashMap<>();
+      if (response != null) {
+        response
+            .getEntry()
+            .forEach(e -> counts.merge(e.getResponse().getStatus(), 1, Integer::sum));
+      }
+      return counts;
+    }
+  }
+}
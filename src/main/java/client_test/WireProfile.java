@@ -0,0 +1,29 @@
+package client_test;
+
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.client.apache.GZipContentInterceptor;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+
+/**
+ * How a client puts resources on the wire. {@link #DEFAULT} is what the samples always used, {@link
+ * #COMPACT} is meant for batch jobs: compact JSON without empty elements, gzip compressed request
+ * bodies for create, update and transaction. Gzip responses are negotiated by the Apache HTTP
+ * client of the factory in both profiles, it sends Accept-Encoding: gzip and decompresses
+ * transparently.
+ */
+public enum WireProfile {
+  DEFAULT {
+    @Override
+    void apply(IGenericClient client) {}
+  },
+  COMPACT {
+    @Override
+    void apply(IGenericClient client) {
+      client.setEncoding(EncodingEnum.JSON);
+      client.setPrettyPrint(false);
+      client.registerInterceptor(new GZipContentInterceptor());
+    }
+  };
+
+  abstract void apply(IGenericClient client);
+}